@@ -129,6 +129,19 @@ public class AppWindow extends JFrame
             connectMenuItem.setMnemonic('c');
             connectMenuItem.addActionListener(event -> clientLogic.promptConnect(AppWindow.this));
             clientOptionsMenu.add(connectMenuItem);
+
+            // create the transfer queue menu item & add it to the client menu
+            JMenuItem queueMenuItem = new JMenuItem("Transfer Queue...");
+            queueMenuItem.setMnemonic('q');
+            queueMenuItem.addActionListener(event -> clientLogic.promptManageQueue(AppWindow.this));
+            clientOptionsMenu.add(queueMenuItem);
+
+            // create the concurrent transfers menu item & add it to the client
+            // menu
+            JMenuItem concurrencyMenuItem = new JMenuItem("Concurrent Transfers...");
+            concurrencyMenuItem.setMnemonic('t');
+            concurrencyMenuItem.addActionListener(event -> clientLogic.promptSetMaxConcurrentTransfers(AppWindow.this));
+            clientOptionsMenu.add(concurrencyMenuItem);
         }
     }
 
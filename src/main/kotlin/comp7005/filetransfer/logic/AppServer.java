@@ -3,14 +3,46 @@ package comp7005.filetransfer.logic;
 import com.teamhoe.reliableudp.ServerSocket;
 import com.teamhoe.reliableudp.SocketInputStream;
 import com.teamhoe.reliableudp.SocketOutputStream;
+import comp7005.filetransfer.net.AdmissionController;
+import comp7005.filetransfer.net.Connection;
+import comp7005.filetransfer.net.FairShareLimiter;
+import comp7005.filetransfer.net.Limiter;
+import comp7005.filetransfer.net.Multiplexer;
 import comp7005.filetransfer.net.NetUtils;
+import comp7005.filetransfer.net.RateLimitedOutputStream;
+import comp7005.filetransfer.net.RateLimiter;
 import comp7005.filetransfer.net.Server;
+import comp7005.filetransfer.net.ServerBusyException;
+import comp7005.filetransfer.net.SharedRateLimiters;
 import org.json.JSONArray;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.swing.ProgressMonitor;
 
@@ -52,12 +84,429 @@ public class AppServer extends Server
      */
     private static final int TYPE_PUSH_FILE = 2;
 
+    /**
+     * indicates to the server that we want to download a range of bytes of a
+     *   file.
+     */
+    private static final int TYPE_PULL_FILE_RANGE = 3;
+
+    /**
+     * indicates to the server that we want to upload a file as a delta against
+     *   the server's copy of the file.
+     */
+    private static final int TYPE_PUSH_FILE_DELTA = 4;
+
+    /**
+     * indicates to the server that we want to download a directory, and
+     *   everything in it.
+     */
+    private static final int TYPE_PULL_TREE = 5;
+
+    /**
+     * indicates to the server that we want to upload a directory, and
+     *   everything in it.
+     */
+    private static final int TYPE_PUSH_TREE = 6;
+
+    /**
+     * indicates to the server that we want to keep the connection open, and
+     *   send many requests over it, each over a channel of its own.
+     */
+    private static final int TYPE_SESSION = 7;
+
     // constants: protocol parameters
 
     /**
-     * the maximum number of bytes to send per segment when transferring a file.
+     * the minimum number of bytes that the server will agree to send per
+     *   segment when transferring a file.
+     */
+    static final int MIN_FILE_SEGMENT_SIZE = 64*1024;
+
+    /**
+     * the maximum number of bytes that the server will agree to send per
+     *   segment when transferring a file.
+     */
+    static final int MAX_FILE_SEGMENT_SIZE = 4*1024*1024;
+
+    /**
+     * the number of bytes per segment proposed by clients that have not been
+     *   configured otherwise.
+     */
+    static final int DEFAULT_FILE_SEGMENT_SIZE = 256*1024;
+
+    /**
+     * the smallest range that a file is split into when it is pulled over
+     *   several streams in parallel.
+     */
+    static final long MIN_FILE_RANGE_SIZE = 16*1024*1024;
+
+    /**
+     * the maximum number of streams that a file is pulled over in parallel by
+     *   clients that have not been configured otherwise.
+     */
+    static final int DEFAULT_STREAM_COUNT = 4;
+
+    /**
+     * files smaller than this many bytes are packed into batches when a tree
+     *   is sent by clients that have not been configured otherwise.
+     */
+    static final int DEFAULT_BATCH_THRESHOLD = 16*1024;
+
+    /**
+     * files at least this large are served through memory mapped windows by
+     *   servers that have not been configured otherwise.
+     */
+    private static final long DEFAULT_MAPPED_READ_THRESHOLD = 64*1024*1024;
+
+    /**
+     * size of the buffers that the entries of a tree are sent and received
+     *   through, so the headers of many small files are sent together.
+     */
+    private static final int TREE_BUFFER_SIZE = 64*1024;
+
+    // constants: sessions
+
+    /**
+     * the most sessions that the server keeps open at once, when virtual
+     *   threads aren't supported; each of them takes up a thread of its own
+     *   while it is open, even while it is idle. clients that ask for a
+     *   session while this many are open are told to try again later.
+     */
+    private static final int MAX_SESSIONS = 256;
+
+    /**
+     * the most sessions that the server keeps open at once, when they are read
+     *   on virtual threads.
+     */
+    private static final int MAX_VIRTUAL_SESSIONS = 16*1024;
+
+    /**
+     * seconds that an idle session reader thread is kept around before it is
+     *   ended.
+     */
+    private static final long SESSION_READER_KEEP_ALIVE_SECONDS = 60;
+
+    // static data: sessions
+
+    /**
+     * the sessions that this client has open or is opening to remote hosts, by
+     *   the address of the remote host; each one completes once the session
+     *   has been set up, or fails if it couldn't be.
+     */
+    private static final Map<InetSocketAddress,CompletableFuture<Multiplexer>> sessions = new HashMap<>();
+
+    // instance data: configuration
+
+    /**
+     * files at least this many bytes large are served through memory mapped
+     *   windows instead of positional reads.
+     */
+    private volatile long mappedReadThreshold = DEFAULT_MAPPED_READ_THRESHOLD;
+
+    /**
+     * true if the server agrees to compress transfers when clients ask it to.
+     */
+    private volatile boolean compressionEnabled = true;
+
+    /**
+     * the most bytes per second that each transfer served by the server may
+     *   send; 0 for no limit.
+     */
+    private volatile long transferRateLimit = 0;
+
+    /**
+     * the most bytes per second that all the transfers served by the server
+     *   may send together; 0 for no limit.
+     */
+    private volatile long serverRateLimit = 0;
+
+    // instance data: general
+
+    /**
+     * the share of the server's bandwidth that each client gets, relative to
+     *   the others, by its address; clients that aren't in here get a share
+     *   of 1.
+     */
+    private final Map<InetAddress,Double> clientWeights = new ConcurrentHashMap<>();
+
+    /**
+     * limits the rate that all the transfers served by the server send at
+     *   together, and shares it out between the clients by their weights.
+     */
+    private final FairShareLimiter<InetAddress> serverRateLimiter = new FairShareLimiter<>(() -> serverRateLimit,client -> clientWeights.getOrDefault(client,1.0));
+
+    /**
+     * limits the rate that the ranges of each file that are pulled by a client
+     *   at once send at together, so they count as one transfer towards the
+     *   rate limit of each transfer.
+     */
+    private final SharedRateLimiters<String> rangeRateLimiters = new SharedRateLimiters<>(() -> transferRateLimit);
+
+    /**
+     * limits how many transfers the server runs at once, and how many bytes
+     *   they move between them.
+     */
+    private final AdmissionController admissionController = new AdmissionController();
+
+    /**
+     * keeps the files that the server sends open, so that transfers of the
+     *   same file share one channel.
+     */
+    private final FileChannelCache fileChannelCache = new FileChannelCache(FileChannelCache.DEFAULT_CAPACITY);
+
+    /**
+     * keeps the contents of small files that the server sends often in
+     *   memory, so sending them again doesn't read them from the disk.
+     */
+    private final ContentCache contentCache = new ContentCache();
+
+    /**
+     * threads that frames are read from the sessions open to the server on.
+     */
+    private final ExecutorService sessionReaders = makeSessionReaders();
+
+    /**
+     * a permit for each session that may be open to the server at once; the
+     *   sessions read on platform threads are limited to as many of them as
+     *   there may be threads.
+     */
+    private final Semaphore sessionPermits = new Semaphore(sessionReaders instanceof ThreadPoolExecutor ? MAX_SESSIONS : MAX_VIRTUAL_SESSIONS);
+
+    /**
+     * remembers the contents of the files that were pushed to the server, so
+     *   pushes of the same contents to other paths can be done locally.
+     */
+    private final ContentIndex contentIndex = new ContentIndex();
+
+    // public interface: configuration
+
+    /**
+     * returns the size in bytes at which files begin to be served through
+     *   memory mapped windows instead of positional reads.
+     *
+     * @method  getMappedReadThreshold
+     *
+     * @date    2015-10-03T16:08:15-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the size in bytes at which files begin to be served through
+     *   memory mapped windows.
+     */
+    public long getMappedReadThreshold()
+    {
+        return mappedReadThreshold;
+    }
+
+    /**
+     * sets the size in bytes at which files begin to be served through memory
+     *   mapped windows instead of positional reads; {@code Long.MAX_VALUE}
+     *   disables memory mapped reads.
+     *
+     * @method  setMappedReadThreshold
+     *
+     * @date    2015-10-03T16:08:51-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   mappedReadThreshold the size in bytes at which files begin to
+     *   be served through memory mapped windows.
+     */
+    public void setMappedReadThreshold(long mappedReadThreshold)
+    {
+        this.mappedReadThreshold = mappedReadThreshold;
+    }
+
+    /**
+     * returns true if the server agrees to compress transfers when clients ask
+     *   it to.
+     *
+     * @method  isCompressionEnabled
+     *
+     * @date    2015-10-05T14:33:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  true if the server agrees to compress transfers when clients
+     *   ask it to.
+     */
+    public boolean isCompressionEnabled()
+    {
+        return compressionEnabled;
+    }
+
+    /**
+     * sets whether the server agrees to compress transfers when clients ask it
+     *   to; servers with little CPU to spare may want to refuse.
+     *
+     * @method  setCompressionEnabled
+     *
+     * @date    2015-10-05T14:34:12-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   compressionEnabled true if the server agrees to compress
+     *   transfers when clients ask it to.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled)
+    {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * returns the most bytes per second that each transfer served by the
+     *   server may send.
+     *
+     * @method  getTransferRateLimit
+     *
+     * @date    2015-10-08T10:20:31-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the most bytes per second that each transfer served by the
+     *   server may send; 0 if there is no limit.
+     */
+    public long getTransferRateLimit()
+    {
+        return transferRateLimit;
+    }
+
+    /**
+     * sets the most bytes per second that each transfer served by the server
+     *   may send; transfers that are running are slowed down or sped up right
+     *   away. the ranges of a file that a client pulls over several streams at
+     *   once count as one transfer.
+     *
+     * @method  setTransferRateLimit
+     *
+     * @date    2015-10-08T10:21:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   transferRateLimit the most bytes per second that each transfer
+     *   may send; 0 for no limit.
+     */
+    public void setTransferRateLimit(long transferRateLimit)
+    {
+        this.transferRateLimit = transferRateLimit;
+    }
+
+    /**
+     * returns the most bytes per second that all the transfers served by the
+     *   server may send together.
+     *
+     * @method  getServerRateLimit
+     *
+     * @date    2015-10-08T10:21:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the most bytes per second that all the transfers served by the
+     *   server may send together; 0 if there is no limit.
+     */
+    public long getServerRateLimit()
+    {
+        return serverRateLimit;
+    }
+
+    /**
+     * sets the most bytes per second that all the transfers served by the
+     *   server may send together; transfers that are running are slowed down
+     *   or sped up right away.
+     *
+     * @method  setServerRateLimit
+     *
+     * @date    2015-10-08T10:22:14-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   serverRateLimit the most bytes per second that all the
+     *   transfers may send together; 0 for no limit.
+     */
+    public void setServerRateLimit(long serverRateLimit)
+    {
+        this.serverRateLimit = serverRateLimit;
+    }
+
+    /**
+     * returns the share of the server's bandwidth that the passed client
+     *   gets, relative to the others.
+     *
+     * @method  getClientWeight
+     *
+     * @date    2015-10-08T16:36:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   client address of the client.
+     *
+     * @return  the weight of the client; 1 is an ordinary share.
+     */
+    public double getClientWeight(InetAddress client)
+    {
+        return clientWeights.getOrDefault(client,1.0);
+    }
+
+    /**
+     * sets the share of the server's bandwidth that the passed client gets,
+     *   relative to the others, while the server's rate is limited; automated
+     *   mirrors can be given a larger share than people, for example.
+     *
+     * @method  setClientWeight
+     *
+     * @date    2015-10-08T16:36:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   client address of the client.
+     * @param   weight the weight of the client; 1 is an ordinary share.
+     */
+    public void setClientWeight(InetAddress client,double weight)
+    {
+        if(weight == 1.0)
+        {
+            clientWeights.remove(client);
+        }
+        else
+        {
+            clientWeights.put(client,weight);
+        }
+    }
+
+    /**
+     * returns the admission controller of the server, whose limits on the
+     *   transfers that run at once, the bytes they move & the transfers that
+     *   wait can be changed while the server is running.
+     *
+     * @method  getAdmissionController
+     *
+     * @date    2015-10-08T16:12:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the admission controller of the server.
+     */
+    public AdmissionController getAdmissionController()
+    {
+        return admissionController;
+    }
+
+    /**
+     * returns the content cache of the server, whose capacity & largest
+     *   cached file size can be changed while the server is running.
+     *
+     * @method  getContentCache
+     *
+     * @date    2015-10-08T17:14:36-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the content cache of the server.
      */
-    private static final int MAX_FILE_SEGMENT_SIZE = 1024;
+    public ContentCache getContentCache()
+    {
+        return contentCache;
+    }
 
     // public interface: network operations & associated handlers
 
@@ -83,12 +532,12 @@ public class AppServer extends Server
     {
 
         // perform the pull
-        try(ServerSocket serverSocket = ServerSocket.Companion.make(7001))
+        try(Multiplexer.Channel request = openChannel(remoteAddress))
         {
-            // connect to the remote address
+            // open a channel to the remote address
             progressMonitor.setProgress(0);
-            SocketOutputStream sos = serverSocket.connect(remoteAddress,null);
-            SocketInputStream sis = serverSocket.accept(null,null);
+            OutputStream sos = request.getOutputStream();
+            InputStream sis = request.getInputStream();
 
             // get handles to the streams
             progressMonitor.setProgress(1);
@@ -127,7 +576,7 @@ public class AppServer extends Server
      * @throws  IOException thrown when an IOException occurs.
      */
     @SuppressWarnings("ThrowFromFinallyBlock")
-    private void handlePullDirectoryFiles(SocketInputStream sis,SocketOutputStream sos) throws IOException
+    private void handlePullDirectoryFiles(InputStream sis,OutputStream sos) throws IOException
     {
         // read the path from the socket
         String path = NetUtils.readString(sis);
@@ -156,7 +605,12 @@ public class AppServer extends Server
     }
 
     /**
-     * downloads the specified file from the server.
+     * downloads the specified file from the server. if part of the file was
+     *   already downloaded by an earlier pull, the download continues from
+     *   where it left off.
+     *
+     * the file is downloaded into a partial file beside it, which is only
+     *   moved into its place once all of it has been downloaded.
      *
      * @method  pullFile
      *
@@ -168,60 +622,95 @@ public class AppServer extends Server
      * @param   progressMonitor updated to display the operation's progress.
      * @param   remoteFilePath path to file on the remote server.
      * @param   directory local directory to save the pulled file to.
+     * @param   options transfer parameters to propose to the server.
      *
      * @throws  IOException thrown when an IOExceptoin occurs.
      */
-    public static void pullFile(InetSocketAddress remoteAddress,ProgressMonitor progressMonitor,String remoteFilePath,File directory) throws IOException
+    public static void pullFile(InetSocketAddress remoteAddress,ProgressMonitor progressMonitor,String remoteFilePath,File directory,TransferOptions options) throws IOException
     {
         // perform the pull; download a file from the server
-        try(ServerSocket serverSocket = ServerSocket.Companion.make(7001))
+        try(Multiplexer.Channel request = openChannel(remoteAddress))
         {
-            // connect to the remote address
-            SocketOutputStream sos = serverSocket.connect(remoteAddress,null);
-            SocketInputStream sis = serverSocket.accept(remoteAddress,null);
+            // open a channel to the remote address
+            OutputStream sos = request.getOutputStream();
+            InputStream sis = request.getInputStream();
 
             // get handles to the streams
             DataInputStream is = new DataInputStream(sis);
             DataOutputStream os = new DataOutputStream(sos);
 
-            // send the request & remoteFilePath
+            // send the request, remoteFilePath, proposed segment size,
+            // compression & whether holes may be sent
             os.writeInt(TYPE_PULL_FILE);
             NetUtils.sendString(sos,remoteFilePath);
+            os.writeInt(options.getSegmentSize());
+            os.writeBoolean(options.isCompression());
+            os.writeBoolean(options.isSparse());
 
-            // read the size of the file
+            // wait until the server admits the request
+            readAdmission(is);
+
+            // read the agreed segment size & compression, then the size of the
+            // file
+            int agreedSegmentSize = is.readInt();
+            boolean agreedCompression = is.readBoolean();
             long fileSize = is.readLong();
             String fileName = NetUtils.readString(sis);
 
-            // read the contents of the file until its empty
+            // tell the server how much of the file we already have, and read
+            // the position that the server agreed to continue from; the file
+            // is received beside its final place, and only moved there once
+            // all of it has been received
             File file = new File(directory,fileName);
-            try(FileOutputStream fos = new FileOutputStream(file))
+            File partFile = FileUtils.partFile(file);
+            sendResumePoint(os,partFile);
+            long resumeOffset = is.readLong();
+
+            // preallocate the rest of the file, and read the contents of the
+            // file into their place until its empty, writing them on a writer
+            // thread so the disk doesn't hold up the network
+            int readResult;
+            try(RandomAccessFile raf = new RandomAccessFile(partFile,"rw");
+                FileSegmentReceiver receiver = new FileSegmentReceiver(sis,raf.getChannel(),resumeOffset,agreedSegmentSize,agreedCompression,true))
             {
-                long totalBytesRead = 0;
-                int readResult;
-                byte[] fileData = new byte[MAX_FILE_SEGMENT_SIZE];
-                do
+                raf.setLength(resumeOffset);
+                FileUtils.preallocate(raf,partFile,fileSize);
+                try
                 {
-                    // read the packet
-                    readResult = is.readInt();
-                    int segmentSize = Math.max(0,readResult);
-                    is.readFully(fileData,0,segmentSize);
-
-                    // write received bytes into the file
-                    fos.write(fileData,0,segmentSize);
+                    do
+                    {
+                        // read the packet, and write it into the file
+                        readResult = receiver.receiveSegment();
 
-                    // update total bytes read & the progress monitor
-                    progressMonitor.setProgress((int) (((float) totalBytesRead)/((float) fileSize)*100.0));
-                    totalBytesRead += segmentSize;
+                        // update the progress monitor
+                        progressMonitor.setProgress((int) (((float) receiver.getPosition())/((float) fileSize)*100.0));
 
-                    // stop the download if it is cancelled
-                    if(progressMonitor.isCanceled())
+                        // stop the download if it is cancelled
+                        if(progressMonitor.isCanceled())
+                        {
+                            sis.close();
+                            sos.close();
+                            break;
+                        }
+                    }
+                    while(readResult != FileSegmentSender.SEGMENT_END);
+                }
+                finally
+                {
+                    // truncate the file to the part that was downloaded, so
+                    // that the download can be resumed from there
+                    long writtenLength = receiver.drain();
+                    if(writtenLength < fileSize)
                     {
-                        sis.close();
-                        sos.close();
-                        break;
+                        raf.setLength(writtenLength);
                     }
                 }
-                while(readResult != -1);
+            }
+
+            // put the file in its place if all of it was received
+            if(readResult == FileSegmentSender.SEGMENT_END)
+            {
+                FileUtils.commitPartFile(partFile,file);
             }
             sis.close();
             sos.close();
@@ -237,103 +726,624 @@ public class AppServer extends Server
      *
      * @author  Eric Tsang
      *
+     * @param   client address of the client that issued the request.
      * @param   sos the connection that has issued the request.
      */
     @SuppressWarnings("ThrowFromFinallyBlock")
-    private void handlePullFile(SocketInputStream sis,SocketOutputStream sos) throws IOException
+    private void handlePullFile(InetAddress client,InputStream sis,OutputStream sos) throws IOException
     {
         // get references to the streams
         DataOutputStream os = new DataOutputStream(sos);
 
-        // read the path from the socket
+        // read the path, proposed segment size, compression & whether holes
+        // may be sent from the socket
+        DataInputStream is = new DataInputStream(sis);
         String path = NetUtils.readString(sis);
+        int agreedSegmentSize = negotiateSegmentSize(is.readInt());
+        boolean agreedCompression = negotiateCompression(is.readBoolean());
+        boolean sparse = is.readBoolean();
 
-        // send the file size, then file name
+        // wait until the transfer is admitted; the client is told to try
+        // again later instead if too many transfers are waiting already
         File fileToSend = new File(path);
-        os.writeLong(fileToSend.length());
-        NetUtils.sendString(sos,fileToSend.getName());
-
-        // read the contents of the file until its empty
-        try(FileInputStream fis = new FileInputStream(fileToSend))
+        try(AdmissionController.Permit permit = admit(os,fileToSend.length()))
         {
-            int readResult;
-            byte[] fileData = new byte[MAX_FILE_SEGMENT_SIZE];
-            do
+            if(permit == null)
             {
-                // gather data to create packet
-                readResult = fis.read(fileData);
-                int segmentSize = Math.max(0,readResult);
+                return;
+            }
+
+            // send the agreed segment size & compression, file size, then file
+            // name
+            os.writeInt(agreedSegmentSize);
+            os.writeBoolean(agreedCompression);
+            os.writeLong(fileToSend.length());
+            NetUtils.sendString(sos,fileToSend.getName());
+
+            // continue from the end of the part of the file that the client
+            // already has, if it matches ours
+            long resumeOffset = readResumePoint(is,fileToSend);
+            os.writeLong(resumeOffset);
+
+            // send small files that are pulled often from memory
+            ByteBuffer contents = contentCache.get(fileToSend);
+            if(contents != null)
+            {
+                try(FileSegmentSender sender = new FileSegmentSender(limitServerRate(client,sos),contents,resumeOffset,contents.remaining()-resumeOffset,agreedSegmentSize,agreedCompression,sparse))
+                {
+                    //noinspection StatementWithEmptyBody
+                    while(sender.sendSegment() != FileSegmentSender.SEGMENT_END);
+                }
+                return;
+            }
 
-                // send the packet
-                os.writeInt(readResult);
-                os.write(fileData,0,segmentSize);
+            // read the contents of the file until its empty, from the channel
+            // shared with other transfers of the same file
+            try(FileChannelCache.Handle handle = fileChannelCache.open(fileToSend))
+            {
+                FileChannel channel = handle.getChannel();
+                try(FileSegmentSender sender = new FileSegmentSender(limitServerRate(client,sos),channel,resumeOffset,channel.size()-resumeOffset,agreedSegmentSize,channel.size() >= mappedReadThreshold,agreedCompression,sparse))
+                {
+                    //noinspection StatementWithEmptyBody
+                    while(sender.sendSegment() != FileSegmentSender.SEGMENT_END);
+                }
             }
-            while(readResult != -1);
         }
     }
 
     /**
-     * pushes a local file to the remote server at the specified address.
+     * downloads the specified file from the server, by splitting it into byte
+     *   ranges that are pulled over several streams in parallel, and written
+     *   into their place in a preallocated local file.
      *
-     * @method  pushFile
+     * if part of the file was already downloaded by an earlier pull, only the
+     *   rest of the file is split up and downloaded. the file is downloaded
+     *   into a partial file beside it, which is only moved into its place once
+     *   all of it has been downloaded.
      *
-     * @date    2015-10-01T09:02:54-0800
+     * @method  pullFileRanges
+     *
+     * @date    2015-10-04T09:31:44-0800
      *
      * @author  Eric Tsang
      *
      * @param   remoteAddress the address of the remote host to connect to.
      * @param   progressMonitor updated to display the operation's progress.
-     * @param   directory directory on the remote server to save the file to.
+     * @param   remoteFile the file on the remote server; its length must be
+     *   known.
+     * @param   directory local directory to save the pulled file to.
+     * @param   options transfer parameters to propose to the server.
+     *
+     * @throws  IOException thrown when an IOException occurs on any of the
+     *   streams.
+     */
+    public static void pullFileRanges(InetSocketAddress remoteAddress,ProgressMonitor progressMonitor,JsonableFile remoteFile,File directory,TransferOptions options) throws IOException
+    {
+        // continue from the end of the part of the file we already have; start
+        // over if it turns out not to match the remote file
+        File file = new File(directory,remoteFile.getName());
+        File partFile = FileUtils.partFile(file);
+        long resumeOffset = partFile.isFile() && partFile.length() <= remoteFile.getLength() ? partFile.length() : 0;
+        if(!pullFileRanges(remoteAddress,progressMonitor,remoteFile,partFile,resumeOffset,options))
+        {
+            pullFileRanges(remoteAddress,progressMonitor,remoteFile,partFile,0,options);
+        }
+
+        // put the file in its place if all of it was downloaded; the partial
+        // file is truncated to the part without gaps otherwise
+        if(partFile.length() == remoteFile.getLength())
+        {
+            FileUtils.commitPartFile(partFile,file);
+        }
+    }
+
+    /**
+     * downloads the part of the specified file that comes after {@code
+     *   resumeOffset}, by splitting it into byte ranges that are pulled over
+     *   several streams in parallel, and written into their place in a
+     *   preallocated local file.
+     *
+     * if the download doesn't finish, the local file is truncated to the
+     *   part of it that was downloaded without gaps, so that the download can
+     *   be resumed later.
+     *
+     * @method  pullFileRanges
+     *
+     * @date    2015-10-04T13:40:51-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   remoteAddress the address of the remote host to connect to.
+     * @param   progressMonitor updated to display the operation's progress.
+     * @param   remoteFile the file on the remote server.
+     * @param   file the local file to save the pulled file to.
+     * @param   resumeOffset number of bytes at the beginning of the local file
+     *   that are believed to match the remote file already.
+     * @param   options transfer parameters to propose to the server.
+     *
+     * @return  true if the download went ahead; false if the beginning of the
+     *   local file didn't match the remote file, so nothing was downloaded.
+     *
+     * @throws  IOException thrown when an IOException occurs on any of the
+     *   streams.
+     */
+    private static boolean pullFileRanges(InetSocketAddress remoteAddress,ProgressMonitor progressMonitor,JsonableFile remoteFile,File file,long resumeOffset,TransferOptions options) throws IOException
+    {
+        // split the rest of the file into one range per stream
+        long fileSize = remoteFile.getLength();
+        long remaining = fileSize-resumeOffset;
+        int streamCount = (int) Math.max(1,Math.min(options.getStreamCount(),remaining/MIN_FILE_RANGE_SIZE));
+        long rangeSize = (remaining+streamCount-1)/streamCount;
+        long[] rangeLengths = new long[streamCount];
+        for(int i = 0; i < streamCount; i++)
+        {
+            rangeLengths[i] = Math.max(0,Math.min(rangeSize,remaining-i*rangeSize));
+        }
+
+        // checksum the part of the file we already have, so the server can
+        // verify it
+        long resumeChecksum = FileUtils.checksum(file,resumeOffset);
+
+        // drop whatever the file holds past the part we already have, since
+        // holes aren't written, then preallocate the file, and pull each range
+        // into its place
+        ExecutorService executor = Executors.newFixedThreadPool(streamCount);
+        try(RandomAccessFile raf = new RandomAccessFile(file,"rw"))
+        {
+            raf.setLength(resumeOffset);
+            FileUtils.preallocate(raf,file,fileSize);
+            FileChannel channel = raf.getChannel();
+            AtomicLong totalBytesRead = new AtomicLong(resumeOffset);
+            AtomicLongArray rangeBytesRead = new AtomicLongArray(streamCount);
+            AtomicBoolean aborted = new AtomicBoolean(false);
+            AtomicBoolean mismatched = new AtomicBoolean(false);
+            List<Future<?>> rangePulls = new LinkedList<>();
+            for(int i = 0; i < streamCount; i++)
+            {
+                // the first range also asks the server to verify the part of
+                // the file we already have
+                int rangeIndex = i;
+                long offset = resumeOffset+i*rangeSize;
+                long verifyLength = i == 0 ? resumeOffset : 0;
+                long verifyChecksum = i == 0 ? resumeChecksum : 0;
+                rangePulls.add(executor.submit(() ->
+                {
+                    if(!pullFileRange(remoteAddress,streamCount > 1,progressMonitor,remoteFile,channel,offset,rangeLengths[rangeIndex],verifyLength,verifyChecksum,options,totalBytesRead,rangeBytesRead,rangeIndex,aborted))
+                    {
+                        mismatched.set(true);
+                        aborted.set(true);
+                    }
+                    return null;
+                }));
+            }
+
+            // wait for all the ranges to finish; if one of them fails, tell
+            // the others to stop, and rethrow its exception once they have
+            IOException failure = null;
+            for(Future<?> rangePull : rangePulls)
+            {
+                try
+                {
+                    rangePull.get();
+                }
+                catch(ExecutionException e)
+                {
+                    aborted.set(true);
+                    if(failure == null)
+                    {
+                        failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+                    }
+                }
+                catch(InterruptedException e)
+                {
+                    aborted.set(true);
+                    Thread.currentThread().interrupt();
+                    if(failure == null)
+                    {
+                        failure = new InterruptedIOException();
+                    }
+                }
+            }
+
+            // the part of the file we have is not the beginning of the remote
+            // file; discard it
+            if(mismatched.get())
+            {
+                raf.setLength(0);
+                return false;
+            }
+
+            // truncate the file to the part that was downloaded without gaps,
+            // so that the download can be resumed from there
+            long contiguousLength = resumeOffset;
+            for(int i = 0; i < streamCount; i++)
+            {
+                contiguousLength += rangeBytesRead.get(i);
+                if(rangeBytesRead.get(i) < rangeLengths[i])
+                {
+                    raf.setLength(contiguousLength);
+                    break;
+                }
+            }
+
+            if(failure != null)
+            {
+                throw failure;
+            }
+            return true;
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * downloads a range of bytes of the specified file from the server, and
+     *   writes them into their place in the local file. the range is pulled
+     *   over a connection of its own if {@code dedicated} is set, and over a
+     *   channel of the session to the server otherwise.
+     *
+     * @method  pullFileRange
+     *
+     * @date    2015-10-04T09:38:17-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   remoteAddress the address of the remote host to connect to.
+     * @param   dedicated true to pull the range over a connection of its own;
+     *   false to pull it over the session.
+     * @param   progressMonitor updated to display the operation's progress.
+     * @param   remoteFile the file on the remote server.
+     * @param   channel channel to the local file to write the range into.
+     * @param   offset position of the first byte of the range in the file.
+     * @param   length number of bytes in the range.
+     * @param   verifyLength number of bytes at the beginning of the local file
+     *   that the server should verify match the remote file before sending
+     *   the range.
+     * @param   verifyChecksum checksum of the first {@code verifyLength} bytes
+     *   of the local file.
+     * @param   options transfer parameters to propose to the server.
+     * @param   totalBytesRead number of bytes of the file that have been
+     *   downloaded by all streams so far.
+     * @param   rangeBytesRead number of bytes downloaded by each stream.
+     * @param   rangeIndex index of this stream's element in {@code
+     *   rangeBytesRead}.
+     * @param   aborted set when the other streams have failed; the range is
+     *   abandoned when this is set.
+     *
+     * @return  true if the range was downloaded; false if the server found
+     *   that the beginning of the local file doesn't match the remote file.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private static boolean pullFileRange(InetSocketAddress remoteAddress,boolean dedicated,ProgressMonitor progressMonitor,JsonableFile remoteFile,FileChannel channel,long offset,long length,long verifyLength,long verifyChecksum,TransferOptions options,AtomicLong totalBytesRead,AtomicLongArray rangeBytesRead,int rangeIndex,AtomicBoolean aborted) throws IOException
+    {
+        // a file pulled over a single stream shares the session, so it doesn't
+        // wait for a connection to be set up
+        if(!dedicated)
+        {
+            try(Multiplexer.Channel request = openChannel(remoteAddress))
+            {
+                return pullFileRange(request.getInputStream(),request.getOutputStream(),progressMonitor,remoteFile,channel,offset,length,verifyLength,verifyChecksum,options,totalBytesRead,rangeBytesRead,rangeIndex,aborted);
+            }
+        }
+
+        // each stream needs its own local port to be told apart by the server;
+        // the ranges of a file pulled over several streams get a connection
+        // each instead of sharing the session, so each of them gets a
+        // congestion window of its own
+        try(ServerSocket serverSocket = ServerSocket.Companion.make(null);
+            Connection connection = Connection.connect(serverSocket,remoteAddress))
+        {
+            return pullFileRange(connection.getInputStream(),connection.getOutputStream(),progressMonitor,remoteFile,channel,offset,length,verifyLength,verifyChecksum,options,totalBytesRead,rangeBytesRead,rangeIndex,aborted);
+        }
+    }
+
+    /**
+     * sends a pull file range request through the passed streams, and writes
+     *   the range that is sent back into its place in the local file.
+     *
+     * @method  pullFileRange
+     *
+     * @date    2015-10-08T17:30:12-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   sis stream that the reply is read from.
+     * @param   sos stream that the request is sent through.
+     * @param   progressMonitor updated to display the operation's progress.
+     * @param   remoteFile the file on the remote server.
+     * @param   channel channel to the local file to write the range into.
+     * @param   offset position of the first byte of the range in the file.
+     * @param   length number of bytes in the range.
+     * @param   verifyLength number of bytes at the beginning of the local file
+     *   that the server should verify match the remote file before sending
+     *   the range.
+     * @param   verifyChecksum checksum of the first {@code verifyLength} bytes
+     *   of the local file.
+     * @param   options transfer parameters to propose to the server.
+     * @param   totalBytesRead number of bytes of the file that have been
+     *   downloaded by all streams so far.
+     * @param   rangeBytesRead number of bytes downloaded by each stream.
+     * @param   rangeIndex index of this stream's element in {@code
+     *   rangeBytesRead}.
+     * @param   aborted set when the other streams have failed; the range is
+     *   abandoned when this is set.
+     *
+     * @return  true if the range was downloaded; false if the server found
+     *   that the beginning of the local file doesn't match the remote file.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private static boolean pullFileRange(InputStream sis,OutputStream sos,ProgressMonitor progressMonitor,JsonableFile remoteFile,FileChannel channel,long offset,long length,long verifyLength,long verifyChecksum,TransferOptions options,AtomicLong totalBytesRead,AtomicLongArray rangeBytesRead,int rangeIndex,AtomicBoolean aborted) throws IOException
+    {
+        // get handles to the streams
+        DataInputStream is = new DataInputStream(sis);
+        DataOutputStream os = new DataOutputStream(sos);
+
+        // send the request, remoteFilePath, range, proposed segment size,
+        // compression & whether holes may be sent, and the part of the
+        // file for the server to verify
+        os.writeInt(TYPE_PULL_FILE_RANGE);
+        NetUtils.sendString(sos,remoteFile.getAbsolutePath());
+        os.writeLong(offset);
+        os.writeLong(length);
+        os.writeInt(options.getSegmentSize());
+        os.writeBoolean(options.isCompression());
+        os.writeBoolean(options.isSparse());
+        os.writeLong(verifyLength);
+        os.writeLong(verifyChecksum);
+
+        // wait until the server admits the request
+        readAdmission(is);
+
+        // read the agreed segment size & compression, then the size of the
+        // file, which must not have changed since the ranges were worked
+        // out
+        int agreedSegmentSize = is.readInt();
+        boolean agreedCompression = is.readBoolean();
+        long fileSize = is.readLong();
+        if(fileSize != remoteFile.getLength())
+        {
+            throw new IOException("remote file changed size from "+remoteFile.getLength()+" to "+fileSize+" bytes");
+        }
+
+        // the part of the file we have doesn't match; the server won't
+        // send the range
+        if(!is.readBoolean())
+        {
+            return false;
+        }
+
+        // read the contents of the range until its empty, writing them on
+        // a writer thread so the disk doesn't hold up the network
+        try(FileSegmentReceiver receiver = new FileSegmentReceiver(sis,channel,offset,agreedSegmentSize,agreedCompression,true))
+        {
+            try
+            {
+                int readResult;
+                do
+                {
+                    // read the packet, and write it into its place in the
+                    // file
+                    readResult = receiver.receiveSegment();
+                    int segmentSize = Math.max(0,readResult);
+
+                    // update total bytes read & the progress monitor
+                    rangeBytesRead.addAndGet(rangeIndex,segmentSize);
+                    long bytesRead = totalBytesRead.addAndGet(segmentSize);
+                    progressMonitor.setProgress((int) (((float) bytesRead)/((float) fileSize)*100.0));
+
+                    // stop the download if it is cancelled, or another
+                    // stream failed
+                    if(progressMonitor.isCanceled() || aborted.get())
+                    {
+                        break;
+                    }
+                }
+                while(readResult != FileSegmentSender.SEGMENT_END);
+            }
+            finally
+            {
+                // only count what was actually written towards the part
+                // of the range that can be resumed from
+                rangeBytesRead.set(rangeIndex,receiver.drain()-offset);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * invoked to handle a connection that has issued a pull file range
+     *   request.
+     *
+     * @method  handlePullFileRange
+     *
+     * @date    2015-10-04T09:45:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   client address of the client that issued the request.
+     * @param   sis input stream to read from
+     * @param   sos the connection that has issued the request.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void handlePullFileRange(InetAddress client,InputStream sis,OutputStream sos) throws IOException
+    {
+        // get references to the streams
+        DataInputStream is = new DataInputStream(sis);
+        DataOutputStream os = new DataOutputStream(sos);
+
+        // read the path, range, proposed segment size, compression & whether
+        // holes may be sent, and the part of the file to verify from the
+        // socket
+        String path = NetUtils.readString(sis);
+        long offset = is.readLong();
+        long length = is.readLong();
+        int agreedSegmentSize = negotiateSegmentSize(is.readInt());
+        boolean agreedCompression = negotiateCompression(is.readBoolean());
+        boolean sparse = is.readBoolean();
+        long verifyLength = is.readLong();
+        long verifyChecksum = is.readLong();
+        File fileToSend = new File(path);
+        boolean verified = verifyResumePoint(fileToSend,verifyLength,verifyChecksum);
+
+        // wait until the transfer is admitted; the client is told to try
+        // again later instead if too many transfers are waiting already
+        try(AdmissionController.Permit permit = admit(os,Math.max(0,Math.min(length,fileToSend.length()-offset))))
+        {
+            if(permit == null)
+            {
+                return;
+            }
+
+            // send the agreed segment size & compression, file size &
+            // verification result, then the part of the range that lies
+            // within the file; small files that are pulled often are sent
+            // from memory, others from the channel shared with other
+            // transfers of the same file
+            ByteBuffer contents = contentCache.get(fileToSend);
+            try(FileChannelCache.Handle handle = contents == null ? fileChannelCache.open(fileToSend) : null)
+            {
+                long fileSize = contents != null ? contents.remaining() : handle.getChannel().size();
+                os.writeInt(agreedSegmentSize);
+                os.writeBoolean(agreedCompression);
+                os.writeLong(fileSize);
+                os.writeBoolean(verified);
+                if(!verified)
+                {
+                    return;
+                }
+
+                // the ranges of the file that the client pulls at once share
+                // one transfer's rate limit
+                long rangeLength = Math.max(0,Math.min(length,fileSize-offset));
+                try(SharedRateLimiters<String>.Lease transferLimiter = rangeRateLimiters.acquire(client.getHostAddress()+" "+fileToSend.getCanonicalPath()))
+                {
+                    OutputStream limitedOs = limitServerRate(client,sos,transferLimiter);
+                    try(FileSegmentSender sender = contents != null
+                        ? new FileSegmentSender(limitedOs,contents,offset,rangeLength,agreedSegmentSize,agreedCompression,sparse)
+                        : new FileSegmentSender(limitedOs,handle.getChannel(),offset,rangeLength,agreedSegmentSize,fileSize >= mappedReadThreshold,agreedCompression,sparse))
+                    {
+                        //noinspection StatementWithEmptyBody
+                        while(sender.sendSegment() != FileSegmentSender.SEGMENT_END);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * pushes a local file to the remote server at the specified address. if
+     *   part of the file was already uploaded by an earlier push, the upload
+     *   continues from where it left off.
+     *
+     * if deduplication is enabled in {@code options}, the file's length and
+     *   content hash are sent first; if the server already has the same
+     *   contents, it puts them in place itself, and no file data is sent.
+     *
+     * @method  pushFile
+     *
+     * @date    2015-10-01T09:02:54-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   remoteAddress the address of the remote host to connect to.
+     * @param   progressMonitor updated to display the operation's progress.
+     * @param   directory directory on the remote server to save the file to.
      * @param   fileToSend local file to send to the remote server.
+     * @param   options transfer parameters to propose to the server.
      *
      * @throws  IOException thrown when an IOExeption occurs.
      */
-    public static void pushFile(InetSocketAddress remoteAddress,ProgressMonitor progressMonitor,String directory,File fileToSend) throws IOException
+    public static void pushFile(InetSocketAddress remoteAddress,ProgressMonitor progressMonitor,String directory,File fileToSend,TransferOptions options) throws IOException
     {
         // perform the push
-        try(ServerSocket serverSocket = ServerSocket.Companion.make(7001))
+        try(Multiplexer.Channel request = openChannel(remoteAddress))
         {
-            // connect to the remote address
-            SocketOutputStream sos = serverSocket.connect(remoteAddress,null);
-            SocketInputStream sis = serverSocket.accept(remoteAddress,null);
-            sis.close();
+            // open a channel to the remote address
+            OutputStream sos = request.getOutputStream();
+            InputStream sis = request.getInputStream();
 
             // get handles to the streams
+            DataInputStream is = new DataInputStream(sis);
             DataOutputStream os = new DataOutputStream(sos);
 
-            // send the request & path
+            // send the request, path, proposed segment size, compression &
+            // the length of the file, so the server can preallocate it
             os.writeInt(TYPE_PUSH_FILE);
             NetUtils.sendString(sos,directory);
             NetUtils.sendString(sos,fileToSend.getName());
+            os.writeInt(options.getSegmentSize());
+            os.writeBoolean(options.isCompression());
+            os.writeLong(fileToSend.length());
+
+            // send the content hash of the file, so the server can look for the
+            // same contents among the files it already has
+            os.writeBoolean(options.isDeduplication());
+            if(options.isDeduplication())
+            {
+                os.write(FileUtils.contentHash(fileToSend));
+            }
+
+            // wait until the server admits the request
+            readAdmission(is);
+
+            // read the segment size & compression that the server agreed to
+            // receive, and whether it already has the file
+            int agreedSegmentSize = is.readInt();
+            boolean agreedCompression = is.readBoolean();
+            if(is.readBoolean())
+            {
+                sos.close();
+                sis.close();
+                return;
+            }
+
+            // continue from the end of the part of the file that the server
+            // already has, if it matches ours
+            long resumeOffset = readResumePoint(is,fileToSend);
+            os.writeLong(resumeOffset);
 
             // read the contents of the file and send it all
-            try(FileInputStream fis = new FileInputStream(fileToSend))
+            try(FileChannel channel = FileChannel.open(fileToSend.toPath(),StandardOpenOption.READ);
+                FileSegmentSender sender = new FileSegmentSender(limitClientRate(sos,options),channel,resumeOffset,channel.size()-resumeOffset,agreedSegmentSize,false,agreedCompression,options.isSparse()))
             {
-                long bytesSent = 0;
-                int readResult;
-                byte[] buffer = new byte[MAX_FILE_SEGMENT_SIZE];
+                long bytesSent = resumeOffset;
+                int sendResult;
                 do
                 {
-                    // gather data to create packet...if the upload is
-                    // cancelled, tell the client that it is eof
-                    readResult = !progressMonitor.isCanceled()
-                            ? fis.read(buffer) : -1;
-                    int segmentSize = Math.max(0,readResult);
-
-                    // send the packet
-                    os.writeInt(readResult);
-                    os.write(buffer,0,segmentSize);
+                    // if the upload is cancelled, tell the server that it is
+                    // eof; send the next packet otherwise
+                    if(progressMonitor.isCanceled())
+                    {
+                        sender.sendEnd();
+                        break;
+                    }
+                    sendResult = sender.sendSegment();
 
                     // update the progress monitor
-                    bytesSent += segmentSize;
+                    bytesSent += Math.max(0,sendResult);
                     progressMonitor.setProgress((int) (((float) bytesSent)/((float) fileToSend.length())*100.0));
                 }
-                while(readResult != -1);
+                while(sendResult != FileSegmentSender.SEGMENT_END);
             }
 
-            // wait for connection to close before closing ourselves and returning
-            sis.close();
+            // wait for the server to verify & save what was sent
+            boolean received = is.readBoolean();
+
+            // signal that we are done sending, then wait for connection to
+            // close before closing ourselves and returning
             sos.close();
+            sis.close();
+            if(!received)
+            {
+                throw new IOException("remote host failed to save "+fileToSend.getName());
+            }
         }
     }
 
@@ -347,81 +1357,1300 @@ public class AppServer extends Server
      * @author  Eric Tsang
      *
      * @param   sis the connection that has issued the request.
+     * @param   sos stream used to reply to the connection.
      */
     @SuppressWarnings("ThrowFromFinallyBlock")
-    private void handlePushFile(SocketInputStream sis) throws IOException
+    private void handlePushFile(InputStream sis,OutputStream sos) throws IOException
     {
         // get handles to the streams
         DataInputStream is = new DataInputStream(sis);
+        DataOutputStream os = new DataOutputStream(sos);
 
-        // read the size of the file
+        // read the destination of the file, the proposed segment size,
+        // compression & the length of the file
         String directory = NetUtils.readString(sis);
         String fileName = NetUtils.readString(sis);
+        int agreedSegmentSize = negotiateSegmentSize(is.readInt());
+        boolean agreedCompression = negotiateCompression(is.readBoolean());
+        long contentLength = is.readLong();
 
-        // read the contents of the file until its empty
-        File file = new File(directory,fileName);
-        try(FileOutputStream fos = new FileOutputStream(file))
+        // read the content hash of the file, if the client sent it
+        byte[] contentHash = null;
+        if(is.readBoolean())
         {
-            int readResult;
-            byte[] fileData = new byte[MAX_FILE_SEGMENT_SIZE];
-            do
+            contentHash = new byte[FileUtils.CONTENT_HASH_SIZE];
+            is.readFully(contentHash);
+        }
+
+        // wait until the transfer is admitted; the client is told to try
+        // again later instead if too many transfers are waiting already
+        try(AdmissionController.Permit permit = admit(os,contentLength))
+        {
+            if(permit == null)
+            {
+                return;
+            }
+
+            // tell the client the segment size & compression we have agreed to
+            // receive, and whether we already have the file
+            File file = new File(directory,fileName);
+            File partFile = FileUtils.partFile(file);
+            os.writeInt(agreedSegmentSize);
+            os.writeBoolean(agreedCompression);
+            boolean deduplicated = contentHash != null && deduplicate(file,contentLength,contentHash);
+            os.writeBoolean(deduplicated);
+            if(deduplicated)
+            {
+                return;
+            }
+
+            // tell the client how much of the file we already have, then read
+            // the position that the client agreed to continue from; the file is
+            // received beside its final place, so it is never seen half
+            // written, and a file that shares its contents with others is
+            // replaced rather than written into
+            sendResumePoint(os,partFile);
+            long resumeOffset = is.readLong();
+
+            // preallocate the rest of the file, and read the contents of the
+            // file into their place until its empty, writing them on a writer
+            // thread so the disk doesn't hold up the network; put it in its
+            // place, and tell the client, once all of it has been verified &
+            // saved
+            boolean received = false;
+            try
+            {
+                try(RandomAccessFile raf = new RandomAccessFile(partFile,"rw");
+                    FileSegmentReceiver receiver = new FileSegmentReceiver(sis,raf.getChannel(),resumeOffset,agreedSegmentSize,agreedCompression,true))
+                {
+                    raf.setLength(resumeOffset);
+                    FileUtils.preallocate(raf,partFile,contentLength);
+                    try
+                    {
+                        //noinspection StatementWithEmptyBody
+                        while(receiver.receiveSegment() != FileSegmentSender.SEGMENT_END);
+                    }
+                    finally
+                    {
+                        // truncate the file to the part that was received, so
+                        // that the upload can be resumed from there
+                        long writtenLength = receiver.drain();
+                        if(writtenLength < contentLength)
+                        {
+                            raf.setLength(writtenLength);
+                        }
+                    }
+                }
+                FileUtils.commitPartFile(partFile,file);
+                received = true;
+            }
+            finally
             {
-                // read the packet
-                readResult = is.readInt();
-                int segmentSize = Math.max(0,readResult);
-                is.readFully(fileData,0,segmentSize);
+                os.writeBoolean(received);
+            }
 
-                // write received bytes into the file
-                fos.write(fileData,0,segmentSize);
+            // remember the contents of the file if all of it was received
+            if(contentHash != null && file.length() == contentLength)
+            {
+                contentIndex.add(file,contentHash);
             }
-            while(readResult != -1);
         }
     }
 
-    // protected interface: template method implementations
-
     /**
-     * callback invoked when a new connection is accepted by the server.
+     * pushes a local file to the remote server at the specified address, as a
+     *   delta against the copy of the file that the server already has; only
+     *   the parts of the file that the server's copy doesn't have are sent.
      *
-     * @method  onAccept
+     * the server sends the signature of its copy of the file, then we send the
+     *   file as a sequence of references to blocks of the server's copy, and
+     *   literal data for everything else. the server rebuilds the file beside
+     *   its copy, and only replaces its copy once the rebuilt file is verified.
      *
-     * @date    2015-09-29T18:31:40-0800
+     * @method  pushFileDelta
+     *
+     * @date    2015-10-05T10:52:19-0800
      *
      * @author  Eric Tsang
      *
-     * @param   sis the socket that was just accepted by the server.
+     * @param   remoteAddress the address of the remote host to connect to.
+     * @param   progressMonitor updated to display the operation's progress.
+     * @param   directory directory on the remote server to save the file to.
+     * @param   fileToSend local file to send to the remote server.
+     * @param   options transfer parameters to propose to the server.
+     *
+     * @throws  IOException thrown when an IOException occurs, or the file that
+     *   the server rebuilt is not the same as ours.
      */
-    @Override
-    protected void onAccept(SocketInputStream sis,SocketOutputStream sos)
+    public static void pushFileDelta(InetSocketAddress remoteAddress,ProgressMonitor progressMonitor,String directory,File fileToSend,TransferOptions options) throws IOException
     {
-        try
+        // perform the push
+        try(Multiplexer.Channel request = openChannel(remoteAddress))
         {
-            // get the input and output streams
+            // open a channel to the remote address
+            OutputStream sos = request.getOutputStream();
+            InputStream sis = request.getInputStream();
+
+            // get handles to the streams
             DataInputStream is = new DataInputStream(sis);
+            DataOutputStream os = new DataOutputStream(sos);
 
-            int requestType = is.readInt();
+            // send the request, path, proposed segment size, and the length
+            // of the file so the server can admit it by it
+            os.writeInt(TYPE_PUSH_FILE_DELTA);
+            NetUtils.sendString(sos,directory);
+            NetUtils.sendString(sos,fileToSend.getName());
+            os.writeInt(options.getSegmentSize());
+            os.writeLong(fileToSend.length());
+
+            // wait until the server admits the request
+            readAdmission(is);
+
+            // read the segment size that the server agreed to receive, and the
+            // signature of the server's copy of the file
+            int agreedSegmentSize = is.readInt();
+            FileSignature signature = FileSignature.read(is);
 
-            switch(requestType)
+            // read the file and send it as a delta against the server's copy
+            boolean verified = true;
+            try(FileChannel channel = FileChannel.open(fileToSend.toPath(),StandardOpenOption.READ))
             {
-            case TYPE_PULL_DIR_FILES:
-                handlePullDirectoryFiles(sis,sos);
-                break;
-            case TYPE_PULL_FILE:
-                handlePullFile(sis,sos);
-                break;
-            case TYPE_PUSH_FILE:
-                handlePushFile(sis);
-                break;
-            }
-        }
-        catch(IOException e)
-        {
-            throw new RuntimeException(e);
-        }
-        finally
-        {
+                FileDeltaSender sender = new FileDeltaSender(limitClientRate(sos,options),channel,signature,agreedSegmentSize);
+                int sendResult;
+                do
+                {
+                    // if the upload is cancelled, tell the server to discard
+                    // what it has so far; send the next part otherwise
+                    if(progressMonitor.isCanceled())
+                    {
+                        sender.sendCancel();
+                        break;
+                    }
+                    sendResult = sender.sendChunk();
+
+                    // update the progress monitor
+                    progressMonitor.setProgress((int) (((float) sender.getPosition())/((float) fileToSend.length())*100.0));
+                }
+                while(sendResult != FileSegmentSender.SEGMENT_END);
+
+                // read whether the server rebuilt the file correctly
+                if(!progressMonitor.isCanceled())
+                {
+                    verified = is.readBoolean();
+                }
+            }
+
+            // signal that we are done sending, then wait for connection to
+            // close before closing ourselves and returning
+            sos.close();
+            sis.close();
+            if(!verified)
+            {
+                throw new IOException("remote host failed to rebuild "+fileToSend.getName()+" from the delta");
+            }
+        }
+    }
+
+    /**
+     * invoked to handle a connection that has issued a delta push request.
+     *
+     * @method  handlePushFileDelta
+     *
+     * @date    2015-10-05T11:04:37-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   sis the connection that has issued the request.
+     * @param   sos stream used to reply to the connection.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void handlePushFileDelta(InputStream sis,OutputStream sos) throws IOException
+    {
+        // get handles to the streams
+        DataInputStream is = new DataInputStream(sis);
+        DataOutputStream os = new DataOutputStream(sos);
+
+        // read the destination of the file, the proposed segment size, and
+        // the length of the file that is pushed
+        String directory = NetUtils.readString(sis);
+        String fileName = NetUtils.readString(sis);
+        int agreedSegmentSize = negotiateSegmentSize(is.readInt());
+        long fileLength = is.readLong();
+
+        // wait until the transfer is admitted; the client is told to try
+        // again later instead if too many transfers are waiting already
+        try(AdmissionController.Permit permit = admit(os,Math.max(0,fileLength)))
+        {
+            if(permit == null)
+            {
+                return;
+            }
+
+            // tell the client the segment size we have agreed to receive, and
+            // the signature of our copy of the file
+            File file = new File(directory,fileName);
+            FileSignature signature = FileSignature.compute(file);
+            os.writeInt(agreedSegmentSize);
+            signature.write(os);
+
+            // rebuild the file beside our copy, so blocks can still be copied
+            // out of our copy while it is rebuilt
+            File rebuiltFile = File.createTempFile("."+fileName+".",".delta",file.getAbsoluteFile().getParentFile());
+            try
+            {
+                int op;
+                boolean verified;
+                try(FileChannel basis = signature.getBlockCount() > 0 ? FileChannel.open(file.toPath(),StandardOpenOption.READ) : null;
+                    FileChannel channel = FileChannel.open(rebuiltFile.toPath(),StandardOpenOption.WRITE))
+                {
+                    FileDeltaReceiver receiver = new FileDeltaReceiver(sis,basis,signature,channel,agreedSegmentSize);
+                    do
+                    {
+                        op = receiver.receiveOp();
+                    }
+                    while(op != FileSegmentSender.SEGMENT_END && op != FileDeltaSender.OP_CANCEL);
+                    verified = receiver.isVerified();
+                }
+
+                // the client cancelled the upload; discard the rebuilt file
+                if(op == FileDeltaSender.OP_CANCEL)
+                {
+                    return;
+                }
+
+                // replace our copy with the rebuilt file if it is correct, and
+                // let the client know how it went
+                if(verified)
+                {
+                    Files.move(rebuiltFile.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+                }
+                os.writeBoolean(verified);
+            }
+            finally
+            {
+                //noinspection ResultOfMethodCallIgnored
+                rebuiltFile.delete();
+            }
+        }
+    }
+
+    /**
+     * downloads the specified directory, and everything in it, from the
+     *   server over a single connection, and recreates it in the local
+     *   directory.
+     *
+     * @method  pullTree
+     *
+     * @date    2015-10-06T14:20:33-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   remoteAddress the address of the remote host to connect to.
+     * @param   progressMonitor updated to display the operation's progress.
+     * @param   remoteDirectoryPath path to the directory on the remote server.
+     * @param   directory local directory to save the pulled directory into.
+     * @param   options transfer parameters to propose to the server.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public static void pullTree(InetSocketAddress remoteAddress,ProgressMonitor progressMonitor,String remoteDirectoryPath,File directory,TransferOptions options) throws IOException
+    {
+        // perform the pull
+        try(Multiplexer.Channel request = openChannel(remoteAddress))
+        {
+            // open a channel to the remote address
+            OutputStream sos = request.getOutputStream();
+            InputStream sis = request.getInputStream();
+
+            // get handles to the streams
+            InputStream bis = new BufferedInputStream(sis,TREE_BUFFER_SIZE);
+            DataInputStream is = new DataInputStream(bis);
+            DataOutputStream os = new DataOutputStream(sos);
+
+            // send the request, remoteDirectoryPath, proposed segment size,
+            // compression, whether holes may be sent & batch threshold
+            os.writeInt(TYPE_PULL_TREE);
+            NetUtils.sendString(sos,remoteDirectoryPath);
+            os.writeInt(options.getSegmentSize());
+            os.writeBoolean(options.isCompression());
+            os.writeBoolean(options.isSparse());
+            os.writeInt(options.getBatchThreshold());
+
+            // wait until the server admits the request
+            readAdmission(is);
+
+            // read the agreed segment size & compression, then the name & size
+            // of the tree
+            int agreedSegmentSize = is.readInt();
+            boolean agreedCompression = is.readBoolean();
+            String treeName = is.readUTF();
+            long totalBytes = is.readLong();
+            if(!FileTreeReceiver.isValidName(treeName))
+            {
+                throw new IOException("invalid directory name: "+treeName);
+            }
+
+            // read the entries of the tree until its empty
+            try(FileTreeReceiver receiver = new FileTreeReceiver(bis,new File(directory,treeName),agreedSegmentSize,agreedCompression))
+            {
+                long bytesRead = 0;
+                int readResult;
+                do
+                {
+                    // read the next entry or segment
+                    readResult = receiver.receiveNext();
+
+                    // update the progress monitor
+                    bytesRead += Math.max(0,readResult);
+                    progressMonitor.setProgress((int) (((float) bytesRead)/((float) Math.max(1,totalBytes))*100.0));
+
+                    // stop the download if it is cancelled
+                    if(progressMonitor.isCanceled())
+                    {
+                        break;
+                    }
+                }
+                while(readResult != FileTreeSender.ENTRY_END);
+            }
+            finally
+            {
+                sis.close();
+                sos.close();
+            }
+        }
+    }
+
+    /**
+     * invoked to handle a connection that has issued a pull tree request.
+     *
+     * @method  handlePullTree
+     *
+     * @date    2015-10-06T14:28:51-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   client address of the client that issued the request.
+     * @param   sis input stream to read from
+     * @param   sos the connection that has issued the request.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void handlePullTree(InetAddress client,InputStream sis,OutputStream sos) throws IOException
+    {
+        // get references to the streams
+        DataInputStream is = new DataInputStream(sis);
+        OutputStream bos = new BufferedOutputStream(limitServerRate(client,sos),TREE_BUFFER_SIZE);
+        DataOutputStream os = new DataOutputStream(bos);
+
+        // read the path, proposed segment size, compression, whether holes may
+        // be sent & batch threshold from the socket
+        File directory = new File(NetUtils.readString(sis)).getAbsoluteFile();
+        int agreedSegmentSize = negotiateSegmentSize(is.readInt());
+        boolean agreedCompression = negotiateCompression(is.readBoolean());
+        boolean sparse = is.readBoolean();
+        int batchThreshold = is.readInt();
+
+        // wait until the transfer is admitted; the client is told to try
+        // again later instead if too many transfers are waiting already. then
+        // send the agreed segment size & compression, the name & size of the
+        // tree, then its entries
+        try(FileTreeSender sender = new FileTreeSender(bos,directory,agreedSegmentSize,agreedCompression,sparse,batchThreshold);
+            AdmissionController.Permit permit = admit(os,sender.getTotalBytes()))
+        {
+            if(permit == null)
+            {
+                return;
+            }
+            os.writeInt(agreedSegmentSize);
+            os.writeBoolean(agreedCompression);
+            os.writeUTF(directory.getName());
+            os.writeLong(sender.getTotalBytes());
+
+            //noinspection StatementWithEmptyBody
+            while(sender.sendNext() != FileTreeSender.ENTRY_END);
+        }
+    }
+
+    /**
+     * uploads a local directory, and everything in it, to the server over a
+     *   single connection.
+     *
+     * @method  pushTree
+     *
+     * @date    2015-10-06T14:33:06-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   remoteAddress the address of the remote host to connect to.
+     * @param   progressMonitor updated to display the operation's progress.
+     * @param   remoteDirectory directory on the remote server to save the
+     *   directory into.
+     * @param   directoryToSend local directory to send to the remote server.
+     * @param   options transfer parameters to propose to the server.
+     *
+     * @throws  IOException thrown when an IOException occurs, or the server
+     *   failed to save the directory.
+     */
+    public static void pushTree(InetSocketAddress remoteAddress,ProgressMonitor progressMonitor,String remoteDirectory,File directoryToSend,TransferOptions options) throws IOException
+    {
+        // perform the push
+        try(Multiplexer.Channel request = openChannel(remoteAddress))
+        {
+            // open a channel to the remote address
+            OutputStream sos = request.getOutputStream();
+            InputStream sis = request.getInputStream();
+
+            // get handles to the streams
+            DataInputStream is = new DataInputStream(sis);
+            OutputStream bos = new BufferedOutputStream(limitClientRate(sos,options),TREE_BUFFER_SIZE);
+            DataOutputStream os = new DataOutputStream(bos);
+
+            // send the request, path, proposed segment size & compression,
+            // and the size of the tree so the server can admit it by it
+            File directory = directoryToSend.getAbsoluteFile();
+            os.writeInt(TYPE_PUSH_TREE);
+            NetUtils.sendString(bos,remoteDirectory);
+            os.writeUTF(directory.getName());
+            os.writeInt(options.getSegmentSize());
+            os.writeBoolean(options.isCompression());
+            os.writeLong(FileTreeSender.getTotalBytes(directory));
+            os.flush();
+
+            // wait until the server admits the request
+            readAdmission(is);
+
+            // read the segment size & compression that the server agreed to
+            int agreedSegmentSize = is.readInt();
+            boolean agreedCompression = is.readBoolean();
+
+            // send the entries of the tree
+            boolean saved;
+            try(FileTreeSender sender = new FileTreeSender(bos,directory,agreedSegmentSize,agreedCompression,options.isSparse(),options.getBatchThreshold()))
+            {
+                long bytesSent = 0;
+                int sendResult;
+                do
+                {
+                    // if the upload is cancelled, tell the server that it is
+                    // the end of the tree; send the next part otherwise
+                    if(progressMonitor.isCanceled())
+                    {
+                        sender.sendEnd();
+                        break;
+                    }
+                    sendResult = sender.sendNext();
+
+                    // update the progress monitor
+                    bytesSent += Math.max(0,sendResult);
+                    progressMonitor.setProgress((int) (((float) bytesSent)/((float) Math.max(1,sender.getTotalBytes()))*100.0));
+                }
+                while(sendResult != FileTreeSender.ENTRY_END);
+
+                // wait for the server to finish saving the tree
+                saved = is.readBoolean();
+            }
+
+            // signal that we are done sending, then wait for connection to
+            // close before closing ourselves and returning
             sos.close();
             sis.close();
+            if(!saved)
+            {
+                throw new IOException("remote host failed to save "+directory.getName());
+            }
+        }
+    }
+
+    /**
+     * invoked to handle a connection that has issued a push tree request.
+     *
+     * @method  handlePushTree
+     *
+     * @date    2015-10-06T14:40:19-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   sis the connection that has issued the request.
+     * @param   sos stream used to reply to the connection.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void handlePushTree(InputStream sis,OutputStream sos) throws IOException
+    {
+        // get handles to the streams
+        InputStream bis = new BufferedInputStream(sis,TREE_BUFFER_SIZE);
+        DataInputStream is = new DataInputStream(bis);
+        DataOutputStream os = new DataOutputStream(sos);
+
+        // read the destination of the tree, the proposed segment size &
+        // compression, and the size of the tree
+        String directory = NetUtils.readString(bis);
+        String treeName = is.readUTF();
+        int agreedSegmentSize = negotiateSegmentSize(is.readInt());
+        boolean agreedCompression = negotiateCompression(is.readBoolean());
+        long treeBytes = is.readLong();
+        if(!FileTreeReceiver.isValidName(treeName))
+        {
+            throw new IOException("invalid directory name: "+treeName);
+        }
+
+        // wait until the transfer is admitted; the client is told to try
+        // again later instead if too many transfers are waiting already
+        try(AdmissionController.Permit permit = admit(os,Math.max(0,treeBytes)))
+        {
+            if(permit == null)
+            {
+                return;
+            }
+
+            // tell the client the segment size & compression we have agreed to
+            // receive
+            os.writeInt(agreedSegmentSize);
+            os.writeBoolean(agreedCompression);
+
+            // read the entries of the tree until its empty, and tell the client
+            // once all of it has been saved
+            boolean saved = false;
+            try
+            {
+                try(FileTreeReceiver receiver = new FileTreeReceiver(bis,new File(directory,treeName),agreedSegmentSize,agreedCompression))
+                {
+                    //noinspection StatementWithEmptyBody
+                    while(receiver.receiveNext() != FileTreeSender.ENTRY_END);
+                }
+                saved = true;
+            }
+            finally
+            {
+                os.writeBoolean(saved);
+            }
+        }
+    }
+
+    // private interface: sessions
+
+    /**
+     * opens a channel to the remote host over the session that this client has
+     *   open to it, opening a new session first if there is none, or it has
+     *   failed. requests sent over the channel don't have to wait for a
+     *   connection to be set up. channels to a host whose session is being
+     *   opened wait for it, without holding up channels to other hosts.
+     *
+     * @method  openChannel
+     *
+     * @date    2015-10-08T15:40:12-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   remoteAddress the address of the remote host.
+     *
+     * @return  a new channel to the remote host.
+     *
+     * @throws  IOException thrown when a session can't be opened.
+     */
+    private static Multiplexer.Channel openChannel(InetSocketAddress remoteAddress) throws IOException
+    {
+        // look up the session to the remote host, reserving it if there is
+        // none, so the lock isn't held while connecting, and connections to
+        // other hosts don't have to wait for this one
+        CompletableFuture<Multiplexer> pendingSession;
+        boolean opening = false;
+        synchronized(sessions)
+        {
+            pendingSession = sessions.get(remoteAddress);
+            if(pendingSession == null || pendingSession.isDone() && !pendingSession.join().isOpen())
+            {
+                pendingSession = new CompletableFuture<>();
+                sessions.put(remoteAddress,pendingSession);
+                opening = true;
+            }
+        }
+
+        // open the session if it was reserved by us; forget it if it couldn't
+        // be opened, so the next channel tries again
+        if(opening)
+        {
+            try
+            {
+                pendingSession.complete(openSession(remoteAddress));
+            }
+            catch(IOException|RuntimeException e)
+            {
+                synchronized(sessions)
+                {
+                    sessions.remove(remoteAddress,pendingSession);
+                }
+                pendingSession.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        // wait for the session to be opened otherwise
+        Multiplexer session;
+        try
+        {
+            session = pendingSession.get();
+        }
+        catch(ExecutionException e)
+        {
+            throw e.getCause() instanceof IOException
+                ? (IOException) e.getCause()
+                : new IOException(e.getCause());
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        return session.openChannel();
+    }
+
+    /**
+     * connects to the remote host, and asks it to keep the connection open as
+     *   a session that carries many channels. frames are read from the
+     *   session on a thread of its own until it is closed.
+     *
+     * @method  openSession
+     *
+     * @date    2015-10-08T15:41:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   remoteAddress the address of the remote host.
+     *
+     * @return  the new session.
+     *
+     * @throws  ServerBusyException thrown when the remote host has too many
+     *   sessions open already.
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private static Multiplexer openSession(InetSocketAddress remoteAddress) throws IOException
+    {
+        // bind to a port picked by the system, so sessions to many hosts,
+        // other clients on this host and a server on this host don't collide
+        ServerSocket serverSocket = ServerSocket.Companion.make(null);
+        try
+        {
+            // connect to the remote address, and ask for a session; the
+            // server tells us to try again later if it has too many open
+            Connection connection = Connection.connect(serverSocket,remoteAddress);
+            SocketOutputStream sos = connection.getOutputStream();
+            SocketInputStream sis = connection.getInputStream();
+            new DataOutputStream(sos).writeInt(TYPE_SESSION);
+            readAdmission(new DataInputStream(sis));
+
+            // read frames from the session until it is closed, then release
+            // its socket
+            Multiplexer session = new Multiplexer(sis,sos,null);
+            Thread readThread = new Thread(() ->
+            {
+                try
+                {
+                    session.run();
+                }
+                finally
+                {
+                    try
+                    {
+                        serverSocket.close();
+                    }
+                    catch(IOException e)
+                    {
+                        // do nothing; the session is over either way
+                    }
+                }
+            });
+            readThread.setDaemon(true);
+            readThread.start();
+            return session;
+        }
+        catch(IOException|RuntimeException e)
+        {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * invoked to handle a connection that has asked for a session; handles
+     *   each channel opened over it on the server's worker threads, as if it
+     *   were a connection of its own, until the session is closed. returns
+     *   right away; the connection is closed once the session is over.
+     *
+     * the client is told whether it got the session like it is told whether a
+     *   transfer was admitted; if too many sessions are open already, it is
+     *   told to try again later, and the connection must be closed by the
+     *   caller.
+     *
+     * @method  handleSession
+     *
+     * @date    2015-10-08T15:43:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   client address of the client that asked for the session.
+     * @param   sis the connection that has asked for a session.
+     * @param   sos stream used to reply to the connection.
+     *
+     * @return  true if the session was opened; false if it was rejected.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private boolean handleSession(InetAddress client,InputStream sis,OutputStream sos) throws IOException
+    {
+        // frames are read on a session reader instead of on the worker;
+        // clients keep their sessions open while idle, and enough of them
+        // would otherwise take up all the workers, leaving none for their
+        // requests. clients are told to back off once all the readers are
+        // taken
+        DataOutputStream os = new DataOutputStream(sos);
+        if(!sessionPermits.tryAcquire())
+        {
+            os.writeLong(admissionController.getRetryAfterMillis());
+            os.flush();
+            return false;
+        }
+
+        try
+        {
+            os.writeLong(0);
+            os.flush();
+            Multiplexer session = new Multiplexer(sis,sos,channel -> acceptChannel(client,channel));
+            sessionReaders.execute(() ->
+            {
+                try
+                {
+                    readSession(session);
+                }
+                finally
+                {
+                    sessionPermits.release();
+                }
+            });
+            return true;
+        }
+        catch(IOException|RuntimeException e)
+        {
+            sessionPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * reads frames from the passed session until it is closed, then closes
+     *   its connection.
+     *
+     * @method  readSession
+     *
+     * @date    2015-10-08T17:21:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   session the session to read frames from.
+     */
+    private void readSession(Multiplexer session)
+    {
+        try
+        {
+            session.run();
+        }
+        finally
+        {
+            try
+            {
+                session.close();
+            }
+            catch(IOException e)
+            {
+                // do nothing; the session is over either way
+            }
+        }
+    }
+
+    /**
+     * makes the pool of threads that sessions are read on; a virtual thread
+     *   per session if the JVM supports them, or a pool of platform threads
+     *   otherwise. the pool itself doesn't limit the number of threads; that
+     *   is up to {@code sessionPermits}.
+     *
+     * @method  makeSessionReaders
+     *
+     * @date    2015-10-08T17:21:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the pool of session reader threads.
+     */
+    private static ExecutorService makeSessionReaders()
+    {
+        ExecutorService virtualThreads = makeVirtualThreadExecutor();
+        if(virtualThreads != null)
+        {
+            return virtualThreads;
+        }
+
+        return new ThreadPoolExecutor(
+            0,Integer.MAX_VALUE,
+            SESSION_READER_KEEP_ALIVE_SECONDS,TimeUnit.SECONDS,
+            new SynchronousQueue<>());
+    }
+
+    /**
+     * invoked when a channel is opened over a session; hands it to the
+     *   server's worker threads to be handled, or resets it if too many
+     *   requests are waiting for one already.
+     *
+     * @method  acceptChannel
+     *
+     * @date    2015-10-08T15:55:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   client address of the client that opened the channel.
+     * @param   channel the channel that was opened.
+     */
+    private void acceptChannel(InetAddress client,Multiplexer.Channel channel)
+    {
+        try
+        {
+            execute(() -> handleChannel(client,channel));
+        }
+        catch(RejectedExecutionException e)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch(IOException closeException)
+            {
+                // do nothing; the channel is dropped either way
+            }
+        }
+    }
+
+    /**
+     * invoked to handle a channel that was opened over a session; reads the
+     *   request from it, and handles it.
+     *
+     * @method  handleChannel
+     *
+     * @date    2015-10-08T15:43:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   client address of the client that opened the channel.
+     * @param   channel the channel that was opened.
+     */
+    private void handleChannel(InetAddress client,Multiplexer.Channel channel)
+    {
+        try
+        {
+            try
+            {
+                InputStream sis = channel.getInputStream();
+                int requestType = new DataInputStream(sis).readInt();
+                handleRequest(requestType,client,sis,channel.getOutputStream());
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // private interface: protocol helpers
+
+    /**
+     * returns a stream that writes to the passed stream no faster than the
+     *   server's rate limits allow; used by the server to send the contents of
+     *   files.
+     *
+     * @method  limitServerRate
+     *
+     * @date    2015-10-08T10:25:47-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   client address of the client that the transfer is sent to.
+     * @param   os the stream of one transfer to limit.
+     *
+     * @return  a stream that writes to {@code os} no faster than the rate
+     *   limit of each transfer, and the client's share of the rate limit of
+     *   all the transfers together.
+     */
+    private OutputStream limitServerRate(InetAddress client,OutputStream os)
+    {
+        return limitServerRate(client,os,new RateLimiter(() -> transferRateLimit));
+    }
+
+    /**
+     * returns a stream that writes to the passed stream no faster than the
+     *   server's rate limits allow, taking the bytes of the transfer's rate
+     *   limit out of {@code transferLimiter}; used by the server to send
+     *   streams that are part of a larger transfer.
+     *
+     * @method  limitServerRate
+     *
+     * @date    2015-10-08T17:43:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   client address of the client that the transfer is sent to.
+     * @param   os the stream to limit.
+     * @param   transferLimiter limits the rate of the transfer that the
+     *   stream is part of.
+     *
+     * @return  a stream that writes to {@code os} no faster than {@code
+     *   transferLimiter} allows, and the client's share of the rate limit of
+     *   all the transfers together.
+     */
+    private OutputStream limitServerRate(InetAddress client,OutputStream os,Limiter transferLimiter)
+    {
+        return new RateLimitedOutputStream(os,transferLimiter,serverRateLimiter.limiterFor(client));
+    }
+
+    /**
+     * returns a stream that writes to the passed stream no faster than the
+     *   client's rate limit allows; used by the client to send the contents of
+     *   files.
+     *
+     * @method  limitClientRate
+     *
+     * @date    2015-10-08T10:26:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os the stream of the transfer to limit.
+     * @param   options the client's transfer options, whose rate limit is
+     *   read whenever bytes are written, so it can be changed during the
+     *   transfer.
+     *
+     * @return  a stream that writes to {@code os} no faster than the client's
+     *   rate limit.
+     */
+    private static OutputStream limitClientRate(OutputStream os,TransferOptions options)
+    {
+        return new RateLimitedOutputStream(os,new RateLimiter(options::getRateLimit));
+    }
+
+    /**
+     * waits until a transfer of {@code bytes} bytes is admitted, and tells the
+     *   client whether it was; used by the server before it replies to a
+     *   transfer request. the client is sent 0 if the transfer was admitted,
+     *   or the milliseconds it should wait before trying again if it was
+     *   rejected.
+     *
+     * @method  admit
+     *
+     * @date    2015-10-08T16:13:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os stream used to reply to the request.
+     * @param   bytes number of bytes that the transfer is expected to move.
+     *
+     * @return  the permit to run the transfer, which must be closed once it is
+     *   done; null if the transfer was rejected.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private AdmissionController.Permit admit(DataOutputStream os,long bytes) throws IOException
+    {
+        AdmissionController.Permit permit = admissionController.acquire(bytes);
+        try
+        {
+            os.writeLong(permit != null ? 0 : admissionController.getRetryAfterMillis());
+            os.flush();
+            return permit;
+        }
+        catch(IOException|RuntimeException e)
+        {
+            if(permit != null)
+            {
+                permit.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * reads the server's reply to whether it admitted a transfer request;
+     *   used by the client before it reads the rest of the reply.
+     *
+     * @method  readAdmission
+     *
+     * @date    2015-10-08T16:13:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   is stream that the reply is read from.
+     *
+     * @throws  ServerBusyException thrown when the server rejected the
+     *   request; it says how long to wait before trying again.
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private static void readAdmission(DataInputStream is) throws IOException
+    {
+        long retryAfterMillis = is.readLong();
+        if(retryAfterMillis > 0)
+        {
+            throw new ServerBusyException(retryAfterMillis);
+        }
+    }
+
+    /**
+     * returns the segment size that the server agrees to use for a transfer,
+     *   given the segment size that was proposed by the client.
+     *
+     * @method  negotiateSegmentSize
+     *
+     * @date    2015-10-03T10:21:37-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   proposedSegmentSize segment size proposed by the client.
+     *
+     * @return  the proposed segment size, clamped to the range of segment
+     *   sizes supported by the server.
+     */
+    private static int negotiateSegmentSize(int proposedSegmentSize)
+    {
+        return Math.max(MIN_FILE_SEGMENT_SIZE,Math.min(MAX_FILE_SEGMENT_SIZE,proposedSegmentSize));
+    }
+
+    /**
+     * returns true if the server agrees to compress a transfer, given whether
+     *   the client asked for it to be compressed.
+     *
+     * @method  negotiateCompression
+     *
+     * @date    2015-10-05T14:41:27-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   proposedCompression true if the client asked for the transfer
+     *   to be compressed.
+     *
+     * @return  true if the transfer is to be compressed.
+     */
+    private boolean negotiateCompression(boolean proposedCompression)
+    {
+        return proposedCompression && compressionEnabled;
+    }
+
+    /**
+     * puts a file with the passed contents at the passed path, using the
+     *   contents of a file that the server already has, if there is one.
+     *
+     * the file at the path itself is checked first, then the files that were
+     *   pushed with the same contents before. either way, the contents are
+     *   hashed again before they are relied on.
+     *
+     * @method  deduplicate
+     *
+     * @date    2015-10-06T09:48:22-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file the path to put the file at.
+     * @param   length length of the contents.
+     * @param   hash content hash of the contents.
+     *
+     * @return  true if the file is now at the path; false if the server
+     *   doesn't have the contents, and they need to be sent.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private boolean deduplicate(File file,long length,byte[] hash) throws IOException
+    {
+        // the file is already there
+        if(file.isFile() && file.length() == length && Arrays.equals(FileUtils.contentHash(file),hash))
+        {
+            contentIndex.add(file,hash);
+            return true;
+        }
+
+        // the same contents were pushed somewhere else
+        for(File candidate : contentIndex.find(length,hash))
+        {
+            if(!candidate.equals(file.getAbsoluteFile()) && Arrays.equals(FileUtils.contentHash(candidate),hash))
+            {
+                FileUtils.linkOrCopy(candidate,file);
+                contentIndex.add(file,hash);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * tells the remote host how much of a file we already have, by sending the
+     *   length of the partial file, and the checksum of its contents.
+     *
+     * @method  sendResumePoint
+     *
+     * @date    2015-10-04T13:52:26-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os stream to send the resume point through.
+     * @param   partialFile the part of the file that we already have; it may
+     *   not exist.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private static void sendResumePoint(DataOutputStream os,File partialFile) throws IOException
+    {
+        long length = partialFile.isFile() ? partialFile.length() : 0;
+        os.writeLong(length);
+        os.writeLong(FileUtils.checksum(partialFile,length));
+    }
+
+    /**
+     * reads a resume point sent with {@code sendResumePoint}, and returns the
+     *   position in the file that the transfer should continue from.
+     *
+     * @method  readResumePoint
+     *
+     * @date    2015-10-04T13:54:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   is stream to read the resume point from.
+     * @param   file our complete copy of the file.
+     *
+     * @return  the length of the remote host's partial file if it matches the
+     *   beginning of {@code file}; 0 otherwise.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private static long readResumePoint(DataInputStream is,File file) throws IOException
+    {
+        long length = is.readLong();
+        long checksum = is.readLong();
+        return verifyResumePoint(file,length,checksum) ? length : 0;
+    }
+
+    /**
+     * returns true if the first {@code length} bytes of {@code file} have the
+     *   passed checksum.
+     *
+     * @method  verifyResumePoint
+     *
+     * @date    2015-10-04T13:56:12-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file our complete copy of the file.
+     * @param   length length of the remote host's partial file.
+     * @param   checksum checksum of the remote host's partial file.
+     *
+     * @return  true if the remote host's partial file matches the beginning of
+     *   {@code file}; false otherwise.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private static boolean verifyResumePoint(File file,long length,long checksum) throws IOException
+    {
+        return length >= 0 && length <= file.length() && FileUtils.checksum(file,length) == checksum;
+    }
+
+    // protected interface: template method implementations
+
+    /**
+     * callback invoked when a new connection is accepted by the server.
+     *
+     * @method  onAccept
+     *
+     * @date    2015-09-29T18:31:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   sis the socket that was just accepted by the server.
+     */
+    @Override
+    protected void onAccept(SocketInputStream sis,SocketOutputStream sos)
+    {
+        boolean session = false;
+        try
+        {
+            // get the input and output streams
+            DataInputStream is = new DataInputStream(sis);
+
+            int requestType = is.readInt();
+            InetAddress client = ((InetSocketAddress) sis.getRemoteAddress()).getAddress();
+
+            // keep the connection open for more requests if it is a session;
+            // the session closes it once it is over
+            if(requestType == TYPE_SESSION)
+            {
+                session = handleSession(client,sis,sos);
+            }
+            else
+            {
+                handleRequest(requestType,client,sis,sos);
+            }
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            if(!session)
+            {
+                sos.close();
+                sis.close();
+            }
+        }
+    }
+
+    /**
+     * handles a request read from a connection, or a channel of a session.
+     *
+     * @method  handleRequest
+     *
+     * @date    2015-10-08T15:45:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   requestType the type of the request.
+     * @param   client address of the client that sent the request.
+     * @param   sis stream to read the rest of the request from.
+     * @param   sos stream used to reply to the request.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void handleRequest(int requestType,InetAddress client,InputStream sis,OutputStream sos) throws IOException
+    {
+        switch(requestType)
+        {
+        case TYPE_PULL_DIR_FILES:
+            handlePullDirectoryFiles(sis,sos);
+            break;
+        case TYPE_PULL_FILE:
+            handlePullFile(client,sis,sos);
+            break;
+        case TYPE_PUSH_FILE:
+            handlePushFile(sis,sos);
+            break;
+        case TYPE_PULL_FILE_RANGE:
+            handlePullFileRange(client,sis,sos);
+            break;
+        case TYPE_PUSH_FILE_DELTA:
+            handlePushFileDelta(sis,sos);
+            break;
+        case TYPE_PULL_TREE:
+            handlePullTree(client,sis,sos);
+            break;
+        case TYPE_PUSH_TREE:
+            handlePushTree(sis,sos);
+            break;
         }
     }
 }
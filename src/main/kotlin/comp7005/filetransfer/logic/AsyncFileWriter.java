@@ -0,0 +1,277 @@
+package comp7005.filetransfer.logic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * writes buffers into a file on a thread of its own, so whoever fills the
+ *   buffers doesn't have to wait for the disk.
+ *
+ * the writer owns a fixed ring of buffers. a filled buffer is handed over with
+ *   {@code write}, which returns an empty buffer to fill next; it only waits
+ *   if every buffer in the ring is still waiting to be written, so the disk
+ *   only slows down whoever fills the buffers when it really falls behind.
+ *
+ * buffers are written in the order they are handed over. once a write fails,
+ *   the buffers after it are discarded, and the failure is thrown by the next
+ *   call to {@code write} or {@code close}.
+ *
+ * @file    AsyncFileWriter.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   AsyncFileWriter
+ *
+ * @date    2015-10-07T16:10:33-0800
+ *
+ * @author  Eric Tsang
+ */
+public class AsyncFileWriter implements Closeable
+{
+    // constants: buffers
+
+    /**
+     * number of buffers in the ring.
+     */
+    public static final int RING_SIZE = 4;
+
+    // instance data: general
+
+    /**
+     * channel to the file that buffers are written into.
+     */
+    private final FileChannel channel;
+
+    /**
+     * the thread that buffers are written on.
+     */
+    private final ExecutorService writer;
+
+    /**
+     * the buffers that aren't waiting to be written, and can be filled.
+     */
+    private final BlockingQueue<ByteBuffer> emptyBuffers;
+
+    /**
+     * the first exception thrown on the writer thread; null if there has been
+     *   none.
+     */
+    private final AtomicReference<IOException> failure;
+
+    /**
+     * position in the file of the buffer whose write failed; {@code
+     *   Long.MAX_VALUE} if no write has failed.
+     */
+    private volatile long failedPosition;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a writer that writes buffers into the file open in {@code
+     *   channel}, with a ring of {@code RING_SIZE} buffers, each {@code
+     *   bufferSize} bytes large.
+     *
+     * @method  AsyncFileWriter
+     *
+     * @date    2015-10-07T16:13:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   channel channel to the file to write into.
+     * @param   bufferSize capacity of each buffer in bytes.
+     *
+     * @return  a new instance of AsyncFileWriter.
+     */
+    public AsyncFileWriter(FileChannel channel,int bufferSize)
+    {
+        this.channel = channel;
+        this.writer = Executors.newSingleThreadExecutor();
+        this.emptyBuffers = new ArrayBlockingQueue<>(RING_SIZE);
+        this.failure = new AtomicReference<>();
+        this.failedPosition = Long.MAX_VALUE;
+        for(int i = 0; i < RING_SIZE; i++)
+        {
+            emptyBuffers.add(ByteBuffer.allocate(bufferSize));
+        }
+    }
+
+    // public interface: server methods
+
+    /**
+     * takes an empty buffer out of the ring; used to get the first buffer to
+     *   fill.
+     *
+     * @method  takeBuffer
+     *
+     * @date    2015-10-07T16:14:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  an empty buffer.
+     *
+     * @throws  IOException thrown when interrupted while waiting for a buffer.
+     */
+    public ByteBuffer takeBuffer() throws IOException
+    {
+        try
+        {
+            ByteBuffer buffer = emptyBuffers.take();
+            buffer.clear();
+            return buffer;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * hands the passed buffer to the writer thread, to be written into the
+     *   file at the passed position, and returns an empty buffer to fill next,
+     *   waiting for one if every other buffer is still waiting to be written.
+     *
+     * @method  write
+     *
+     * @date    2015-10-07T16:16:11-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   buffer the buffer to write, from its position to its limit; it
+     *   must not be used again after it has been handed over.
+     * @param   position position in the file to write the buffer at.
+     *
+     * @return  an empty buffer.
+     *
+     * @throws  IOException thrown when an earlier write failed, or interrupted
+     *   while waiting for a buffer.
+     */
+    public ByteBuffer write(ByteBuffer buffer,long position) throws IOException
+    {
+        rethrowFailure();
+        writer.execute(() ->
+        {
+            try
+            {
+                // skip everything after the first failure
+                if(failure.get() == null)
+                {
+                    long writePosition = position;
+                    while(buffer.hasRemaining())
+                    {
+                        writePosition += channel.write(buffer,writePosition);
+                    }
+                }
+            }
+            catch(IOException e)
+            {
+                failedPosition = position;
+                failure.compareAndSet(null,e);
+            }
+            finally
+            {
+                emptyBuffers.add(buffer);
+            }
+        });
+        return takeBuffer();
+    }
+
+    /**
+     * waits for every buffer that was handed over so far to be written, and
+     *   returns the position in the file that was reached without a write
+     *   failing.
+     *
+     * @method  drain
+     *
+     * @date    2015-10-07T16:18:27-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   endPosition position in the file that the buffers handed over
+     *   so far end at.
+     *
+     * @return  {@code endPosition}, or the position of the first buffer whose
+     *   write failed.
+     *
+     * @throws  IOException thrown when interrupted while waiting.
+     */
+    public long drain(long endPosition) throws IOException
+    {
+        try
+        {
+            writer.submit(() -> {}).get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch(ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+        return Math.min(endPosition,failedPosition);
+    }
+
+    /**
+     * waits for every buffer that was handed over to be written, and stops
+     *   the writer thread.
+     *
+     * @method  close
+     *
+     * @date    2015-10-07T16:20:05-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when a write failed, or interrupted while
+     *   waiting.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        writer.shutdown();
+        try
+        {
+            while(!writer.awaitTermination(1,TimeUnit.SECONDS));
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        rethrowFailure();
+    }
+
+    // private interface: helpers
+
+    /**
+     * throws the first exception that was thrown on the writer thread, if
+     *   any.
+     *
+     * @method  rethrowFailure
+     *
+     * @date    2015-10-07T16:21:13-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException the first exception thrown on the writer thread.
+     */
+    private void rethrowFailure() throws IOException
+    {
+        IOException e = failure.get();
+        if(e != null)
+        {
+            throw new IOException(e.getMessage(),e);
+        }
+    }
+}
@@ -1,15 +1,18 @@
 package comp7005.filetransfer.logic;
 
+import comp7005.filetransfer.net.ServerBusyException;
+
 import java.awt.Component;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.swing.JOptionPane;
 import javax.swing.ProgressMonitor;
@@ -50,6 +53,70 @@ public class ClientLogic
      */
     private static final String MESSAGE_MISSING_HOSTNAME = "Nothing is not a valid hostname";
 
+    /**
+     * message displayed in the body of the dialog that prompts the user to
+     *   pick a queued transfer to manage.
+     */
+    private static final String PROMPT_PICK_QUEUED_TRANSFER = "Pick a queued transfer:";
+
+    /**
+     * message displayed in the body of the dialog that prompts the user to
+     *   pick what to do with a queued transfer.
+     */
+    private static final String PROMPT_PICK_QUEUE_ACTION = "What should be done with this transfer?";
+
+    /**
+     * message displayed in the body of the dialog indicating that there are no
+     *   queued transfers.
+     */
+    private static final String MESSAGE_QUEUE_EMPTY = "There are no queued transfers";
+
+    /**
+     * message displayed in the body of the dialog that prompts the user to
+     *   enter the most transfers that may run at once.
+     */
+    private static final String PROMPT_GET_MAX_CONCURRENT_TRANSFERS = "Enter the most transfers that may run at once:";
+
+    // constants: transfer queue
+
+    /**
+     * the actions that can be done with a queued transfer, as listed in the
+     *   dialog that prompts the user to pick one.
+     */
+    private static final String[] QUEUE_ACTIONS = {"Move to Front","Move to Back","Pause","Resume","Cancel Transfer"};
+
+    /**
+     * files smaller than this many bytes are scheduled as small transfers,
+     *   ahead of bulk transfers.
+     */
+    private static final long MAX_SMALL_FILE_LENGTH = 16*1024*1024;
+
+    // constants: busy server retries
+
+    /**
+     * number of times a transfer is sent to a server that is too busy to run
+     *   it before giving up.
+     */
+    private static final int MAX_BUSY_ATTEMPTS = 6;
+
+    /**
+     * milliseconds waited before sending a transfer to a busy server again the
+     *   first time; doubled every time after that.
+     */
+    private static final long MIN_BUSY_BACKOFF_MILLIS = 500;
+
+    /**
+     * the most milliseconds waited before sending a transfer to a busy server
+     *   again, not counting jitter.
+     */
+    private static final long MAX_BUSY_BACKOFF_MILLIS = 30000;
+
+    /**
+     * milliseconds between checks of whether the user cancelled a transfer
+     *   that is waiting to be sent to a busy server again.
+     */
+    private static final long CANCEL_POLL_MILLIS = 100;
+
     // constants: dialog titles
 
     /**
@@ -59,6 +126,12 @@ public class ClientLogic
      */
     private static final String TITLE_CONNECT_FAILED = "Error Connecting to Remote Host";
 
+    /**
+     * message displayed in the title of the dialog boxes used to manage the
+     *   queued transfers.
+     */
+    private static final String TITLE_TRANSFER_QUEUE = "Transfer Queue";
+
     // instance data: general
 
     /**
@@ -72,6 +145,13 @@ public class ClientLogic
      */
     private String currentRemoteDirectory;
 
+    /**
+     * names of the files in the current directory on the remote host, as of
+     *   the last time it was pulled; replaced by a new unmodifiable set each
+     *   time, since transfer threads read it while the directory is pulled.
+     */
+    private volatile Set<String> currentRemoteFileNames;
+
     /**
      * address of the remote host that this client is connected to.
      */
@@ -88,9 +168,14 @@ public class ClientLogic
     private RemoteListAdapter remoteListAdapter;
 
     /**
-     * a thread
+     * runs listings & transfers in the background, in order of priority.
+     */
+    private final TransferScheduler scheduler;
+
+    /**
+     * transfer parameters proposed to the remote host for every file transfer.
      */
-    private ThreadPoolExecutor threadPoolExecutor;
+    private final TransferOptions transferOptions;
 
     // public interface: constructors
 
@@ -109,10 +194,12 @@ public class ClientLogic
     {
         currentDirectory = new File(".");
         currentRemoteDirectory = ".";
+        currentRemoteFileNames = Collections.emptySet();
         remoteAddress = new InetSocketAddress("0.0.0.0",0);
         localListAdapter = new LocalListAdapter(this);
         remoteListAdapter = new RemoteListAdapter(this);
-        threadPoolExecutor = new ThreadPoolExecutor(1,1,1,TimeUnit.SECONDS,new LinkedBlockingQueue<>());
+        scheduler = new TransferScheduler(TransferScheduler.DEFAULT_MAX_CONCURRENT_TRANSFERS);
+        transferOptions = new TransferOptions();
     }
 
     // public interface: server methods
@@ -149,6 +236,24 @@ public class ClientLogic
         return remoteListAdapter;
     }
 
+    /**
+     * returns the transfer parameters proposed to the remote host for every
+     *   file transfer.
+     *
+     * @method  getTransferOptions
+     *
+     * @date    2015-10-03T10:30:12-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the transfer parameters proposed to the remote host for every
+     *   file transfer.
+     */
+    public TransferOptions getTransferOptions()
+    {
+        return transferOptions;
+    }
+
     /**
      * prompts the user to enter the required information needed to connect to a
      *   remote host.
@@ -180,9 +285,7 @@ public class ClientLogic
             remoteAddress = new InetSocketAddress(remoteHost,portNumber);
 
             // attempt to query files from the address right away
-            threadPoolExecutor.execute(() ->
-                            setRemoteDirectory(parentComponent,".")
-            );
+            queueSetRemoteDirectory(parentComponent,".");
         }
 
         // invalid port number
@@ -206,6 +309,182 @@ public class ClientLogic
         }
     }
 
+    /**
+     * schedules {@code pullFile} to run in the background; as a small transfer
+     *   if the file is known to be small, and as a bulk transfer otherwise.
+     *
+     * @method  queuePullFile
+     *
+     * @date    2015-10-08T13:22:05-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   parentComponent used to display dialog boxes.
+     * @param   file the file to download on the remote host.
+     */
+    public void queuePullFile(Component parentComponent,JsonableFile file)
+    {
+        TransferScheduler.Priority priority = file.getLength() >= 0 && file.getLength() < MAX_SMALL_FILE_LENGTH
+            ? TransferScheduler.Priority.SMALL
+            : TransferScheduler.Priority.BULK;
+        scheduler.submit(priority,makeDownloadingFileMessage(file.getAbsolutePath()),() -> pullFile(parentComponent,file));
+    }
+
+    /**
+     * schedules {@code pushFile} to run in the background; as a small transfer
+     *   if the file is small, and as a bulk transfer otherwise.
+     *
+     * @method  queuePushFile
+     *
+     * @date    2015-10-08T13:22:51-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   parentComponent used to display dialog boxes.
+     * @param   fileToSend file to upload.
+     */
+    public void queuePushFile(Component parentComponent,File fileToSend)
+    {
+        TransferScheduler.Priority priority = fileToSend.length() < MAX_SMALL_FILE_LENGTH
+            ? TransferScheduler.Priority.SMALL
+            : TransferScheduler.Priority.BULK;
+        scheduler.submit(priority,makeUploadingFileMessage(fileToSend),() -> pushFile(parentComponent,fileToSend));
+    }
+
+    /**
+     * schedules {@code pullDirectory} to run in the background as a bulk
+     *   transfer.
+     *
+     * @method  queuePullDirectory
+     *
+     * @date    2015-10-08T13:23:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   parentComponent used to display dialog boxes.
+     * @param   directory the directory to download on the remote host.
+     */
+    public void queuePullDirectory(Component parentComponent,JsonableFile directory)
+    {
+        scheduler.submit(TransferScheduler.Priority.BULK,makeDownloadingFileMessage(directory.getAbsolutePath()),() -> pullDirectory(parentComponent,directory));
+    }
+
+    /**
+     * schedules {@code pushDirectory} to run in the background as a bulk
+     *   transfer.
+     *
+     * @method  queuePushDirectory
+     *
+     * @date    2015-10-08T13:23:58-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   parentComponent used to display dialog boxes.
+     * @param   directoryToSend directory to upload.
+     */
+    public void queuePushDirectory(Component parentComponent,File directoryToSend)
+    {
+        scheduler.submit(TransferScheduler.Priority.BULK,makeUploadingFileMessage(directoryToSend),() -> pushDirectory(parentComponent,directoryToSend));
+    }
+
+    /**
+     * schedules {@code setRemoteDirectory} to run in the background as a
+     *   listing, which never waits for transfers.
+     *
+     * @method  queueSetRemoteDirectory
+     *
+     * @date    2015-10-08T13:24:31-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   parentComponent used to display dialog boxes.
+     * @param   path path to the directory on the remote host.
+     */
+    public void queueSetRemoteDirectory(Component parentComponent,String path)
+    {
+        scheduler.submit(TransferScheduler.Priority.LISTING,makePullingDirectoryFilesMessage(path),() -> setRemoteDirectory(parentComponent,path));
+    }
+
+    /**
+     * prompts the user to pick a queued transfer, and what to do with it;
+     *   move it to the front or back of its class, pause it, resume it, or
+     *   cancel it.
+     *
+     * @method  promptManageQueue
+     *
+     * @date    2015-10-08T13:26:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   parentComponent reference to the parent component used to
+     *   display dialog boxes.
+     */
+    public void promptManageQueue(Component parentComponent)
+    {
+        // get the transfer to manage from the user
+        Object[] tasks = scheduler.getQueuedTasks().toArray();
+        if(tasks.length == 0)
+        {
+            JOptionPane.showMessageDialog(parentComponent,MESSAGE_QUEUE_EMPTY,TITLE_TRANSFER_QUEUE,JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        TransferScheduler.Task task = (TransferScheduler.Task) JOptionPane.showInputDialog(parentComponent,PROMPT_PICK_QUEUED_TRANSFER,TITLE_TRANSFER_QUEUE,JOptionPane.PLAIN_MESSAGE,null,tasks,tasks[0]);
+        if(task == null)
+        {
+            return;
+        }
+
+        // get what to do with it from the user, and do it
+        int action = JOptionPane.showOptionDialog(parentComponent,PROMPT_PICK_QUEUE_ACTION+"\n"+task,TITLE_TRANSFER_QUEUE,JOptionPane.DEFAULT_OPTION,JOptionPane.QUESTION_MESSAGE,null,QUEUE_ACTIONS,QUEUE_ACTIONS[0]);
+        switch(action)
+        {
+        case 0:
+            scheduler.moveToFront(task);
+            break;
+        case 1:
+            scheduler.moveToBack(task);
+            break;
+        case 2:
+            scheduler.pause(task);
+            break;
+        case 3:
+            scheduler.resume(task);
+            break;
+        case 4:
+            scheduler.cancel(task);
+            break;
+        }
+    }
+
+    /**
+     * prompts the user to enter the most transfers that may run at once.
+     *
+     * @method  promptSetMaxConcurrentTransfers
+     *
+     * @date    2015-10-08T13:27:42-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   parentComponent reference to the parent component used to
+     *   display dialog boxes.
+     */
+    public void promptSetMaxConcurrentTransfers(Component parentComponent)
+    {
+        String input = JOptionPane.showInputDialog(parentComponent,PROMPT_GET_MAX_CONCURRENT_TRANSFERS,scheduler.getMaxConcurrentTransfers());
+        if(input == null)
+        {
+            return;
+        }
+        try
+        {
+            scheduler.setMaxConcurrentTransfers(Integer.parseInt(input.trim()));
+        }
+        catch(NumberFormatException e)
+        {
+            JOptionPane.showMessageDialog(parentComponent,makeInvalidNumberMessage(input),TITLE_TRANSFER_QUEUE,JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     /**
      * issues a download request to the remote host, and downloads the file.
      *
@@ -216,16 +495,24 @@ public class ClientLogic
      * @author  Eric Tsang
      *
      * @param   parentComponent used to display dialog boxes.
-     * @param   path path to the file to download on the remote host.
+     * @param   file the file to download on the remote host.
      */
-    public void pullFile(Component parentComponent,String path)
+    public void pullFile(Component parentComponent,JsonableFile file)
     {
-        ProgressMonitor progressMonitor = new ProgressMonitor(parentComponent,makeDownloadingFileMessage(path),null,0,100);
+        ProgressMonitor progressMonitor = new ProgressMonitor(parentComponent,makeDownloadingFileMessage(file.getAbsolutePath()),null,0,100);
 
         try
         {
+            // pull the file over parallel streams if we know how to split it
             progressMonitor.setMillisToDecideToPopup(0);
-            AppServer.pullFile(remoteAddress,progressMonitor,path,currentDirectory);
+            if(file.getLength() >= 0)
+            {
+                retryWhileBusy(progressMonitor,() -> AppServer.pullFileRanges(remoteAddress,progressMonitor,file,currentDirectory,transferOptions));
+            }
+            else
+            {
+                retryWhileBusy(progressMonitor,() -> AppServer.pullFile(remoteAddress,progressMonitor,file.getAbsolutePath(),currentDirectory,transferOptions));
+            }
             setLocalDirectory(currentDirectory.getAbsolutePath());
         }
 
@@ -260,8 +547,91 @@ public class ClientLogic
 
         try
         {
+            // only send what changed if the remote host already has a copy
             progressMonitor.setMillisToDecideToPopup(0);
-            AppServer.pushFile(remoteAddress,progressMonitor,currentRemoteDirectory,fileToSend);
+            if(transferOptions.isDeltaPush() && currentRemoteFileNames.contains(fileToSend.getName()))
+            {
+                retryWhileBusy(progressMonitor,() -> AppServer.pushFileDelta(remoteAddress,progressMonitor,currentRemoteDirectory,fileToSend,transferOptions));
+            }
+            else
+            {
+                retryWhileBusy(progressMonitor,() -> AppServer.pushFile(remoteAddress,progressMonitor,currentRemoteDirectory,fileToSend,transferOptions));
+            }
+            setRemoteDirectory(parentComponent,currentRemoteDirectory);
+        }
+
+        catch(IOException e)
+        {
+            JOptionPane.showMessageDialog(parentComponent,makeConnectFailedMessage(remoteAddress.getHostString(),remoteAddress.getPort()),TITLE_CONNECT_FAILED,JOptionPane.ERROR_MESSAGE);
+        }
+
+        // cleanup and end progress dialog
+        finally
+        {
+            progressMonitor.setProgress(100);
+            progressMonitor.close();
+        }
+    }
+
+    /**
+     * issues a download request for a directory to the remote host, and
+     *   downloads the directory and everything in it into the current local
+     *   directory.
+     *
+     * @method  pullDirectory
+     *
+     * @date    2015-10-06T14:52:08-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   parentComponent used to display dialog boxes.
+     * @param   directory the directory to download on the remote host.
+     */
+    public void pullDirectory(Component parentComponent,JsonableFile directory)
+    {
+        ProgressMonitor progressMonitor = new ProgressMonitor(parentComponent,makeDownloadingFileMessage(directory.getAbsolutePath()),null,0,100);
+
+        try
+        {
+            progressMonitor.setMillisToDecideToPopup(0);
+            retryWhileBusy(progressMonitor,() -> AppServer.pullTree(remoteAddress,progressMonitor,directory.getAbsolutePath(),currentDirectory,transferOptions));
+            setLocalDirectory(currentDirectory.getAbsolutePath());
+        }
+
+        catch(IOException e)
+        {
+            JOptionPane.showMessageDialog(parentComponent,makeConnectFailedMessage(remoteAddress.getHostString(),remoteAddress.getPort()),TITLE_CONNECT_FAILED,JOptionPane.ERROR_MESSAGE);
+        }
+
+        // cleanup and end progress dialog
+        finally
+        {
+            progressMonitor.setProgress(100);
+            progressMonitor.close();
+        }
+    }
+
+    /**
+     * issues an upload request for a directory to the remote host, and uploads
+     *   the directory and everything in it into the current remote directory.
+     *
+     * @method  pushDirectory
+     *
+     * @date    2015-10-06T14:54:37-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   parentComponent used to display dialog boxes.
+     * @param   directoryToSend directory to upload.
+     */
+    public void pushDirectory(Component parentComponent,File directoryToSend)
+    {
+        ProgressMonitor progressMonitor = new ProgressMonitor(parentComponent,makeUploadingFileMessage(directoryToSend),null,0,100);
+
+        try
+        {
+            progressMonitor.setMillisToDecideToPopup(0);
+            retryWhileBusy(progressMonitor,() -> AppServer.pushTree(remoteAddress,progressMonitor,currentRemoteDirectory,directoryToSend,transferOptions));
             setRemoteDirectory(parentComponent,currentRemoteDirectory);
         }
 
@@ -320,6 +690,15 @@ public class ClientLogic
             progressMonitor.close();
         }
 
+        Set<String> fileNames = new HashSet<>();
+        for(JsonableFile file : files)
+        {
+            if(!file.isDirectory())
+            {
+                fileNames.add(file.getName());
+            }
+        }
+        currentRemoteFileNames = Collections.unmodifiableSet(fileNames);
         getRemoteListAdapter().present(files);
     }
 
@@ -362,6 +741,79 @@ public class ClientLogic
         getLocalListAdapter().present(files);
     }
 
+    // private interface: busy server retries
+
+    /**
+     * a transfer that can be sent to the server again.
+     */
+    private interface Transfer
+    {
+        void run() throws IOException;
+    }
+
+    /**
+     * runs the passed transfer, and runs it again if the server was too busy
+     *   to run it. the client waits at least as long as the server asked
+     *   between attempts, backing off further after each one, plus a random
+     *   jitter of up to half as long again, so that clients that were
+     *   rejected together don't all come back together.
+     *
+     * @method  retryWhileBusy
+     *
+     * @date    2015-10-08T16:15:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   progressMonitor checked to stop waiting if the user cancels
+     *   the transfer.
+     * @param   transfer the transfer to run.
+     *
+     * @throws  ServerBusyException thrown when the server is still busy after
+     *   {@code MAX_BUSY_ATTEMPTS} attempts, or the user cancelled the transfer
+     *   while it was waiting to try again.
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private static void retryWhileBusy(ProgressMonitor progressMonitor,Transfer transfer) throws IOException
+    {
+        for(int attempt = 1;; attempt++)
+        {
+            try
+            {
+                transfer.run();
+                return;
+            }
+            catch(ServerBusyException e)
+            {
+                if(attempt >= MAX_BUSY_ATTEMPTS || progressMonitor.isCanceled())
+                {
+                    throw e;
+                }
+
+                // wait before trying again; if the user cancels the transfer
+                // meanwhile, fail with the server's rejection, as if they had
+                // cancelled before it came
+                long backoff = Math.max(e.getRetryAfterMillis(),Math.min(MAX_BUSY_BACKOFF_MILLIS,MIN_BUSY_BACKOFF_MILLIS<<(attempt-1)));
+                long retryTime = System.currentTimeMillis()+backoff+ThreadLocalRandom.current().nextLong(backoff/2+1);
+                try
+                {
+                    while(System.currentTimeMillis() < retryTime)
+                    {
+                        if(progressMonitor.isCanceled())
+                        {
+                            throw e;
+                        }
+                        Thread.sleep(Math.max(0,Math.min(CANCEL_POLL_MILLIS,retryTime-System.currentTimeMillis())));
+                    }
+                }
+                catch(InterruptedException interruptedException)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
     // private interface: dialog message builders
 
     /**
@@ -484,4 +936,24 @@ public class ClientLogic
     {
         return "The specified port number ("+portNumber+") is out of range; valid port numbers range from 1 to 65535";
     }
+
+    /**
+     * returns a message that indicates to the user that the specified number
+     *   is invalid.
+     *
+     * @method  makeInvalidNumberMessage
+     *
+     * @date    2015-10-08T13:28:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   stringNumber number that is invalid.
+     *
+     * @return  a message that indicates to the user that the specified number
+     *   is invalid.
+     */
+    private String makeInvalidNumberMessage(String stringNumber)
+    {
+        return "\""+stringNumber+"\" is not a valid number";
+    }
 }
@@ -0,0 +1,447 @@
+package comp7005.filetransfer.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * keeps the contents of small files that the server sends often in memory,
+ *   outside of the heap, so that sending them again doesn't have to read them
+ *   from the disk.
+ *
+ * contents are looked up by the canonical path of their file, and are only
+ *   used while the file's size, modification time & identity are the same as
+ *   when it was read; a file that has changed or been replaced is read again.
+ *
+ * contents are evicted by a segmented LRU policy, so that a burst of files
+ *   that are sent once doesn't push out the files that are sent all the time:
+ *   files are cached on probation when they are first read, and move to the
+ *   protected segment when they are sent again while on probation. once the
+ *   protected segment takes up more than {@code PROTECTED_FRACTION} of the
+ *   cache, its least recently used files are put back on probation, and files
+ *   are only ever evicted from probation, least recently used first.
+ *
+ * the buffers of evicted contents are freed by the garbage collector once the
+ *   transfers that are still sending them are done, so memory use may go over
+ *   the capacity for a while after files are evicted.
+ *
+ * @file    ContentCache.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   ContentCache
+ *
+ * @date    2015-10-08T17:02:40-0800
+ *
+ * @author  Eric Tsang
+ */
+public class ContentCache
+{
+    // constants: defaults
+
+    /**
+     * the most bytes of contents that are cached by default.
+     */
+    public static final long DEFAULT_CAPACITY = 64L*1024*1024;
+
+    /**
+     * size of the largest file whose contents are cached by default.
+     */
+    public static final long DEFAULT_MAX_FILE_SIZE = 1024*1024;
+
+    // constants: eviction
+
+    /**
+     * fraction of the capacity that the protected segment may take up before
+     *   its least recently used files are put back on probation.
+     */
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    // instance data: limits
+
+    /**
+     * the most bytes of contents that are cached.
+     */
+    private long capacity;
+
+    /**
+     * size of the largest file whose contents are cached.
+     */
+    private long maxFileSize;
+
+    // instance data: segments
+
+    /**
+     * contents that have been sent once since they were last cached or put
+     *   back on probation, by the canonical paths of their files, from the
+     *   least to the most recently used.
+     */
+    private final LinkedHashMap<String,Entry> probation;
+
+    /**
+     * contents that have been sent more than once, by the canonical paths of
+     *   their files, from the least to the most recently used.
+     */
+    private final LinkedHashMap<String,Entry> protectedEntries;
+
+    /**
+     * number of bytes of contents cached in {@code protectedEntries}.
+     */
+    private long protectedSize;
+
+    /**
+     * number of bytes of contents cached in both segments together.
+     */
+    private long size;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a content cache with the default limits.
+     *
+     * @method  ContentCache
+     *
+     * @date    2015-10-08T17:03:22-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  a new instance of ContentCache.
+     */
+    public ContentCache()
+    {
+        this.capacity = DEFAULT_CAPACITY;
+        this.maxFileSize = DEFAULT_MAX_FILE_SIZE;
+        this.probation = new LinkedHashMap<>(16,0.75f,true);
+        this.protectedEntries = new LinkedHashMap<>(16,0.75f,true);
+        this.protectedSize = 0;
+        this.size = 0;
+    }
+
+    // public interface: server methods
+
+    /**
+     * returns the contents of the passed file, reading them into the cache if
+     *   they aren't cached already, or the file has changed since they were.
+     *
+     * @method  get
+     *
+     * @date    2015-10-08T17:04:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file the file whose contents to return.
+     *
+     * @return  a read-only buffer holding the contents of the file, between its
+     *   position & limit; null if the file isn't a regular file, is too large
+     *   to be cached, or changed while it was being read.
+     *
+     * @throws  IOException thrown when the file can't be read.
+     */
+    public ByteBuffer get(File file) throws IOException
+    {
+        String key = file.getCanonicalPath();
+        Path path = new File(key).toPath();
+        BasicFileAttributes attributes = Files.readAttributes(path,BasicFileAttributes.class);
+
+        // return the cached contents if the file hasn't changed since they
+        // were read, forgetting them otherwise
+        synchronized(this)
+        {
+            Entry entry = lookup(key);
+            if(entry != null)
+            {
+                if(entry.matches(attributes))
+                {
+                    return entry.contents.duplicate();
+                }
+                remove(key,entry);
+            }
+            if(!attributes.isRegularFile() || attributes.size() > Math.min(maxFileSize,capacity))
+            {
+                return null;
+            }
+        }
+
+        // read the file outside of the lock, so other files can be sent
+        // meanwhile; give up if the file changed while it was being read
+        ByteBuffer contents = ByteBuffer.allocateDirect((int) attributes.size());
+        try(FileChannel channel = FileChannel.open(path,StandardOpenOption.READ))
+        {
+            while(contents.hasRemaining())
+            {
+                if(channel.read(contents,contents.position()) == -1)
+                {
+                    return null;
+                }
+            }
+        }
+        contents.flip();
+        Entry entry = new Entry(contents.asReadOnlyBuffer(),attributes);
+        if(!entry.matches(Files.readAttributes(path,BasicFileAttributes.class)))
+        {
+            return null;
+        }
+
+        // cache the contents on probation, unless somebody else cached them
+        // first, and make room for them
+        synchronized(this)
+        {
+            if(!probation.containsKey(key) && !protectedEntries.containsKey(key))
+            {
+                probation.put(key,entry);
+                size += entry.contents.capacity();
+                evict();
+            }
+        }
+        return entry.contents.duplicate();
+    }
+
+    // public interface: getters & setters
+
+    /**
+     * returns the most bytes of contents that are cached.
+     *
+     * @method  getCapacity
+     *
+     * @date    2015-10-08T17:05:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the most bytes of contents that are cached.
+     */
+    public synchronized long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * sets the most bytes of contents that are cached; contents are evicted
+     *   right away if it was lowered.
+     *
+     * @method  setCapacity
+     *
+     * @date    2015-10-08T17:05:14-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   capacity the most bytes of contents that are cached; 0 to
+     *   cache nothing.
+     */
+    public synchronized void setCapacity(long capacity)
+    {
+        this.capacity = Math.max(0,capacity);
+        evict();
+    }
+
+    /**
+     * returns the size of the largest file whose contents are cached.
+     *
+     * @method  getMaxFileSize
+     *
+     * @date    2015-10-08T17:05:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the size of the largest file whose contents are cached.
+     */
+    public synchronized long getMaxFileSize()
+    {
+        return maxFileSize;
+    }
+
+    /**
+     * sets the size of the largest file whose contents are cached; contents
+     *   that are cached already stay cached if it was lowered.
+     *
+     * @method  setMaxFileSize
+     *
+     * @date    2015-10-08T17:05:44-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   maxFileSize the size of the largest file whose contents are
+     *   cached; at most {@code Integer.MAX_VALUE}.
+     */
+    public synchronized void setMaxFileSize(long maxFileSize)
+    {
+        this.maxFileSize = Math.max(0,Math.min(Integer.MAX_VALUE,maxFileSize));
+    }
+
+    // private interface: helpers
+
+    /**
+     * returns the cached contents of the file with the passed canonical path,
+     *   counting it as a use; contents that are used while on probation are
+     *   moved to the protected segment.
+     *
+     * @method  lookup
+     *
+     * @date    2015-10-08T17:06:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   key canonical path of the file.
+     *
+     * @return  the cached contents of the file; null if there are none.
+     */
+    private Entry lookup(String key)
+    {
+        Entry entry = protectedEntries.get(key);
+        if(entry != null)
+        {
+            return entry;
+        }
+        entry = probation.remove(key);
+        if(entry != null)
+        {
+            protectedEntries.put(key,entry);
+            protectedSize += entry.contents.capacity();
+            evict();
+        }
+        return entry;
+    }
+
+    /**
+     * forgets the passed cached contents of the file with the passed canonical
+     *   path.
+     *
+     * @method  remove
+     *
+     * @date    2015-10-08T17:06:52-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   key canonical path of the file.
+     * @param   entry the cached contents of the file.
+     */
+    private void remove(String key,Entry entry)
+    {
+        if(protectedEntries.remove(key) != null)
+        {
+            protectedSize -= entry.contents.capacity();
+        }
+        else
+        {
+            probation.remove(key);
+        }
+        size -= entry.contents.capacity();
+    }
+
+    /**
+     * puts the least recently used contents of the protected segment back on
+     *   probation until it fits in its share of the capacity, then evicts the
+     *   least recently used contents on probation until everything fits.
+     *
+     * @method  evict
+     *
+     * @date    2015-10-08T17:07:24-0800
+     *
+     * @author  Eric Tsang
+     */
+    private void evict()
+    {
+        Iterator<Map.Entry<String,Entry>> iterator = protectedEntries.entrySet().iterator();
+        while(protectedSize > capacity*PROTECTED_FRACTION && iterator.hasNext())
+        {
+            Map.Entry<String,Entry> demoted = iterator.next();
+            iterator.remove();
+            protectedSize -= demoted.getValue().contents.capacity();
+            probation.put(demoted.getKey(),demoted.getValue());
+        }
+
+        Iterator<Entry> victims = probation.values().iterator();
+        while(size > capacity && victims.hasNext())
+        {
+            size -= victims.next().contents.capacity();
+            victims.remove();
+        }
+    }
+
+    // private interface: entries
+
+    /**
+     * the cached contents of a file, and the state of the file when they were
+     *   read.
+     *
+     * @class   Entry
+     *
+     * @date    2015-10-08T17:03:40-0800
+     *
+     * @author  Eric Tsang
+     */
+    private static class Entry
+    {
+        /**
+         * read-only buffer holding the contents of the file.
+         */
+        private final ByteBuffer contents;
+
+        /**
+         * size of the file when it was read.
+         */
+        private final long size;
+
+        /**
+         * modification time of the file when it was read.
+         */
+        private final long lastModifiedTime;
+
+        /**
+         * identity of the file when it was read, if the file system has one;
+         *   null otherwise.
+         */
+        private final Object fileKey;
+
+        /**
+         * instantiates an entry for contents that were just read.
+         *
+         * @method  Entry
+         *
+         * @date    2015-10-08T17:03:52-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   contents read-only buffer holding the contents of the file.
+         * @param   attributes attributes of the file when it was read.
+         *
+         * @return  a new instance of Entry.
+         */
+        private Entry(ByteBuffer contents,BasicFileAttributes attributes)
+        {
+            this.contents = contents;
+            this.size = attributes.size();
+            this.lastModifiedTime = attributes.lastModifiedTime().toMillis();
+            this.fileKey = attributes.fileKey();
+        }
+
+        /**
+         * returns true if the file is the same as when it was read, according
+         *   to the passed attributes.
+         *
+         * @method  matches
+         *
+         * @date    2015-10-08T17:04:00-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   attributes the attributes of the file now.
+         *
+         * @return  true if the file hasn't changed.
+         */
+        private boolean matches(BasicFileAttributes attributes)
+        {
+            return size == attributes.size()
+                && lastModifiedTime == attributes.lastModifiedTime().toMillis()
+                && Objects.equals(fileKey,attributes.fileKey());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package comp7005.filetransfer.logic;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * remembers which files on the server have which contents, keyed by their
+ *   length and content hash, so content that was already uploaded once can be
+ *   found again without being sent over the network.
+ *
+ * a file is forgotten as soon as it is found to have changed length or
+ *   modification time since it was recorded. files that haven't changed that
+ *   way are only candidates; their contents should still be hashed before
+ *   they are relied on.
+ *
+ * only the most recently recorded contents are remembered.
+ *
+ * @file    ContentIndex.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   ContentIndex
+ *
+ * @date    2015-10-06T09:25:14-0800
+ *
+ * @author  Eric Tsang
+ */
+public class ContentIndex
+{
+    // constants: limits
+
+    /**
+     * the most distinct contents remembered at a time.
+     */
+    private static final int MAX_CONTENTS = 10000;
+
+    // instance data: general
+
+    /**
+     * maps keys made of a length and content hash to the files that were
+     *   recorded with them, least recently recorded first.
+     */
+    private final LinkedHashMap<String,List<Record>> entries;
+
+    // public interface: constructors
+
+    /**
+     * instantiates an empty content index.
+     *
+     * @method  ContentIndex
+     *
+     * @date    2015-10-06T09:26:32-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  a new instance of ContentIndex.
+     */
+    public ContentIndex()
+    {
+        entries = new LinkedHashMap<String,List<Record>>(16,0.75f,true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,List<Record>> eldest)
+            {
+                return size() > MAX_CONTENTS;
+            }
+        };
+    }
+
+    // public interface: server methods
+
+    /**
+     * records that the passed file has the passed content hash as it is now.
+     *
+     * @method  add
+     *
+     * @date    2015-10-06T09:27:50-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file the file.
+     * @param   hash the file's content hash.
+     */
+    public synchronized void add(File file,byte[] hash)
+    {
+        File absoluteFile = file.getAbsoluteFile();
+        List<Record> files = entries.computeIfAbsent(makeKey(file.length(),hash),k -> new LinkedList<>());
+        files.removeIf(record -> record.file.equals(absoluteFile));
+        files.add(new Record(absoluteFile));
+    }
+
+    /**
+     * returns the files that were recorded with the passed length and content
+     *   hash, and haven't changed since.
+     *
+     * @method  find
+     *
+     * @date    2015-10-06T09:29:11-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   length length of the contents to look for.
+     * @param   hash content hash of the contents to look for.
+     *
+     * @return  the files that may have the contents; possibly empty.
+     */
+    public synchronized List<File> find(long length,byte[] hash)
+    {
+        List<File> files = new LinkedList<>();
+        List<Record> candidates = entries.get(makeKey(length,hash));
+        if(candidates == null)
+        {
+            return files;
+        }
+
+        // forget the files that have changed since they were recorded
+        for(Iterator<Record> it = candidates.iterator(); it.hasNext();)
+        {
+            Record record = it.next();
+            if(record.isUnchanged())
+            {
+                files.add(record.file);
+            }
+            else
+            {
+                it.remove();
+            }
+        }
+        return files;
+    }
+
+    // private interface: helpers
+
+    /**
+     * returns the key that contents with the passed length and content hash
+     *   are recorded under.
+     *
+     * @method  makeKey
+     *
+     * @date    2015-10-06T09:30:37-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   length length of the contents.
+     * @param   hash content hash of the contents.
+     *
+     * @return  the key that the contents are recorded under.
+     */
+    private static String makeKey(long length,byte[] hash)
+    {
+        StringBuilder key = new StringBuilder().append(length).append('/');
+        for(byte b : hash)
+        {
+            key.append(String.format("%02x",b));
+        }
+        return key.toString();
+    }
+
+    // private interface: records
+
+    /**
+     * a file, and its length and modification time when it was recorded.
+     */
+    private static class Record
+    {
+        /**
+         * the file that was recorded.
+         */
+        private final File file;
+
+        /**
+         * length of the file when it was recorded.
+         */
+        private final long length;
+
+        /**
+         * modification time of the file when it was recorded.
+         */
+        private final long lastModified;
+
+        /**
+         * instantiates a record of the passed file as it is now.
+         *
+         * @method  Record
+         *
+         * @date    2015-10-06T09:32:05-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   file the file to record.
+         *
+         * @return  a new instance of Record.
+         */
+        private Record(File file)
+        {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        /**
+         * returns true if the file still exists, and has the same length and
+         *   modification time as when it was recorded.
+         *
+         * @method  isUnchanged
+         *
+         * @date    2015-10-06T09:32:48-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @return  true if the file seems to be unchanged since it was
+         *   recorded.
+         */
+        private boolean isUnchanged()
+        {
+            return file.isFile() && file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+}
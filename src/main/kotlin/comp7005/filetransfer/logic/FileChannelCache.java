@@ -0,0 +1,373 @@
+package comp7005.filetransfer.logic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * keeps the files that the server sends open, so that many transfers of the
+ *   same file share one read-only channel, instead of each of them opening
+ *   the file again.
+ *
+ * channels are looked up by the canonical path of their file, and are only
+ *   reused while the file's size, modification time & identity are the same as
+ *   when it was opened; a file that has changed or been replaced is opened
+ *   again. the channels must only be read with positional reads & maps, since
+ *   they are shared.
+ *
+ * at most {@code capacity} channels are kept open; the least recently used
+ *   ones that aren't in use are closed to make room. channels that are in use
+ *   are only closed once the last transfer using them is done with them.
+ *
+ * @file    FileChannelCache.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   FileChannelCache
+ *
+ * @date    2015-10-08T16:45:12-0800
+ *
+ * @author  Eric Tsang
+ */
+public class FileChannelCache
+{
+    // constants: limits
+
+    /**
+     * the most channels that are kept open by caches that have not been
+     *   configured otherwise.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    // instance data: general
+
+    /**
+     * the most channels that are kept open, not counting ones that are in use.
+     */
+    private final int capacity;
+
+    /**
+     * the open channels by the canonical paths of their files, from the least
+     *   to the most recently used.
+     */
+    private final LinkedHashMap<String,Entry> entries;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a cache that keeps at most {@code capacity} channels open.
+     *
+     * @method  FileChannelCache
+     *
+     * @date    2015-10-08T16:46:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   capacity the most channels that are kept open.
+     *
+     * @return  a new instance of FileChannelCache.
+     */
+    public FileChannelCache(int capacity)
+    {
+        this.capacity = Math.max(1,capacity);
+        this.entries = new LinkedHashMap<>(16,0.75f,true);
+    }
+
+    // public interface: server methods
+
+    /**
+     * returns a handle to a read-only channel of the passed file; the channel
+     *   is opened if it isn't open already, or the file has changed since it
+     *   was opened. the handle must be closed once the channel is no longer
+     *   needed.
+     *
+     * @method  open
+     *
+     * @date    2015-10-08T16:47:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file the file to open.
+     *
+     * @return  a handle to a channel of the file.
+     *
+     * @throws  IOException thrown when the file can't be opened.
+     */
+    public Handle open(File file) throws IOException
+    {
+        String key = file.getCanonicalPath();
+        Path path = new File(key).toPath();
+        BasicFileAttributes attributes = Files.readAttributes(path,BasicFileAttributes.class);
+
+        synchronized(this)
+        {
+            // forget the open channel if the file has changed since
+            Entry entry = entries.get(key);
+            if(entry != null && !entry.matches(attributes))
+            {
+                entries.remove(key);
+                entry.cached = false;
+                closeIfUnused(entry);
+                entry = null;
+            }
+
+            // open the file if it isn't open, making room for it if needed
+            if(entry == null)
+            {
+                entry = new Entry(FileChannel.open(path,StandardOpenOption.READ),attributes);
+                entries.put(key,entry);
+                evict();
+            }
+
+            entry.references++;
+            return new Handle(entry);
+        }
+    }
+
+    // private interface: helpers
+
+    /**
+     * closes the least recently used channels that aren't in use until no
+     *   more than {@code capacity} are open, or all of them are in use.
+     *
+     * @method  evict
+     *
+     * @date    2015-10-08T16:48:20-0800
+     *
+     * @author  Eric Tsang
+     */
+    private void evict()
+    {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while(entries.size() > capacity && iterator.hasNext())
+        {
+            Entry entry = iterator.next();
+            if(entry.references == 0)
+            {
+                iterator.remove();
+                entry.cached = false;
+                closeIfUnused(entry);
+            }
+        }
+    }
+
+    /**
+     * closes the channel of the passed entry if it is no longer in the cache,
+     *   and no longer in use.
+     *
+     * @method  closeIfUnused
+     *
+     * @date    2015-10-08T16:48:52-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   entry the entry to close.
+     */
+    private void closeIfUnused(Entry entry)
+    {
+        if(!entry.cached && entry.references == 0)
+        {
+            try
+            {
+                entry.channel.close();
+            }
+            catch(IOException e)
+            {
+                // do nothing; nothing else will use the channel
+            }
+        }
+    }
+
+    /**
+     * gives back a handle to the channel of the passed entry; the channel is
+     *   closed if it was the last handle, and the channel was evicted or
+     *   replaced meanwhile. evicts channels if the cache is over capacity
+     *   because all of its channels were in use.
+     *
+     * @method  release
+     *
+     * @date    2015-10-08T16:49:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   entry the entry whose handle is given back.
+     */
+    private synchronized void release(Entry entry)
+    {
+        entry.references--;
+        closeIfUnused(entry);
+        evict();
+    }
+
+    // private interface: entries
+
+    /**
+     * an open channel, and the state of its file when it was opened.
+     *
+     * @class   Entry
+     *
+     * @date    2015-10-08T16:46:20-0800
+     *
+     * @author  Eric Tsang
+     */
+    private static class Entry
+    {
+        /**
+         * the open channel.
+         */
+        private final FileChannel channel;
+
+        /**
+         * size of the file when it was opened.
+         */
+        private final long size;
+
+        /**
+         * modification time of the file when it was opened.
+         */
+        private final long lastModifiedTime;
+
+        /**
+         * identity of the file when it was opened, if the file system has
+         *   one; null otherwise.
+         */
+        private final Object fileKey;
+
+        /**
+         * number of handles to the channel that haven't been closed.
+         */
+        private int references;
+
+        /**
+         * true while the entry is in the cache.
+         */
+        private boolean cached;
+
+        /**
+         * instantiates an entry for a channel that was just opened.
+         *
+         * @method  Entry
+         *
+         * @date    2015-10-08T16:46:40-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   channel the open channel.
+         * @param   attributes attributes of the file when it was opened.
+         *
+         * @return  a new instance of Entry.
+         */
+        private Entry(FileChannel channel,BasicFileAttributes attributes)
+        {
+            this.channel = channel;
+            this.size = attributes.size();
+            this.lastModifiedTime = attributes.lastModifiedTime().toMillis();
+            this.fileKey = attributes.fileKey();
+            this.references = 0;
+            this.cached = true;
+        }
+
+        /**
+         * returns true if the file is the same as when it was opened,
+         *   according to the passed attributes.
+         *
+         * @method  matches
+         *
+         * @date    2015-10-08T16:47:00-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   attributes the attributes of the file now.
+         *
+         * @return  true if the file hasn't changed.
+         */
+        private boolean matches(BasicFileAttributes attributes)
+        {
+            return size == attributes.size()
+                && lastModifiedTime == attributes.lastModifiedTime().toMillis()
+                && Objects.equals(fileKey,attributes.fileKey());
+        }
+    }
+
+    // public interface: handles
+
+    /**
+     * a reference to a shared channel; the channel may only be used until the
+     *   handle is closed.
+     *
+     * @class   Handle
+     *
+     * @date    2015-10-08T16:47:40-0800
+     *
+     * @author  Eric Tsang
+     */
+    public class Handle implements Closeable
+    {
+        /**
+         * the entry of the channel; null once the handle is closed.
+         */
+        private Entry entry;
+
+        /**
+         * instantiates a handle to the channel of the passed entry.
+         *
+         * @method  Handle
+         *
+         * @date    2015-10-08T16:47:52-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   entry the entry of the channel.
+         *
+         * @return  a new instance of Handle.
+         */
+        private Handle(Entry entry)
+        {
+            this.entry = entry;
+        }
+
+        /**
+         * returns the shared channel; it must only be read with positional
+         *   reads & maps, and must not be closed.
+         *
+         * @method  getChannel
+         *
+         * @date    2015-10-08T16:48:02-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @return  the shared channel.
+         */
+        public FileChannel getChannel()
+        {
+            return entry.channel;
+        }
+
+        /**
+         * gives back the handle; does nothing if it was given back already.
+         *
+         * @method  close
+         *
+         * @date    2015-10-08T16:48:10-0800
+         *
+         * @author  Eric Tsang
+         */
+        @Override
+        public void close()
+        {
+            if(entry != null)
+            {
+                release(entry);
+                entry = null;
+            }
+        }
+    }
+}
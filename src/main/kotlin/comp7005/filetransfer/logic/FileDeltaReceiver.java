@@ -0,0 +1,245 @@
+package comp7005.filetransfer.logic;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * receives the ops sent by a {@code FileDeltaSender} from an input stream, and
+ *   rebuilds the sender's file from them, and from the local version of the
+ *   file that the delta was worked out against.
+ *
+ * @file    FileDeltaReceiver.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   FileDeltaReceiver
+ *
+ * @date    2015-10-05T10:31:48-0800
+ *
+ * @author  Eric Tsang
+ */
+public class FileDeltaReceiver
+{
+    // instance data: general
+
+    /**
+     * the stream that ops are read from.
+     */
+    private final DataInputStream is;
+
+    /**
+     * channel to the local version of the file that blocks are copied from;
+     *   null if there is no local version.
+     */
+    private final FileChannel basis;
+
+    /**
+     * signature of the local version of the file.
+     */
+    private final FileSignature signature;
+
+    /**
+     * channel to the file that is being rebuilt.
+     */
+    private final FileChannel channel;
+
+    /**
+     * buffer that holds the data that is being written into the file.
+     */
+    private final ByteBuffer segment;
+
+    /**
+     * digest of the file that has been rebuilt so far.
+     */
+    private final MessageDigest fileDigest;
+
+    /**
+     * digest of the whole file, as sent by the sender at the end of the delta;
+     *   null until then.
+     */
+    private byte[] expectedFileDigest;
+
+    /**
+     * position in the file that the next op is written to.
+     */
+    private long position;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a receiver that rebuilds the file into {@code channel}.
+     *
+     * @method  FileDeltaReceiver
+     *
+     * @date    2015-10-05T10:33:25-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   is the stream to read ops from.
+     * @param   basis channel to the local version of the file that the delta
+     *   was worked out against; null if there is none.
+     * @param   signature signature of the local version of the file.
+     * @param   channel channel to the file to rebuild the file into.
+     * @param   segmentSize maximum number of literal bytes per op.
+     *
+     * @return  a new instance of FileDeltaReceiver.
+     */
+    public FileDeltaReceiver(InputStream is,FileChannel basis,FileSignature signature,FileChannel channel,int segmentSize)
+    {
+        this.is = new DataInputStream(is);
+        this.basis = basis;
+        this.signature = signature;
+        this.channel = channel;
+        this.segment = ByteBuffer.allocate(Math.max(segmentSize,signature.getBlockSize()));
+        this.fileDigest = FileSignature.newStrongDigest();
+    }
+
+    // public interface: server methods
+
+    /**
+     * reads the next op from the stream, and applies it to the file.
+     *
+     * @method  receiveOp
+     *
+     * @date    2015-10-05T10:35:52-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the header of the op that was received; the number of literal
+     *   bytes that were written, {@code FileDeltaSender.OP_COPY}, {@code
+     *   FileDeltaSender.OP_CANCEL}, or {@code FileSegmentSender.SEGMENT_END}.
+     *
+     * @throws  IOException thrown when an IOException occurs, or the op is
+     *   malformed.
+     */
+    public int receiveOp() throws IOException
+    {
+        int header = is.readInt();
+        switch(header)
+        {
+        case FileSegmentSender.SEGMENT_END:
+            expectedFileDigest = new byte[FileSignature.STRONG_CHECKSUM_SIZE];
+            is.readFully(expectedFileDigest);
+            break;
+        case FileDeltaSender.OP_CANCEL:
+            break;
+        case FileDeltaSender.OP_COPY:
+            copyBlocks(is.readInt(),is.readInt());
+            break;
+        default:
+            if(header <= 0 || header > segment.capacity())
+            {
+                throw new IOException("invalid op header: "+header);
+            }
+            is.readFully(segment.array(),segment.arrayOffset(),header);
+            segment.clear();
+            segment.limit(header);
+            write();
+            break;
+        }
+        return header;
+    }
+
+    /**
+     * returns true if the rebuilt file has the checksum that the sender sent
+     *   at the end of the delta.
+     *
+     * @method  isVerified
+     *
+     * @date    2015-10-05T10:37:14-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  true if the rebuilt file is the same as the sender's file; false
+     *   if it isn't, or the end of the delta hasn't been received yet.
+     */
+    public boolean isVerified()
+    {
+        return expectedFileDigest != null && MessageDigest.isEqual(expectedFileDigest,fileDigest.digest());
+    }
+
+    /**
+     * returns the position in the file that the next op is written to.
+     *
+     * @method  getPosition
+     *
+     * @date    2015-10-05T10:37:52-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the position in the file that the next op is written to.
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    // private interface: op handlers
+
+    /**
+     * copies a run of blocks from the local version of the file into the file
+     *   that is being rebuilt.
+     *
+     * @method  copyBlocks
+     *
+     * @date    2015-10-05T10:39:26-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   firstBlock index of the first block to copy.
+     * @param   blockCount number of consecutive blocks to copy.
+     *
+     * @throws  IOException thrown when an IOException occurs, or the blocks
+     *   don't exist.
+     */
+    private void copyBlocks(int firstBlock,int blockCount) throws IOException
+    {
+        if(basis == null || firstBlock < 0 || blockCount <= 0 || (long) firstBlock+blockCount > signature.getBlockCount())
+        {
+            throw new IOException("invalid block run: "+blockCount+" blocks from block "+firstBlock);
+        }
+
+        long basisPosition = (long) firstBlock*signature.getBlockSize();
+        long endPosition = Math.min(signature.getFileLength(),(long) (firstBlock+blockCount)*signature.getBlockSize());
+        while(basisPosition < endPosition)
+        {
+            segment.clear();
+            segment.limit((int) Math.min(segment.capacity(),endPosition-basisPosition));
+            while(segment.hasRemaining())
+            {
+                if(basis.read(segment,basisPosition+segment.position()) == -1)
+                {
+                    throw new IOException("local file was truncated during the transfer");
+                }
+            }
+            basisPosition += segment.limit();
+            segment.flip();
+            write();
+        }
+    }
+
+    /**
+     * writes the contents of the segment buffer into the file, and adds them
+     *   to the file's digest.
+     *
+     * @method  write
+     *
+     * @date    2015-10-05T10:41:05-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void write() throws IOException
+    {
+        fileDigest.update(segment.array(),segment.arrayOffset(),segment.limit());
+        while(segment.hasRemaining())
+        {
+            position += channel.write(segment,position);
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package comp7005.filetransfer.logic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * sends a file through an output stream as a delta against another version of
+ *   the file that the remote host already has, given the signature of that
+ *   version.
+ *
+ * the delta is a sequence of ops. each op begins with a 4 byte header; a
+ *   positive header is the length of the literal file data that follows it,
+ *   {@code OP_COPY} is followed by the index of a block of the remote host's
+ *   version and the number of consecutive blocks to copy from it, and
+ *   {@code SEGMENT_END} is followed by the MD5 checksum of the whole file, so
+ *   the remote host can verify the file it rebuilt.
+ *
+ * the file is read once, sequentially; a window the size of a block is slid
+ *   along it one byte at a time, and each time the weak checksum of the
+ *   window matches a block of the signature, its strong checksum is computed
+ *   to confirm the match.
+ *
+ * @file    FileDeltaSender.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   FileDeltaSender
+ *
+ * @date    2015-10-05T10:02:47-0800
+ *
+ * @author  Eric Tsang
+ */
+public class FileDeltaSender
+{
+    // constants: op headers
+
+    /**
+     * op header indicating that blocks should be copied from the remote host's
+     *   version of the file.
+     */
+    public static final int OP_COPY = -2;
+
+    /**
+     * op header indicating that the transfer was cancelled, and the remote
+     *   host should discard what it has rebuilt so far.
+     */
+    public static final int OP_CANCEL = -3;
+
+    /**
+     * number of bytes occupied by the largest op header, including its
+     *   arguments.
+     */
+    private static final int MAX_HEADER_SIZE = 12;
+
+    // constants: buffers
+
+    /**
+     * number of bytes of the file that are read into memory at a time, unless
+     *   the blocks are larger.
+     */
+    private static final int READ_BUFFER_SIZE = 1024*1024;
+
+    // instance data: general
+
+    /**
+     * the stream that ops are written to.
+     */
+    private final OutputStream os;
+
+    /**
+     * channel to the file that is being sent.
+     */
+    private final FileChannel channel;
+
+    /**
+     * signature of the remote host's version of the file.
+     */
+    private final FileSignature signature;
+
+    /**
+     * maximum number of literal bytes to send per op.
+     */
+    private final int segmentSize;
+
+    /**
+     * holds the op header that is being sent.
+     */
+    private final ByteBuffer header;
+
+    /**
+     * holds the part of the file that is being scanned.
+     */
+    private final byte[] buffer;
+
+    /**
+     * {@code buffer} wrapped for reading from {@code channel}.
+     */
+    private final ByteBuffer readBuffer;
+
+    /**
+     * position in the file of the first byte in {@code buffer}.
+     */
+    private long bufferPosition;
+
+    /**
+     * number of bytes of the file in {@code buffer}.
+     */
+    private int bufferLength;
+
+    /**
+     * index in {@code buffer} of the beginning of the window.
+     */
+    private int windowStart;
+
+    /**
+     * index in {@code buffer} of the first byte that hasn't been sent as
+     *   literal data or matched to a block yet.
+     */
+    private int literalStart;
+
+    /**
+     * true once the end of the file has been read into {@code buffer}.
+     */
+    private boolean endOfFile;
+
+    /**
+     * weak checksum of the window.
+     */
+    private final RollingChecksum windowChecksum;
+
+    /**
+     * true if {@code windowChecksum} holds the checksum of the window; false
+     *   if it needs to be recomputed.
+     */
+    private boolean windowChecksumValid;
+
+    /**
+     * digest used to confirm weak checksum matches.
+     */
+    private final MessageDigest blockDigest;
+
+    /**
+     * digest of the whole file, sent at the end of the delta.
+     */
+    private final MessageDigest fileDigest;
+
+    /**
+     * index of the first block in the run of blocks that hasn't been sent as
+     *   a copy op yet.
+     */
+    private int copyStart;
+
+    /**
+     * number of blocks in the run of blocks that hasn't been sent as a copy op
+     *   yet.
+     */
+    private int copyCount;
+
+    /**
+     * index of the block after the last block that was matched; preferred
+     *   when several blocks match, so runs of blocks are kept together.
+     */
+    private int nextBlock;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a sender that sends the file open in {@code channel} as a
+     *   delta against the version of the file described by {@code signature}.
+     *
+     * @method  FileDeltaSender
+     *
+     * @date    2015-10-05T10:06:13-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os the stream to write ops to.
+     * @param   channel channel to the file to send.
+     * @param   signature signature of the remote host's version of the file.
+     * @param   segmentSize maximum number of literal bytes to send per op.
+     *
+     * @return  a new instance of FileDeltaSender.
+     */
+    public FileDeltaSender(OutputStream os,FileChannel channel,FileSignature signature,int segmentSize)
+    {
+        this.os = os;
+        this.channel = channel;
+        this.signature = signature;
+        this.segmentSize = segmentSize;
+        this.header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        this.buffer = new byte[Math.max(READ_BUFFER_SIZE,2*signature.getBlockSize())];
+        this.readBuffer = ByteBuffer.wrap(buffer);
+        this.windowChecksum = new RollingChecksum();
+        this.blockDigest = FileSignature.newStrongDigest();
+        this.fileDigest = FileSignature.newStrongDigest();
+        this.nextBlock = -1;
+    }
+
+    // public interface: server methods
+
+    /**
+     * reads the next part of the file, and sends the ops that describe it. if
+     *   the end of the file has been reached, the end of delta op is sent
+     *   instead.
+     *
+     * @method  sendChunk
+     *
+     * @date    2015-10-05T10:09:35-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of file bytes that were described, or {@code
+     *   SEGMENT_END} if the end of delta op was sent.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public int sendChunk() throws IOException
+    {
+        // everything has been described; send the end of the delta
+        if(endOfFile && windowStart == bufferLength)
+        {
+            flushLiteral();
+            flushCopy();
+            header.clear();
+            header.putInt(FileSegmentSender.SEGMENT_END);
+            os.write(header.array(),0,header.position());
+            os.write(fileDigest.digest());
+            return FileSegmentSender.SEGMENT_END;
+        }
+
+        long startPosition = getPosition();
+        fillBuffer();
+        if(signature.getBlockCount() == 0)
+        {
+            // there is nothing to match against; send it all as literal data
+            windowStart = bufferLength;
+            flushLiteral();
+        }
+        else
+        {
+            scanBuffer();
+        }
+        return (int) (getPosition()-startPosition);
+    }
+
+    /**
+     * sends the cancel op, telling the remote host to discard what it has
+     *   rebuilt so far.
+     *
+     * @method  sendCancel
+     *
+     * @date    2015-10-05T10:11:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public void sendCancel() throws IOException
+    {
+        header.clear();
+        header.putInt(OP_CANCEL);
+        os.write(header.array(),0,header.position());
+    }
+
+    /**
+     * returns the position in the file up to which ops have been worked out.
+     *
+     * @method  getPosition
+     *
+     * @date    2015-10-05T10:12:04-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the position in the file up to which ops have been worked out.
+     */
+    public long getPosition()
+    {
+        return bufferPosition+windowStart;
+    }
+
+    // private interface: scanning
+
+    /**
+     * sends the literal data before the window, moves the bytes from the
+     *   window onwards to the front of the buffer, and fills the rest of the
+     *   buffer from the file.
+     *
+     * @method  fillBuffer
+     *
+     * @date    2015-10-05T10:14:51-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void fillBuffer() throws IOException
+    {
+        flushLiteral();
+        System.arraycopy(buffer,windowStart,buffer,0,bufferLength-windowStart);
+        bufferPosition += windowStart;
+        bufferLength -= windowStart;
+        windowStart = 0;
+        literalStart = 0;
+
+        while(bufferLength < buffer.length && !endOfFile)
+        {
+            readBuffer.clear();
+            readBuffer.position(bufferLength);
+            int bytesRead = channel.read(readBuffer,bufferPosition+bufferLength);
+            if(bytesRead == -1)
+            {
+                endOfFile = true;
+            }
+            else
+            {
+                fileDigest.update(buffer,bufferLength,bytesRead);
+                bufferLength += bytesRead;
+            }
+        }
+    }
+
+    /**
+     * slides the window along the buffer, matching it against the blocks of
+     *   the signature, and sending ops for what has been worked out. the
+     *   window stops where it would run off the end of the buffer, unless the
+     *   end of the file has been reached.
+     *
+     * @method  scanBuffer
+     *
+     * @date    2015-10-05T10:17:26-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void scanBuffer() throws IOException
+    {
+        int blockSize = signature.getBlockSize();
+        while(windowStart+blockSize <= bufferLength)
+        {
+            if(!windowChecksumValid)
+            {
+                windowChecksum.reset(buffer,windowStart,blockSize);
+                windowChecksumValid = true;
+            }
+
+            // the window matches a block; send the literal data before it, and
+            // skip past it
+            int blockIndex = signature.findBlock(windowChecksum.getValue(),buffer,windowStart,blockSize,nextBlock,blockDigest);
+            if(blockIndex >= 0)
+            {
+                flushLiteral();
+                addCopy(blockIndex);
+                windowStart += blockSize;
+                literalStart = windowStart;
+                windowChecksumValid = false;
+                continue;
+            }
+
+            // the window doesn't match; roll it forward by a byte
+            if(windowStart+blockSize < bufferLength)
+            {
+                windowChecksum.roll(buffer[windowStart],buffer[windowStart+blockSize]);
+            }
+            else
+            {
+                windowChecksumValid = false;
+            }
+            windowStart++;
+            if(windowStart-literalStart >= segmentSize)
+            {
+                flushLiteral();
+            }
+        }
+
+        // the rest of the file is shorter than a block; it can only match the
+        // last block, which may be short too
+        if(endOfFile && windowStart < bufferLength)
+        {
+            int length = bufferLength-windowStart;
+            int blockIndex = signature.findBlock(RollingChecksum.of(buffer,windowStart,length),buffer,windowStart,length,nextBlock,blockDigest);
+            if(blockIndex >= 0)
+            {
+                flushLiteral();
+                addCopy(blockIndex);
+                literalStart = bufferLength;
+            }
+            windowStart = bufferLength;
+            flushLiteral();
+        }
+    }
+
+    // private interface: op writers
+
+    /**
+     * adds a block to the run of blocks that haven't been sent as a copy op
+     *   yet, sending the run first if the block doesn't continue it.
+     *
+     * @method  addCopy
+     *
+     * @date    2015-10-05T10:20:08-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   blockIndex index of the block to copy.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void addCopy(int blockIndex) throws IOException
+    {
+        if(copyCount == 0 || blockIndex != copyStart+copyCount)
+        {
+            flushCopy();
+            copyStart = blockIndex;
+        }
+        copyCount++;
+        nextBlock = blockIndex+1;
+    }
+
+    /**
+     * sends the run of blocks that haven't been sent as a copy op yet, if any.
+     *
+     * @method  flushCopy
+     *
+     * @date    2015-10-05T10:21:33-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void flushCopy() throws IOException
+    {
+        if(copyCount > 0)
+        {
+            header.clear();
+            header.putInt(OP_COPY);
+            header.putInt(copyStart);
+            header.putInt(copyCount);
+            os.write(header.array(),0,header.position());
+            copyCount = 0;
+        }
+    }
+
+    /**
+     * sends the bytes between {@code literalStart} and the window as literal
+     *   data, after any pending copy op so the ops stay in order.
+     *
+     * @method  flushLiteral
+     *
+     * @date    2015-10-05T10:23:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void flushLiteral() throws IOException
+    {
+        if(literalStart < windowStart)
+        {
+            flushCopy();
+        }
+        while(literalStart < windowStart)
+        {
+            int length = Math.min(segmentSize,windowStart-literalStart);
+            header.clear();
+            header.putInt(length);
+            os.write(header.array(),0,header.position());
+            os.write(buffer,literalStart,length);
+            literalStart += length;
+        }
+    }
+}
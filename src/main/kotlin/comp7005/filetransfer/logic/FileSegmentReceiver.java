@@ -0,0 +1,499 @@
+package comp7005.filetransfer.logic;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * receives segments sent by a {@code FileSegmentSender} from an input stream,
+ *   and writes the file data they carry into a file with positional writes,
+ *   beginning at a specified position in the file. deflated segments are
+ *   inflated before they are written, if compression was agreed on.
+ *
+ * the checksum that follows the end of file segment is checked against the
+ *   file data that was received, and the transfer fails if they don't match.
+ *
+ * segments may instead be written on a writer thread of their own, through an
+ *   {@code AsyncFileWriter}, so the next segment is read from the stream while
+ *   the last one is still being written.
+ *
+ * @file    FileSegmentReceiver.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   FileSegmentReceiver
+ *
+ * @date    2015-10-04T13:20:44-0800
+ *
+ * @author  Eric Tsang
+ */
+public class FileSegmentReceiver implements Closeable
+{
+    // instance data: general
+
+    /**
+     * the stream that segments are read from.
+     */
+    private final DataInputStream is;
+
+    /**
+     * channel to the file that is being received.
+     */
+    private final FileChannel channel;
+
+    /**
+     * buffer that holds the file data of the segment that is being received.
+     */
+    private ByteBuffer segment;
+
+    /**
+     * writes segments into the file on a thread of its own; null if segments
+     *   are written on the thread that receives them.
+     */
+    private final AsyncFileWriter writer;
+
+    /**
+     * position in the file that the next segment is written to.
+     */
+    private long position;
+
+    /**
+     * true if the segment that was last read is a hole.
+     */
+    private boolean hole;
+
+    /**
+     * position in the file that the receiver started writing at.
+     */
+    private final long startPosition;
+
+    /**
+     * checksum of the file data received since the last end of file segment.
+     */
+    private final CRC32 checksum;
+
+    /**
+     * true once the checksum sent by the sender didn't match the file data
+     *   that was received.
+     */
+    private boolean corrupted;
+
+    // instance data: compression
+
+    /**
+     * inflates deflated segments; null if compression was not agreed on.
+     */
+    private final Inflater inflater;
+
+    /**
+     * buffer that holds the deflated data of the segment that is being
+     *   received; null if compression was not agreed on.
+     */
+    private final byte[] deflated;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a receiver that writes the segments it receives into the
+     *   file open in {@code channel}, beginning at {@code position}.
+     *
+     * @method  FileSegmentReceiver
+     *
+     * @date    2015-10-04T13:22:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   is the stream to read segments from.
+     * @param   channel channel to the file to write into.
+     * @param   position position in the file to start writing at.
+     * @param   segmentSize maximum number of file bytes per segment.
+     *
+     * @return  a new instance of FileSegmentReceiver.
+     */
+    public FileSegmentReceiver(InputStream is,FileChannel channel,long position,int segmentSize)
+    {
+        this(is,channel,position,segmentSize,false);
+    }
+
+    /**
+     * instantiates a receiver that writes the segments it receives into the
+     *   file open in {@code channel}, beginning at {@code position}.
+     *
+     * @method  FileSegmentReceiver
+     *
+     * @date    2015-10-05T14:22:08-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   is the stream to read segments from.
+     * @param   channel channel to the file to write into; may be null if
+     *   segments are only read with {@code readSegment}.
+     * @param   position position in the file to start writing at.
+     * @param   segmentSize maximum number of file bytes per segment.
+     * @param   compressed true if the sender may send deflated segments.
+     *
+     * @return  a new instance of FileSegmentReceiver.
+     */
+    public FileSegmentReceiver(InputStream is,FileChannel channel,long position,int segmentSize,boolean compressed)
+    {
+        this.is = new DataInputStream(is);
+        this.channel = channel;
+        this.segment = ByteBuffer.allocate(segmentSize);
+        this.writer = null;
+        this.position = position;
+        this.startPosition = position;
+        this.checksum = new CRC32();
+        this.inflater = compressed ? new Inflater() : null;
+        this.deflated = compressed ? new byte[segmentSize] : null;
+    }
+
+    /**
+     * instantiates a receiver that writes the segments it receives into the
+     *   file open in {@code channel}, beginning at {@code position}, on a
+     *   writer thread of its own.
+     *
+     * @method  FileSegmentReceiver
+     *
+     * @date    2015-10-07T16:27:48-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   is the stream to read segments from.
+     * @param   channel channel to the file to write into.
+     * @param   position position in the file to start writing at.
+     * @param   segmentSize maximum number of file bytes per segment.
+     * @param   compressed true if the sender may send deflated segments.
+     * @param   asynchronous true to write segments on a writer thread; false to
+     *   write them on the thread that receives them.
+     *
+     * @return  a new instance of FileSegmentReceiver.
+     *
+     * @throws  IOException thrown when interrupted while setting up the writer
+     *   thread.
+     */
+    public FileSegmentReceiver(InputStream is,FileChannel channel,long position,int segmentSize,boolean compressed,boolean asynchronous) throws IOException
+    {
+        this.is = new DataInputStream(is);
+        this.channel = channel;
+        this.writer = asynchronous ? new AsyncFileWriter(channel,segmentSize) : null;
+        this.segment = asynchronous ? writer.takeBuffer() : ByteBuffer.allocate(segmentSize);
+        this.position = position;
+        this.startPosition = position;
+        this.checksum = new CRC32();
+        this.inflater = compressed ? new Inflater() : null;
+        this.deflated = compressed ? new byte[segmentSize] : null;
+    }
+
+    // public interface: server methods
+
+    /**
+     * reads the next segment from the stream, and writes its file data into
+     *   the file, or hands it to the writer thread. holes are skipped over
+     *   instead of written, so they stay unallocated if the file system
+     *   supports sparse files; the file must not hold anything past the
+     *   position that the receiver started at.
+     *
+     * @method  receiveSegment
+     *
+     * @date    2015-10-04T13:24:37-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of file bytes that were received, or {@code
+     *   FileSegmentSender.SEGMENT_END} if the end of file segment was received.
+     *
+     * @throws  IOException thrown when an IOException occurs, the segment is
+     *   malformed, or an earlier segment failed to be written.
+     */
+    public int receiveSegment() throws IOException
+    {
+        // read the next segment, and write its file data into its place in the
+        // file
+        int segmentSize = readSegment();
+        if(segmentSize == FileSegmentSender.SEGMENT_END)
+        {
+            extendToPosition();
+            return FileSegmentSender.SEGMENT_END;
+        }
+        if(hole)
+        {
+            position += segmentSize;
+            return segmentSize;
+        }
+        if(writer != null)
+        {
+            segment = writer.write(segment,position);
+            position += segmentSize;
+            return segmentSize;
+        }
+        while(segment.hasRemaining())
+        {
+            position += channel.write(segment,position);
+        }
+        return segmentSize;
+    }
+
+    /**
+     * reads the next segment from the stream into the segment buffer returned
+     *   by {@code getSegment}, without writing it into the file. if the
+     *   segment is a hole, the segment buffer is left empty, and {@code
+     *   isHole} returns true.
+     *
+     * @method  readSegment
+     *
+     * @date    2015-10-06T13:15:47-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of file bytes that were read, including those that
+     *   the segment stands for if it is a hole, or {@code
+     *   FileSegmentSender.SEGMENT_END} if the end of file segment was read.
+     *
+     * @throws  IOException thrown when an IOException occurs, the segment is
+     *   malformed, or the end of file segment was read, and the checksum that
+     *   follows it doesn't match the file data that was received.
+     */
+    public int readSegment() throws IOException
+    {
+        // read the segment header
+        int segmentSize = is.readInt();
+        hole = false;
+        if(segmentSize == FileSegmentSender.SEGMENT_END)
+        {
+            verifyChecksum();
+            return FileSegmentSender.SEGMENT_END;
+        }
+
+        // read the length of the hole, or the file data
+        if(segmentSize == FileSegmentSender.SEGMENT_HOLE)
+        {
+            segmentSize = is.readInt();
+            if(segmentSize <= 0)
+            {
+                throw new IOException("invalid hole length: "+segmentSize);
+            }
+            hole = true;
+            segment.clear();
+            segment.limit(0);
+            FileUtils.updateWithZeros(checksum,segmentSize);
+            return segmentSize;
+        }
+        else if(segmentSize == FileSegmentSender.SEGMENT_DEFLATED && inflater != null)
+        {
+            segmentSize = readDeflated();
+        }
+        else if(segmentSize >= 0 && segmentSize <= segment.capacity())
+        {
+            is.readFully(segment.array(),segment.arrayOffset(),segmentSize);
+        }
+        else
+        {
+            throw new IOException("invalid segment length: "+segmentSize);
+        }
+        segment.clear();
+        segment.limit(segmentSize);
+        checksum.update(segment.array(),segment.arrayOffset(),segmentSize);
+        return segmentSize;
+    }
+
+    /**
+     * returns the buffer holding the file data of the segment that was last
+     *   read by {@code readSegment}; it is overwritten by the next segment.
+     *
+     * @method  getSegment
+     *
+     * @date    2015-10-06T13:17:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the buffer holding the file data of the last segment.
+     */
+    public ByteBuffer getSegment()
+    {
+        return segment;
+    }
+
+    /**
+     * returns true if the segment that was last read by {@code readSegment} is
+     *   a hole.
+     *
+     * @method  isHole
+     *
+     * @date    2015-10-07T13:16:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  true if the last segment is a hole.
+     */
+    public boolean isHole()
+    {
+        return hole;
+    }
+
+    /**
+     * returns the position in the file that the next segment is written to.
+     *
+     * @method  getPosition
+     *
+     * @date    2015-10-04T13:26:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the position in the file that the next segment is written to.
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * waits for every segment that was received so far to be written into the
+     *   file, and returns the position in the file up to which they were
+     *   written without failing; the file should be truncated there if the
+     *   transfer is to be resumed later. if the file data failed its checksum,
+     *   nothing that was received can be trusted, and the position that the
+     *   receiver started at is returned.
+     *
+     * @method  drain
+     *
+     * @date    2015-10-07T16:31:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the position in the file up to which segments were written.
+     *
+     * @throws  IOException thrown when interrupted while waiting.
+     */
+    public long drain() throws IOException
+    {
+        long writtenPosition = writer != null ? writer.drain(position) : position;
+        return corrupted ? startPosition : writtenPosition;
+    }
+
+    /**
+     * waits for the writer thread to finish writing, if any, and releases the
+     *   inflater. the file channel is left open; it belongs to the caller.
+     *
+     * @method  close
+     *
+     * @date    2015-10-05T14:25:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when a segment failed to be written.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(inflater != null)
+        {
+            inflater.end();
+        }
+        if(writer != null)
+        {
+            writer.close();
+        }
+    }
+
+    // private interface: checksums
+
+    /**
+     * reads the checksum that follows the end of file segment, and checks it
+     *   against the file data that was received; the checksum starts over for
+     *   whatever is received next.
+     *
+     * @method  verifyChecksum
+     *
+     * @date    2015-10-08T09:14:52-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs, or the checksums
+     *   don't match.
+     */
+    private void verifyChecksum() throws IOException
+    {
+        int expectedChecksum = is.readInt();
+        int actualChecksum = (int) checksum.getValue();
+        checksum.reset();
+        if(expectedChecksum != actualChecksum)
+        {
+            corrupted = true;
+            throw new IOException(String.format("file data failed its checksum: expected %08x, got %08x",expectedChecksum,actualChecksum));
+        }
+    }
+
+    // private interface: sparse files
+
+    /**
+     * makes the file at least as long as the position that the next segment
+     *   would be written to, in case it ended in a hole; writing its last byte
+     *   leaves the rest of the hole unallocated.
+     *
+     * @method  extendToPosition
+     *
+     * @date    2015-10-07T13:18:05-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void extendToPosition() throws IOException
+    {
+        if(position > 0 && channel.size() < position)
+        {
+            channel.write(ByteBuffer.allocate(1),position-1);
+        }
+    }
+
+    // private interface: compression
+
+    /**
+     * reads the rest of a deflated segment after its header value, and
+     *   inflates its file data into the segment buffer.
+     *
+     * @method  readDeflated
+     *
+     * @date    2015-10-05T14:27:11-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of file bytes that were inflated into the segment
+     *   buffer.
+     *
+     * @throws  IOException thrown when an IOException occurs, or the segment
+     *   is malformed.
+     */
+    private int readDeflated() throws IOException
+    {
+        int segmentSize = is.readInt();
+        int deflatedSize = is.readInt();
+        if(segmentSize < 0 || segmentSize > segment.capacity() || deflatedSize < 0 || deflatedSize > deflated.length)
+        {
+            throw new IOException("invalid deflated segment length: "+deflatedSize+" bytes for "+segmentSize);
+        }
+        is.readFully(deflated,0,deflatedSize);
+
+        try
+        {
+            inflater.reset();
+            inflater.setInput(deflated,0,deflatedSize);
+            int inflatedSize = inflater.inflate(segment.array(),segment.arrayOffset(),segmentSize);
+            if(inflatedSize != segmentSize || !inflater.finished())
+            {
+                throw new IOException("deflated segment inflated to "+inflatedSize+" bytes instead of "+segmentSize);
+            }
+        }
+        catch(DataFormatException e)
+        {
+            throw new IOException(e);
+        }
+        return segmentSize;
+    }
+}
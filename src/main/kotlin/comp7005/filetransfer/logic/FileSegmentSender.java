@@ -0,0 +1,823 @@
+package comp7005.filetransfer.logic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * sends a region of a file through an output stream as a sequence of
+ *   segments. each segment is a 4 byte length header followed by that many
+ *   bytes of file data; the end of the file is indicated by a segment whose
+ *   length header is -1, followed by the CRC32 checksum of all the file data
+ *   that was sent, so the receiver can verify it as it goes, instead of
+ *   reading the file again afterwards.
+ *
+ * file data is read with positional reads on a {@code FileChannel} straight
+ *   into the buffer that is written to the socket, and the header is written
+ *   into the same buffer in front of the data, so each segment is handed to the
+ *   socket with a single write, and no per-segment buffers are allocated.
+ *
+ * very large files may instead be read through windows of the file that are
+ *   mapped into memory, so the page cache is shared by every reader of the
+ *   file. each window is unmapped as soon as the sender moves past it, or is
+ *   closed.
+ *
+ * small files that are sent often may instead be sent from a buffer that
+ *   already holds their contents, so they aren't read from the file at all.
+ *
+ * if compression was agreed on, each segment is deflated before it is sent,
+ *   and sent as a deflated segment if that makes it small enough to be worth
+ *   it. segments that don't compress well are sent as they are, and the
+ *   segments after them are not even tried for a while, so little time is
+ *   spent on media and archives that are already compressed.
+ *
+ * if sparse transfers were agreed on, segments that hold nothing but zeros
+ *   are not sent; runs of them are sent as a single hole segment instead,
+ *   which only holds the number of zero bytes that it stands for, so the
+ *   unallocated parts of sparse files cost next to nothing to send.
+ *
+ * @file    FileSegmentSender.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   FileSegmentSender
+ *
+ * @date    2015-10-03T13:02:18-0800
+ *
+ * @author  Eric Tsang
+ */
+public class FileSegmentSender implements Closeable
+{
+    // constants: segment headers
+
+    /**
+     * segment header value indicating that there are no more segments.
+     */
+    public static final int SEGMENT_END = -1;
+
+    /**
+     * segment header value indicating that the segment is deflated; it is
+     *   followed by the length of the segment's file data, the length of the
+     *   deflated data, then the deflated data.
+     */
+    public static final int SEGMENT_DEFLATED = -2;
+
+    /**
+     * segment header value indicating that the segment is a hole; it is
+     *   followed by the number of zero bytes that the hole stands for.
+     */
+    public static final int SEGMENT_HOLE = -3;
+
+    /**
+     * number of bytes occupied by the header of a segment.
+     */
+    static final int HEADER_SIZE = 4;
+
+    /**
+     * number of bytes occupied by a hole segment.
+     */
+    static final int HOLE_HEADER_SIZE = 8;
+
+    /**
+     * number of bytes occupied by the end of file segment, including the
+     *   checksum that follows it.
+     */
+    static final int END_SIZE = 8;
+
+    /**
+     * number of bytes occupied by the header of a deflated segment.
+     */
+    static final int DEFLATED_HEADER_SIZE = 12;
+
+    // constants: compression
+
+    /**
+     * a segment is only sent deflated if deflating it makes it at most this
+     *   fraction of its original size.
+     */
+    private static final double MAX_DEFLATED_RATIO = 0.9;
+
+    /**
+     * the most segments that are sent without trying to deflate them after a
+     *   segment didn't compress well.
+     */
+    private static final int MAX_SKIPPED_SEGMENTS = 32;
+
+    // constants: sparse files
+
+    /**
+     * the most zero bytes that are sent as a single hole segment; longer runs
+     *   of zeros are sent as several, so progress is still reported while
+     *   long holes are read.
+     */
+    private static final int MAX_HOLE_LENGTH = 64*1024*1024;
+
+    // constants: memory mapping
+
+    /**
+     * number of bytes of the file that are mapped into memory at a time when
+     *   the sender is reading the file through memory mapped windows.
+     */
+    private static final long MAPPED_WINDOW_SIZE = 64*1024*1024;
+
+    // instance data: general
+
+    /**
+     * the stream that segments are written to.
+     */
+    private final OutputStream os;
+
+    /**
+     * channel to the file that is being sent.
+     */
+    private FileChannel channel;
+
+    /**
+     * contents of the file that is being sent, between the buffer's position
+     *   & limit; null if the file is read from {@code channel}.
+     */
+    private ByteBuffer contents;
+
+    /**
+     * buffer that holds the segment that is being sent; the first
+     *   {@code HEADER_SIZE} bytes hold the segment header.
+     */
+    private final ByteBuffer segment;
+
+    /**
+     * position in the file that the next segment is read from.
+     */
+    private long position;
+
+    /**
+     * position in the file that the last segment ends at.
+     */
+    private long endPosition;
+
+    /**
+     * checksum of the file data sent since the last end of file segment.
+     */
+    private final CRC32 checksum;
+
+    /**
+     * true if the file is read through memory mapped windows; false if it is
+     *   read with positional reads.
+     */
+    private final boolean mapped;
+
+    /**
+     * the currently mapped window of the file; null if no window is mapped.
+     */
+    private MappedByteBuffer window;
+
+    /**
+     * position in the file that the currently mapped window begins at.
+     */
+    private long windowPosition;
+
+    // instance data: compression
+
+    /**
+     * deflates segments before they are sent; null if compression was not
+     *   agreed on.
+     */
+    private final Deflater deflater;
+
+    /**
+     * buffer that holds the deflated segment that is being sent; the first
+     *   {@code DEFLATED_HEADER_SIZE} bytes hold the segment header.
+     */
+    private final ByteBuffer deflated;
+
+    /**
+     * number of segments that were skipped after the last segment that didn't
+     *   compress well; doubles each time another one doesn't.
+     */
+    private int skipLength;
+
+    /**
+     * number of segments left to send before trying to deflate them again.
+     */
+    private int segmentsToSkip;
+
+    // instance data: sparse files
+
+    /**
+     * true if segments of zeros are sent as holes.
+     */
+    private final boolean sparse;
+
+    /**
+     * buffer that holds the hole segment that is being sent.
+     */
+    private final ByteBuffer hole;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a sender that sends {@code length} bytes of the file open in
+     *   {@code channel}, beginning at {@code position}.
+     *
+     * @method  FileSegmentSender
+     *
+     * @date    2015-10-03T13:05:51-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os the stream to write segments to.
+     * @param   channel channel to the file to send.
+     * @param   position position in the file to start sending from.
+     * @param   length number of bytes of the file to send.
+     * @param   segmentSize maximum number of file bytes to send per segment.
+     *
+     * @return  a new instance of FileSegmentSender.
+     */
+    public FileSegmentSender(OutputStream os,FileChannel channel,long position,long length,int segmentSize)
+    {
+        this(os,channel,position,length,segmentSize,false);
+    }
+
+    /**
+     * instantiates a sender that sends {@code length} bytes of the file open in
+     *   {@code channel}, beginning at {@code position}.
+     *
+     * @method  FileSegmentSender
+     *
+     * @date    2015-10-03T15:51:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os the stream to write segments to.
+     * @param   channel channel to the file to send.
+     * @param   position position in the file to start sending from.
+     * @param   length number of bytes of the file to send.
+     * @param   segmentSize maximum number of file bytes to send per segment.
+     * @param   mapped true to read the file through memory mapped windows;
+     *   false to read it with positional reads.
+     *
+     * @return  a new instance of FileSegmentSender.
+     */
+    public FileSegmentSender(OutputStream os,FileChannel channel,long position,long length,int segmentSize,boolean mapped)
+    {
+        this(os,channel,position,length,segmentSize,mapped,false);
+    }
+
+    /**
+     * instantiates a sender that sends {@code length} bytes of the file open in
+     *   {@code channel}, beginning at {@code position}.
+     *
+     * @method  FileSegmentSender
+     *
+     * @date    2015-10-05T14:10:36-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os the stream to write segments to.
+     * @param   channel channel to the file to send.
+     * @param   position position in the file to start sending from.
+     * @param   length number of bytes of the file to send.
+     * @param   segmentSize maximum number of file bytes to send per segment.
+     * @param   mapped true to read the file through memory mapped windows;
+     *   false to read it with positional reads.
+     * @param   compressed true to deflate segments that compress well; false
+     *   to send every segment as it is.
+     *
+     * @return  a new instance of FileSegmentSender.
+     */
+    public FileSegmentSender(OutputStream os,FileChannel channel,long position,long length,int segmentSize,boolean mapped,boolean compressed)
+    {
+        this(os,channel,position,length,segmentSize,mapped,compressed,false);
+    }
+
+    /**
+     * instantiates a sender that sends {@code length} bytes of the file open in
+     *   {@code channel}, beginning at {@code position}.
+     *
+     * @method  FileSegmentSender
+     *
+     * @date    2015-10-07T13:04:22-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os the stream to write segments to.
+     * @param   channel channel to the file to send.
+     * @param   position position in the file to start sending from.
+     * @param   length number of bytes of the file to send.
+     * @param   segmentSize maximum number of file bytes to send per segment.
+     * @param   mapped true to read the file through memory mapped windows;
+     *   false to read it with positional reads.
+     * @param   compressed true to deflate segments that compress well; false
+     *   to send every segment as it is.
+     * @param   sparse true to send runs of segments that hold nothing but
+     *   zeros as holes; false to send every segment as it is.
+     *
+     * @return  a new instance of FileSegmentSender.
+     */
+    public FileSegmentSender(OutputStream os,FileChannel channel,long position,long length,int segmentSize,boolean mapped,boolean compressed,boolean sparse)
+    {
+        this(os,channel,null,position,length,segmentSize,mapped,compressed,sparse);
+    }
+
+    /**
+     * instantiates a sender that sends {@code length} bytes of the file whose
+     *   contents are held in {@code contents}, beginning at {@code position}.
+     *
+     * @method  FileSegmentSender
+     *
+     * @date    2015-10-08T17:10:05-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os the stream to write segments to.
+     * @param   contents buffer holding the contents of the file to send,
+     *   between its position & limit; it is not modified.
+     * @param   position position in the file to start sending from.
+     * @param   length number of bytes of the file to send.
+     * @param   segmentSize maximum number of file bytes to send per segment.
+     * @param   compressed true to deflate segments that compress well; false
+     *   to send every segment as it is.
+     * @param   sparse true to send runs of segments that hold nothing but
+     *   zeros as holes; false to send every segment as it is.
+     *
+     * @return  a new instance of FileSegmentSender.
+     */
+    public FileSegmentSender(OutputStream os,ByteBuffer contents,long position,long length,int segmentSize,boolean compressed,boolean sparse)
+    {
+        this(os,null,contents.slice(),position,length,segmentSize,false,compressed,sparse);
+    }
+
+    /**
+     * instantiates a sender that sends {@code length} bytes of the file open in
+     *   {@code channel}, or held in {@code contents}, beginning at
+     *   {@code position}.
+     *
+     * @method  FileSegmentSender
+     *
+     * @date    2015-10-08T17:10:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os the stream to write segments to.
+     * @param   channel channel to the file to send; null if it is sent from
+     *   {@code contents}.
+     * @param   contents buffer holding the contents of the file to send; null
+     *   if it is read from {@code channel}.
+     * @param   position position in the file to start sending from.
+     * @param   length number of bytes of the file to send.
+     * @param   segmentSize maximum number of file bytes to send per segment.
+     * @param   mapped true to read the file through memory mapped windows;
+     *   false to read it with positional reads.
+     * @param   compressed true to deflate segments that compress well; false
+     *   to send every segment as it is.
+     * @param   sparse true to send runs of segments that hold nothing but
+     *   zeros as holes; false to send every segment as it is.
+     *
+     * @return  a new instance of FileSegmentSender.
+     */
+    private FileSegmentSender(OutputStream os,FileChannel channel,ByteBuffer contents,long position,long length,int segmentSize,boolean mapped,boolean compressed,boolean sparse)
+    {
+        this.os = os;
+        this.channel = channel;
+        this.contents = contents;
+        this.segment = ByteBuffer.allocate(HEADER_SIZE+segmentSize);
+        this.position = position;
+        this.endPosition = position+length;
+        this.mapped = mapped;
+        this.deflater = compressed ? new Deflater(Deflater.BEST_SPEED) : null;
+        this.deflated = compressed ? ByteBuffer.allocate(DEFLATED_HEADER_SIZE+segmentSize) : null;
+        this.sparse = sparse;
+        this.hole = ByteBuffer.allocate(HOLE_HEADER_SIZE);
+        this.checksum = new CRC32();
+    }
+
+    // public interface: server methods
+
+    /**
+     * reads the next segment from the file, and sends it. if the end of the
+     *   file region has been reached, the end of file segment is sent instead.
+     *
+     * if sparse transfers were agreed on, segments of zeros are read until a
+     *   segment that isn't all zeros is found, and the run of zeros is sent as
+     *   a hole segment before it.
+     *
+     * @method  sendSegment
+     *
+     * @date    2015-10-03T13:08:26-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of file bytes that were sent, including those sent
+     *   as a hole, or {@code SEGMENT_END} if the end of file segment was sent.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public int sendSegment() throws IOException
+    {
+        int holeLength = 0;
+        while(true)
+        {
+            // read as much of the segment as we can from the file
+            int segmentSize = (int) Math.min(segment.capacity()-HEADER_SIZE,endPosition-position);
+            segment.clear();
+            segment.position(HEADER_SIZE);
+            segment.limit(HEADER_SIZE+segmentSize);
+            if(contents != null)
+            {
+                readContents();
+            }
+            else if(mapped)
+            {
+                readMapped();
+            }
+            else
+            {
+                readPositional();
+            }
+
+            // the file ended before the region did, or there is nothing left;
+            // send the hole before it first, if any
+            int bytesRead = segment.position()-HEADER_SIZE;
+            if(bytesRead == 0)
+            {
+                if(holeLength > 0)
+                {
+                    return sendHole(holeLength);
+                }
+                sendEnd();
+                return SEGMENT_END;
+            }
+
+            checksum.update(segment.array(),HEADER_SIZE,bytesRead);
+
+            // the segment is all zeros; add it to the hole, and keep reading
+            // until the hole ends, or is long enough to send
+            if(sparse && isZero(bytesRead))
+            {
+                position += bytesRead;
+                holeLength += bytesRead;
+                if(holeLength >= MAX_HOLE_LENGTH)
+                {
+                    return sendHole(holeLength);
+                }
+                continue;
+            }
+
+            // send the hole before the segment, if any, then the segment
+            if(holeLength > 0)
+            {
+                sendHole(holeLength);
+            }
+            writeSegment(bytesRead);
+            position += bytesRead;
+            return holeLength+bytesRead;
+        }
+    }
+
+    /**
+     * sends the passed data as a sequence of segments, followed by the end of
+     *   file segment; used to send data that isn't read from a file, such as
+     *   the contents of many small files packed together.
+     *
+     * @method  sendData
+     *
+     * @date    2015-10-07T09:14:26-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   data array holding the data to send.
+     * @param   offset index in {@code data} of the first byte to send.
+     * @param   length number of bytes to send.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public void sendData(byte[] data,int offset,int length) throws IOException
+    {
+        int endOffset = offset+length;
+        while(offset < endOffset)
+        {
+            int segmentSize = Math.min(segment.capacity()-HEADER_SIZE,endOffset-offset);
+            System.arraycopy(data,offset,segment.array(),HEADER_SIZE,segmentSize);
+            checksum.update(data,offset,segmentSize);
+            writeSegment(segmentSize);
+            offset += segmentSize;
+        }
+        sendEnd();
+    }
+
+    /**
+     * points the sender at another region of a file, so its buffers can be
+     *   reused to send it; used to send many files in a row. any memory mapped
+     *   window of the previous file is unmapped.
+     *
+     * @method  reset
+     *
+     * @date    2015-10-06T13:12:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   channel channel to the file to send.
+     * @param   position position in the file to start sending from.
+     * @param   length number of bytes of the file to send.
+     */
+    public void reset(FileChannel channel,long position,long length)
+    {
+        unmapWindow();
+        this.channel = channel;
+        this.contents = null;
+        this.position = position;
+        this.endPosition = position+length;
+        this.checksum.reset();
+    }
+
+    /**
+     * sends the end of file segment, indicating that no more segments will be
+     *   sent, followed by the checksum of the file data that was sent. the
+     *   checksum starts over for whatever is sent next.
+     *
+     * @method  sendEnd
+     *
+     * @date    2015-10-03T13:10:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public void sendEnd() throws IOException
+    {
+        segment.clear();
+        segment.putInt(0,SEGMENT_END);
+        segment.putInt(4,(int) checksum.getValue());
+        os.write(segment.array(),0,END_SIZE);
+        checksum.reset();
+        unmapWindow();
+    }
+
+    /**
+     * unmaps the currently mapped window of the file, if any, and releases the
+     *   deflater. the file channel is left open; it belongs to the caller.
+     *
+     * @method  close
+     *
+     * @date    2015-10-03T15:54:37-0800
+     *
+     * @author  Eric Tsang
+     */
+    @Override
+    public void close()
+    {
+        unmapWindow();
+        if(deflater != null)
+        {
+            deflater.end();
+        }
+    }
+
+    // private interface: compression
+
+    /**
+     * sends the file data in the segment buffer as a segment; deflated if it
+     *   compresses well, and as it is, with its header prepended, otherwise.
+     *
+     * @method  writeSegment
+     *
+     * @date    2015-10-07T09:11:48-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   length number of file bytes in the segment buffer.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void writeSegment(int length) throws IOException
+    {
+        int deflatedSize = deflater != null ? deflateSegment(length) : -1;
+        if(deflatedSize >= 0)
+        {
+            os.write(deflated.array(),0,DEFLATED_HEADER_SIZE+deflatedSize);
+        }
+        else
+        {
+            segment.putInt(0,length);
+            os.write(segment.array(),0,HEADER_SIZE+length);
+        }
+    }
+
+    /**
+     * deflates the file data in the segment buffer into the deflated segment
+     *   buffer, and prepends the deflated segment header.
+     *
+     * @method  deflateSegment
+     *
+     * @date    2015-10-05T14:14:52-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   length number of file bytes in the segment buffer.
+     *
+     * @return  the number of bytes of deflated data, or -1 if the segment
+     *   should be sent as it is, because it doesn't compress well, or a recent
+     *   segment didn't.
+     */
+    private int deflateSegment(int length)
+    {
+        // a recent segment didn't compress well; don't waste time on this one
+        if(segmentsToSkip > 0)
+        {
+            segmentsToSkip--;
+            return -1;
+        }
+
+        // deflate the segment, giving up once it grows past the largest size
+        // that is worth sending
+        deflater.reset();
+        deflater.setInput(segment.array(),HEADER_SIZE,length);
+        deflater.finish();
+        int deflatedSize = deflater.deflate(deflated.array(),DEFLATED_HEADER_SIZE,(int) (length*MAX_DEFLATED_RATIO));
+
+        // it didn't compress well; skip twice as many segments as last time
+        // before trying again
+        if(!deflater.finished())
+        {
+            skipLength = Math.min(MAX_SKIPPED_SEGMENTS,Math.max(1,skipLength*2));
+            segmentsToSkip = skipLength;
+            return -1;
+        }
+
+        skipLength = 0;
+        deflated.putInt(0,SEGMENT_DEFLATED);
+        deflated.putInt(4,length);
+        deflated.putInt(8,deflatedSize);
+        return deflatedSize;
+    }
+
+    // private interface: sparse files
+
+    /**
+     * returns true if the file data in the segment buffer is all zeros.
+     *
+     * @method  isZero
+     *
+     * @date    2015-10-07T13:08:51-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   length number of file bytes in the segment buffer.
+     *
+     * @return  true if the file data in the segment buffer is all zeros.
+     */
+    private boolean isZero(int length)
+    {
+        // compare 8 bytes at a time, then whatever is left
+        int end = HEADER_SIZE+length;
+        int i = HEADER_SIZE;
+        for(; i+8 <= end; i += 8)
+        {
+            if(segment.getLong(i) != 0)
+            {
+                return false;
+            }
+        }
+        for(; i < end; i++)
+        {
+            if(segment.get(i) != 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * sends a hole segment standing for the passed number of zero bytes.
+     *
+     * @method  sendHole
+     *
+     * @date    2015-10-07T13:10:17-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   length number of zero bytes that the hole stands for.
+     *
+     * @return  the number of zero bytes that the hole stands for.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private int sendHole(int length) throws IOException
+    {
+        hole.clear();
+        hole.putInt(SEGMENT_HOLE);
+        hole.putInt(length);
+        os.write(hole.array(),0,hole.position());
+        return length;
+    }
+
+    // private interface: file readers
+
+    /**
+     * fills the remainder of the segment buffer with positional reads from the
+     *   file, stopping early if the end of the file is reached.
+     *
+     * @method  readPositional
+     *
+     * @date    2015-10-03T15:57:03-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void readPositional() throws IOException
+    {
+        while(segment.hasRemaining())
+        {
+            if(channel.read(segment,position+segment.position()-HEADER_SIZE) == -1)
+            {
+                break;
+            }
+        }
+    }
+
+    /**
+     * fills the remainder of the segment buffer from the contents of the file
+     *   held in memory, stopping early if the end of the file is reached.
+     *
+     * @method  readContents
+     *
+     * @date    2015-10-08T17:11:30-0800
+     *
+     * @author  Eric Tsang
+     */
+    private void readContents()
+    {
+        long readPosition = position+segment.position()-HEADER_SIZE;
+        if(readPosition >= contents.limit())
+        {
+            return;
+        }
+        contents.position((int) readPosition);
+        int length = Math.min(contents.remaining(),segment.remaining());
+        contents.get(segment.array(),segment.arrayOffset()+segment.position(),length);
+        segment.position(segment.position()+length);
+    }
+
+    /**
+     * fills the remainder of the segment buffer from memory mapped windows of
+     *   the file, mapping the next window when the current one is used up, and
+     *   stopping early if the end of the file is reached.
+     *
+     * @method  readMapped
+     *
+     * @date    2015-10-03T15:59:46-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void readMapped() throws IOException
+    {
+        while(segment.hasRemaining())
+        {
+            // map the window that contains the next byte to read if needed
+            long readPosition = position+segment.position()-HEADER_SIZE;
+            if(window == null || readPosition >= windowPosition+window.limit())
+            {
+                unmapWindow();
+                long windowSize = Math.min(MAPPED_WINDOW_SIZE,Math.min(endPosition,channel.size())-readPosition);
+                if(windowSize <= 0)
+                {
+                    break;
+                }
+                window = channel.map(FileChannel.MapMode.READ_ONLY,readPosition,windowSize);
+                windowPosition = readPosition;
+            }
+
+            // copy what we can from the window into the segment
+            window.position((int) (readPosition-windowPosition));
+            int length = Math.min(window.remaining(),segment.remaining());
+            window.get(segment.array(),segment.arrayOffset()+segment.position(),length);
+            segment.position(segment.position()+length);
+        }
+    }
+
+    /**
+     * unmaps the currently mapped window of the file, if any.
+     *
+     * @method  unmapWindow
+     *
+     * @date    2015-10-03T16:01:12-0800
+     *
+     * @author  Eric Tsang
+     */
+    private void unmapWindow()
+    {
+        if(window != null)
+        {
+            FileUtils.release(window);
+            window = null;
+        }
+    }
+}
@@ -0,0 +1,556 @@
+package comp7005.filetransfer.logic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * the signature of a file, used to work out which parts of another version of
+ *   the file are already present in it.
+ *
+ * the file is split into blocks of equal size, except for the last one, which
+ *   may be shorter. each block has a weak rolling checksum that can be
+ *   computed cheaply at every offset of the other version of the file, and a
+ *   strong MD5 checksum that is only computed to confirm a weak match.
+ *
+ * @file    FileSignature.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   FileSignature
+ *
+ * @date    2015-10-05T09:12:33-0800
+ *
+ * @author  Eric Tsang
+ */
+public class FileSignature
+{
+    // constants: block sizes
+
+    /**
+     * the smallest block size that a file is split into.
+     */
+    static final int MIN_BLOCK_SIZE = 2*1024;
+
+    /**
+     * the largest block size that a file is split into.
+     */
+    static final int MAX_BLOCK_SIZE = 128*1024;
+
+    // constants: checksums
+
+    /**
+     * number of bytes in a strong checksum.
+     */
+    static final int STRONG_CHECKSUM_SIZE = 16;
+
+    /**
+     * number of bits in the filter used to rule out most weak checksums before
+     *   looking them up, for each block in the signature; the filter is
+     *   rounded up to a power of two bits, so a sixteenth or less of its bits
+     *   are set however large the file is.
+     */
+    private static final int WEAK_CHECKSUM_FILTER_BITS_PER_BLOCK = 16;
+
+    /**
+     * log2 of the fewest bits in the filter.
+     */
+    private static final int MIN_WEAK_CHECKSUM_FILTER_BITS = 16;
+
+    /**
+     * log2 of the most bits in the filter.
+     */
+    private static final int MAX_WEAK_CHECKSUM_FILTER_BITS = 30;
+
+    /**
+     * multiplier used to spread the bits of weak checksums over the filter.
+     */
+    private static final int WEAK_CHECKSUM_HASH_MULTIPLIER = 0x9E3779B9;
+
+    /**
+     * number of bytes read from a file at a time when computing its signature.
+     */
+    private static final int READ_BUFFER_SIZE = 1024*1024;
+
+    // instance data: general
+
+    /**
+     * number of bytes in each block, except maybe the last one.
+     */
+    private final int blockSize;
+
+    /**
+     * length of the file in bytes.
+     */
+    private final long fileLength;
+
+    /**
+     * weak rolling checksum of each block.
+     */
+    private final int[] weakChecksums;
+
+    /**
+     * strong checksum of each block.
+     */
+    private final byte[][] strongChecksums;
+
+    /**
+     * the weak checksums of the blocks, sorted, so the blocks that have a
+     *   weak checksum can be found by a binary search.
+     */
+    private final int[] sortedWeakChecksums;
+
+    /**
+     * indices of the blocks whose weak checksums are at the same indices in
+     *   {@code sortedWeakChecksums}; blocks with the same weak checksum are in
+     *   the order they are in the file.
+     */
+    private final int[] blocksBySortedWeakChecksum;
+
+    /**
+     * bit set with the bit at the hash of every weak checksum in the signature
+     *   set; rules out most weak checksums at every offset of the other version
+     *   of the file without having to look them up.
+     */
+    private final long[] weakChecksumFilter;
+
+    /**
+     * number of bits that the hashes of weak checksums are shifted right by
+     *   to get their index in {@code weakChecksumFilter}.
+     */
+    private final int weakChecksumFilterShift;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a signature made of the passed checksums.
+     *
+     * @method  FileSignature
+     *
+     * @date    2015-10-05T09:14:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   blockSize number of bytes in each block, except maybe the last
+     *   one.
+     * @param   fileLength length of the file in bytes.
+     * @param   weakChecksums weak rolling checksum of each block.
+     * @param   strongChecksums strong checksum of each block.
+     *
+     * @return  a new instance of FileSignature.
+     */
+    public FileSignature(int blockSize,long fileLength,int[] weakChecksums,byte[][] strongChecksums)
+    {
+        this.blockSize = blockSize;
+        this.fileLength = fileLength;
+        this.weakChecksums = weakChecksums;
+        this.strongChecksums = strongChecksums;
+
+        // sort the blocks by their weak checksums, then by their indices, by
+        // sorting each weak checksum with its block's index in the low bits
+        long[] keys = new long[weakChecksums.length];
+        for(int i = 0; i < weakChecksums.length; i++)
+        {
+            keys[i] = ((long) weakChecksums[i]<<32)|i;
+        }
+        Arrays.sort(keys);
+        this.sortedWeakChecksums = new int[keys.length];
+        this.blocksBySortedWeakChecksum = new int[keys.length];
+        for(int i = 0; i < keys.length; i++)
+        {
+            sortedWeakChecksums[i] = (int) (keys[i]>>32);
+            blocksBySortedWeakChecksum[i] = (int) keys[i];
+        }
+
+        // size the filter by the number of blocks, so it doesn't fill up for
+        // large files, and set the bit of every weak checksum in it
+        int filterBits = MIN_WEAK_CHECKSUM_FILTER_BITS;
+        while(filterBits < MAX_WEAK_CHECKSUM_FILTER_BITS && 1L<<filterBits < (long) WEAK_CHECKSUM_FILTER_BITS_PER_BLOCK*weakChecksums.length)
+        {
+            filterBits++;
+        }
+        this.weakChecksumFilter = new long[1<<(filterBits-6)];
+        this.weakChecksumFilterShift = 32-filterBits;
+        for(int weakChecksum : weakChecksums)
+        {
+            int index = filterIndex(weakChecksum);
+            weakChecksumFilter[index>>>6] |= 1L<<index;
+        }
+    }
+
+    // public interface: factories
+
+    /**
+     * computes the signature of the passed file. the signature of an empty
+     *   file, which has no blocks, is returned if the file doesn't exist.
+     *
+     * @method  compute
+     *
+     * @date    2015-10-05T09:16:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file the file to compute the signature of.
+     *
+     * @return  the signature of the file.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public static FileSignature compute(File file) throws IOException
+    {
+        long fileLength = file.isFile() ? file.length() : 0;
+        int blockSize = blockSizeFor(fileLength);
+        int blockCount = (int) ((fileLength+blockSize-1)/blockSize);
+        int[] weakChecksums = new int[blockCount];
+        byte[][] strongChecksums = new byte[blockCount][];
+        if(blockCount == 0)
+        {
+            return new FileSignature(blockSize,0,weakChecksums,strongChecksums);
+        }
+
+        // read the file a whole number of blocks at a time, and checksum each
+        // block in the buffer
+        MessageDigest md5 = newStrongDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(blockSize,READ_BUFFER_SIZE/blockSize*blockSize));
+        try(FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.READ))
+        {
+            int blockIndex = 0;
+            long position = 0;
+            while(blockIndex < blockCount)
+            {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(),fileLength-position));
+                while(buffer.hasRemaining())
+                {
+                    if(channel.read(buffer,position+buffer.position()) == -1)
+                    {
+                        throw new IOException("file was truncated while its signature was computed");
+                    }
+                }
+                for(int offset = 0; offset < buffer.limit(); offset += blockSize)
+                {
+                    int length = Math.min(blockSize,buffer.limit()-offset);
+                    weakChecksums[blockIndex] = RollingChecksum.of(buffer.array(),offset,length);
+                    md5.update(buffer.array(),offset,length);
+                    strongChecksums[blockIndex] = md5.digest();
+                    blockIndex++;
+                }
+                position += buffer.limit();
+            }
+        }
+        return new FileSignature(blockSize,fileLength,weakChecksums,strongChecksums);
+    }
+
+    /**
+     * reads a signature that was sent with {@code write}.
+     *
+     * @method  read
+     *
+     * @date    2015-10-05T09:21:18-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   is stream to read the signature from.
+     *
+     * @return  the signature that was read.
+     *
+     * @throws  IOException thrown when an IOException occurs, or the signature
+     *   is malformed.
+     */
+    public static FileSignature read(DataInputStream is) throws IOException
+    {
+        int blockSize = is.readInt();
+        long fileLength = is.readLong();
+        if(blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || fileLength < 0 || (fileLength+blockSize-1)/blockSize > Integer.MAX_VALUE)
+        {
+            throw new IOException("invalid signature: "+fileLength+" bytes in blocks of "+blockSize);
+        }
+
+        int blockCount = (int) ((fileLength+blockSize-1)/blockSize);
+        int[] weakChecksums = new int[blockCount];
+        byte[][] strongChecksums = new byte[blockCount][STRONG_CHECKSUM_SIZE];
+        for(int i = 0; i < blockCount; i++)
+        {
+            weakChecksums[i] = is.readInt();
+            is.readFully(strongChecksums[i]);
+        }
+        return new FileSignature(blockSize,fileLength,weakChecksums,strongChecksums);
+    }
+
+    // public interface: server methods
+
+    /**
+     * sends the signature through the passed stream.
+     *
+     * @method  write
+     *
+     * @date    2015-10-05T09:23:05-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os stream to send the signature through.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public void write(DataOutputStream os) throws IOException
+    {
+        os.writeInt(blockSize);
+        os.writeLong(fileLength);
+        for(int i = 0; i < weakChecksums.length; i++)
+        {
+            os.writeInt(weakChecksums[i]);
+            os.write(strongChecksums[i]);
+        }
+    }
+
+    /**
+     * returns the index of a block whose contents are the same as the passed
+     *   bytes, or -1 if there is no such block.
+     *
+     * @method  findBlock
+     *
+     * @date    2015-10-05T09:25:47-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   weakChecksum weak rolling checksum of the passed bytes.
+     * @param   data array that holds the bytes to look for.
+     * @param   offset position of the first byte to look for in {@code data}.
+     * @param   length number of bytes to look for.
+     * @param   preferredBlock index of the block to return if several blocks
+     *   match; usually the one after the last block that was matched.
+     * @param   md5 digest used to compute the strong checksum of the bytes.
+     *
+     * @return  the index of a block whose contents are the same as the passed
+     *   bytes, or -1 if there is no such block.
+     */
+    public int findBlock(int weakChecksum,byte[] data,int offset,int length,int preferredBlock,MessageDigest md5)
+    {
+        int index = filterIndex(weakChecksum);
+        if((weakChecksumFilter[index>>>6]&1L<<index) == 0)
+        {
+            return -1;
+        }
+        int firstCandidate = firstWithWeakChecksum(weakChecksum);
+        if(firstCandidate < 0)
+        {
+            return -1;
+        }
+
+        // only compute the strong checksum once the weak checksum matches
+        md5.update(data,offset,length);
+        byte[] strongChecksum = md5.digest();
+        if(preferredBlock >= 0 && preferredBlock < weakChecksums.length && matches(preferredBlock,weakChecksum,strongChecksum,length))
+        {
+            return preferredBlock;
+        }
+        for(int i = firstCandidate; i < sortedWeakChecksums.length && sortedWeakChecksums[i] == weakChecksum; i++)
+        {
+            if(matches(blocksBySortedWeakChecksum[i],weakChecksum,strongChecksum,length))
+            {
+                return blocksBySortedWeakChecksum[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * returns the number of bytes in each block, except maybe the last one.
+     *
+     * @method  getBlockSize
+     *
+     * @date    2015-10-05T09:27:12-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of bytes in each block, except maybe the last one.
+     */
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * returns the number of blocks in the file.
+     *
+     * @method  getBlockCount
+     *
+     * @date    2015-10-05T09:27:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of blocks in the file.
+     */
+    public int getBlockCount()
+    {
+        return weakChecksums.length;
+    }
+
+    /**
+     * returns the number of bytes in the block at the passed index.
+     *
+     * @method  getBlockLength
+     *
+     * @date    2015-10-05T09:28:16-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   blockIndex index of the block.
+     *
+     * @return  the number of bytes in the block.
+     */
+    public int getBlockLength(int blockIndex)
+    {
+        return (int) Math.min(blockSize,fileLength-(long) blockIndex*blockSize);
+    }
+
+    /**
+     * returns the length of the file in bytes.
+     *
+     * @method  getFileLength
+     *
+     * @date    2015-10-05T09:28:51-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the length of the file in bytes.
+     */
+    public long getFileLength()
+    {
+        return fileLength;
+    }
+
+    // package interface: helpers
+
+    /**
+     * returns a new instance of the digest used to compute strong checksums.
+     *
+     * @method  newStrongDigest
+     *
+     * @date    2015-10-05T09:30:24-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  a new instance of the digest used to compute strong checksums.
+     */
+    static MessageDigest newStrongDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+
+        // every java platform is required to support MD5
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // private interface: helpers
+
+    /**
+     * returns the block size that a file of the passed length is split into;
+     *   about the square root of its length, so that the size of the signature
+     *   and the amount of data resent for each changed block grow together.
+     *
+     * @method  blockSizeFor
+     *
+     * @date    2015-10-05T09:31:55-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   fileLength length of the file in bytes.
+     *
+     * @return  the block size that the file is split into.
+     */
+    private static int blockSizeFor(long fileLength)
+    {
+        int blockSize = (int) Math.min(MAX_BLOCK_SIZE,(long) Math.sqrt((double) fileLength));
+        return Math.max(MIN_BLOCK_SIZE,(blockSize+1023)/1024*1024);
+    }
+
+    /**
+     * returns the index of the passed weak checksum's bit in {@code
+     *   weakChecksumFilter}.
+     *
+     * @method  filterIndex
+     *
+     * @date    2015-10-05T09:32:31-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   weakChecksum the weak checksum.
+     *
+     * @return  the index of the weak checksum's bit in the filter.
+     */
+    private int filterIndex(int weakChecksum)
+    {
+        return (weakChecksum*WEAK_CHECKSUM_HASH_MULTIPLIER)>>>weakChecksumFilterShift;
+    }
+
+    /**
+     * returns the index in {@code sortedWeakChecksums} of the first block
+     *   with the passed weak checksum.
+     *
+     * @method  firstWithWeakChecksum
+     *
+     * @date    2015-10-08T17:47:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   weakChecksum the weak checksum to look for.
+     *
+     * @return  the index of the first block with the weak checksum in the
+     *   sorted order; -1 if no block has it.
+     */
+    private int firstWithWeakChecksum(int weakChecksum)
+    {
+        int low = 0;
+        int high = sortedWeakChecksums.length;
+        while(low < high)
+        {
+            int middle = (low+high)>>>1;
+            if(sortedWeakChecksums[middle] < weakChecksum)
+            {
+                low = middle+1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low < sortedWeakChecksums.length && sortedWeakChecksums[low] == weakChecksum ? low : -1;
+    }
+
+    /**
+     * returns true if the block at the passed index has the passed length and
+     *   checksums.
+     *
+     * @method  matches
+     *
+     * @date    2015-10-05T09:33:08-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   blockIndex index of the block.
+     * @param   weakChecksum weak checksum to compare against the block's.
+     * @param   strongChecksum strong checksum to compare against the block's.
+     * @param   length length to compare against the block's.
+     *
+     * @return  true if the block has the passed length and checksums.
+     */
+    private boolean matches(int blockIndex,int weakChecksum,byte[] strongChecksum,int length)
+    {
+        return getBlockLength(blockIndex) == length
+            && weakChecksums[blockIndex] == weakChecksum
+            && Arrays.equals(strongChecksums[blockIndex],strongChecksum);
+    }
+}
@@ -0,0 +1,718 @@
+package comp7005.filetransfer.logic;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * receives a tree sent by a {@code FileTreeSender} from an input stream, and
+ *   recreates it beneath a local directory.
+ *
+ * entries are read from the stream on the calling thread, while directories
+ *   and files are created, written and closed on a writer thread, so the next
+ *   file is read from the stream while the current one is still being written.
+ *   at most {@code MAX_PENDING_BYTES} bytes of file data wait to be written at
+ *   a time; reading from the stream waits for the writer beyond that.
+ *
+ * the relative paths in the tree are checked, so entries can't be created
+ *   outside of the local directory.
+ *
+ * each file is written into a partial file beside it, and only moved into its
+ *   place once all of it has been written, so no file is ever seen half
+ *   written.
+ *
+ * @file    FileTreeReceiver.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   FileTreeReceiver
+ *
+ * @date    2015-10-06T13:44:52-0800
+ *
+ * @author  Eric Tsang
+ */
+public class FileTreeReceiver implements Closeable
+{
+    // constants: limits
+
+    /**
+     * the most bytes of file data that may be waiting to be written at a time.
+     */
+    private static final int MAX_PENDING_BYTES = 16*1024*1024;
+
+    // instance data: general
+
+    /**
+     * the stream that entries are read from.
+     */
+    private final DataInputStream is;
+
+    /**
+     * the directory that the tree is recreated beneath.
+     */
+    private final File root;
+
+    /**
+     * canonical path of {@code root}, followed by a separator.
+     */
+    private final String canonicalRoot;
+
+    /**
+     * reads the contents of each file from the stream.
+     */
+    private final FileSegmentReceiver segmentReceiver;
+
+    /**
+     * true while the contents of a file are being read from the stream.
+     */
+    private boolean receivingFile;
+
+    /**
+     * position in the current file that its next segment is written to.
+     */
+    private long filePosition;
+
+    // instance data: batches
+
+    /**
+     * true while the contents of the files of a batch are being read from the
+     *   stream.
+     */
+    private boolean receivingBatch;
+
+    /**
+     * the files of the batch that is being received.
+     */
+    private final List<File> batchFiles;
+
+    /**
+     * index in {@code batchFiles} of the file whose contents are being read.
+     */
+    private int batchIndex;
+
+    /**
+     * holds the contents of the batch file whose contents are being read.
+     */
+    private byte[] batchFileData;
+
+    /**
+     * number of bytes of {@code batchFileData} that have been read.
+     */
+    private int batchFileLength;
+
+    /**
+     * the contents of each file in the batch that is being received; all but
+     *   the one being read have been handed to the writer thread.
+     */
+    private final List<byte[]> batchData;
+
+    // instance data: writer
+
+    /**
+     * the thread that directories and files are created & written on.
+     */
+    private final ExecutorService writer;
+
+    /**
+     * one permit per byte of file data that may be waiting to be written.
+     */
+    private final Semaphore pendingBytes;
+
+    /**
+     * the first exception thrown on the writer thread; null if there has been
+     *   none.
+     */
+    private final AtomicReference<IOException> failure;
+
+    /**
+     * channel to the file that is being written; only used on the writer
+     *   thread.
+     */
+    private FileChannel channel;
+
+    /**
+     * the file that is being written; only used on the writer thread.
+     */
+    private File file;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a receiver that recreates the tree it receives beneath
+     *   {@code root}, creating {@code root} if it doesn't exist.
+     *
+     * @method  FileTreeReceiver
+     *
+     * @date    2015-10-06T13:48:09-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   is the stream to read entries from.
+     * @param   root the directory to recreate the tree beneath.
+     * @param   segmentSize maximum number of file bytes per segment.
+     * @param   compressed true if the sender may send deflated segments.
+     *
+     * @return  a new instance of FileTreeReceiver.
+     *
+     * @throws  IOException thrown when {@code root} can't be created.
+     */
+    public FileTreeReceiver(InputStream is,File root,int segmentSize,boolean compressed) throws IOException
+    {
+        if(!root.isDirectory() && !root.mkdirs())
+        {
+            throw new IOException("failed to create directory "+root);
+        }
+        this.is = new DataInputStream(is);
+        this.root = root;
+        this.canonicalRoot = root.getCanonicalPath()+File.separator;
+        this.segmentReceiver = new FileSegmentReceiver(is,null,0,segmentSize,compressed);
+        this.writer = Executors.newSingleThreadExecutor();
+        this.pendingBytes = new Semaphore(MAX_PENDING_BYTES);
+        this.failure = new AtomicReference<>();
+        this.batchFiles = new ArrayList<>();
+        this.batchData = new ArrayList<>();
+    }
+
+    // public interface: server methods
+
+    /**
+     * reads the next part of the tree from the stream; either the header of
+     *   the next entry, or the next segment of the file or batch that is being
+     *   received, and hands it to the writer thread.
+     *
+     * @method  receiveNext
+     *
+     * @date    2015-10-06T13:51:26-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of file bytes that were received, or {@code
+     *   FileTreeSender.ENTRY_END} if the end of the tree was received.
+     *
+     * @throws  IOException thrown when an IOException occurs, the tree is
+     *   malformed, or an earlier entry failed to be written.
+     */
+    public int receiveNext() throws IOException
+    {
+        // read the next segment of the current file, and close it once its end
+        // has been read
+        if(receivingFile)
+        {
+            int segmentSize = segmentReceiver.readSegment();
+            if(segmentSize == FileSegmentSender.SEGMENT_END)
+            {
+                long length = filePosition;
+                receivingFile = false;
+                submit(0,() -> closeFile(length));
+                return 0;
+            }
+
+            // skip over holes; they are zeros in the new file already
+            if(segmentReceiver.isHole())
+            {
+                filePosition += segmentSize;
+                return segmentSize;
+            }
+
+            ByteBuffer data = ByteBuffer.allocate(segmentSize);
+            data.put(segmentReceiver.getSegment());
+            data.flip();
+            long position = filePosition;
+            filePosition += segmentSize;
+            submit(segmentSize,() -> writeFile(data,position));
+            return segmentSize;
+        }
+
+        // read the next segment of the current batch, and hand each file to
+        // the writer thread as soon as all of it has been read
+        if(receivingBatch)
+        {
+            return receiveBatchSegment();
+        }
+
+        // read the header of the next entry, and create what it describes
+        int entryType = is.readInt();
+        switch(entryType)
+        {
+        case FileTreeSender.ENTRY_END:
+            return FileTreeSender.ENTRY_END;
+        case FileTreeSender.ENTRY_DIRECTORY:
+            File directory = resolve(is.readUTF());
+            submit(0,() -> createDirectory(directory));
+            return 0;
+        case FileTreeSender.ENTRY_FILE:
+            File file = resolve(is.readUTF());
+            long length = is.readLong();
+            receivingFile = true;
+            filePosition = 0;
+            submit(0,() -> openFile(file,length));
+            return 0;
+        case FileTreeSender.ENTRY_BATCH:
+            receiveBatchHeader();
+            return 0;
+        default:
+            throw new IOException("invalid entry type: "+entryType);
+        }
+    }
+
+    /**
+     * waits for the writer thread to finish writing everything that was
+     *   received, and discards the partial file of the file that was being
+     *   written, if any.
+     *
+     * @method  close
+     *
+     * @date    2015-10-06T13:54:38-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when something that was received failed to
+     *   be written.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        writer.shutdown();
+        try
+        {
+            while(!writer.awaitTermination(1,TimeUnit.SECONDS));
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        finally
+        {
+            segmentReceiver.close();
+            if(channel != null)
+            {
+                // the file wasn't received in full; leave the file it would
+                // have replaced alone
+                try
+                {
+                    channel.close();
+                    channel = null;
+                }
+                finally
+                {
+                    Files.deleteIfExists(FileUtils.partFile(file).toPath());
+                }
+            }
+        }
+        rethrowFailure();
+    }
+
+    // private interface: batches
+
+    /**
+     * reads the names & lengths of the files in a batch, and gets ready to
+     *   read their contents.
+     *
+     * @method  receiveBatchHeader
+     *
+     * @date    2015-10-07T09:36:14-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs, or the batch is
+     *   malformed.
+     */
+    private void receiveBatchHeader() throws IOException
+    {
+        int fileCount = is.readInt();
+        if(fileCount < 0 || fileCount > FileTreeSender.MAX_BATCH_FILES)
+        {
+            throw new IOException("invalid batch size: "+fileCount+" files");
+        }
+
+        batchFiles.clear();
+        batchData.clear();
+        long batchLength = 0;
+        for(int i = 0; i < fileCount; i++)
+        {
+            File file = resolve(is.readUTF());
+            int length = is.readInt();
+            batchLength += length;
+            if(length < 0 || batchLength > FileTreeSender.MAX_BATCH_BYTES)
+            {
+                throw new IOException("invalid batch length: "+batchLength);
+            }
+            batchFiles.add(file);
+            batchData.add(new byte[length]);
+        }
+
+        receivingBatch = true;
+        batchIndex = -1;
+        nextBatchFile();
+    }
+
+    /**
+     * reads the next segment of the batch that is being received, and splits
+     *   it among the files that it belongs to.
+     *
+     * @method  receiveBatchSegment
+     *
+     * @date    2015-10-07T09:39:47-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of file bytes that were received.
+     *
+     * @throws  IOException thrown when an IOException occurs, or the batch is
+     *   malformed.
+     */
+    private int receiveBatchSegment() throws IOException
+    {
+        int segmentSize = segmentReceiver.readSegment();
+        if(segmentSize == FileSegmentSender.SEGMENT_END)
+        {
+            if(batchIndex != batchFiles.size())
+            {
+                throw new IOException("batch ended before all of its files were received");
+            }
+            receivingBatch = false;
+            return 0;
+        }
+        if(segmentReceiver.isHole())
+        {
+            throw new IOException("batches can't hold holes");
+        }
+
+        ByteBuffer segment = segmentReceiver.getSegment();
+        while(segment.hasRemaining())
+        {
+            if(batchIndex == batchFiles.size())
+            {
+                throw new IOException("batch is longer than its files");
+            }
+            int length = Math.min(segment.remaining(),batchFileData.length-batchFileLength);
+            segment.get(batchFileData,batchFileLength,length);
+            batchFileLength += length;
+            if(batchFileLength == batchFileData.length)
+            {
+                nextBatchFile();
+            }
+        }
+        return segmentSize;
+    }
+
+    /**
+     * hands the batch file whose contents have been read to the writer
+     *   thread, if any, and moves on to the next file in the batch that isn't
+     *   empty; empty files are handed to the writer thread right away.
+     *
+     * @method  nextBatchFile
+     *
+     * @date    2015-10-07T09:42:31-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an earlier entry failed to be written.
+     */
+    private void nextBatchFile() throws IOException
+    {
+        do
+        {
+            if(batchIndex >= 0)
+            {
+                File file = batchFiles.get(batchIndex);
+                byte[] data = batchData.get(batchIndex);
+                batchData.set(batchIndex,null);
+                submit(data.length,() -> writeSmallFile(file,data));
+            }
+            batchIndex++;
+        }
+        while(batchIndex < batchFiles.size() && batchData.get(batchIndex).length == 0);
+
+        batchFileData = batchIndex < batchFiles.size() ? batchData.get(batchIndex) : null;
+        batchFileLength = 0;
+    }
+
+    // private interface: writer tasks
+
+    /**
+     * something to do on the writer thread.
+     */
+    private interface WriterTask
+    {
+        void run() throws IOException;
+    }
+
+    /**
+     * hands the passed task to the writer thread, after waiting for enough of
+     *   the data that is already waiting to be written to be written.
+     *
+     * @method  submit
+     *
+     * @date    2015-10-06T13:57:03-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   bytes number of bytes of file data the task writes.
+     * @param   task the task to run on the writer thread.
+     *
+     * @throws  IOException thrown when an earlier task failed.
+     */
+    private void submit(int bytes,WriterTask task) throws IOException
+    {
+        rethrowFailure();
+        try
+        {
+            pendingBytes.acquire(bytes);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        writer.execute(() ->
+        {
+            try
+            {
+                // skip everything after the first failure
+                if(failure.get() == null)
+                {
+                    task.run();
+                }
+            }
+            catch(IOException e)
+            {
+                failure.compareAndSet(null,e);
+            }
+            finally
+            {
+                pendingBytes.release(bytes);
+            }
+        });
+    }
+
+    /**
+     * creates the passed directory if it doesn't exist already.
+     *
+     * @method  createDirectory
+     *
+     * @date    2015-10-06T13:58:55-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   directory the directory to create.
+     *
+     * @throws  IOException thrown when the directory can't be created.
+     */
+    private void createDirectory(File directory) throws IOException
+    {
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("failed to create directory "+directory);
+        }
+    }
+
+    /**
+     * creates or truncates the partial file of the passed file, preallocates
+     *   it, and opens it for writing.
+     *
+     * @method  openFile
+     *
+     * @date    2015-10-06T14:00:12-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file the file to open.
+     * @param   length length of the file, as sent by the sender.
+     *
+     * @throws  IOException thrown when an IOException occurs, or there isn't
+     *   enough space left for the file.
+     */
+    private void openFile(File file,long length) throws IOException
+    {
+        createDirectory(file.getParentFile());
+        File partFile = FileUtils.partFile(file);
+        RandomAccessFile raf = new RandomAccessFile(partFile,"rw");
+        try
+        {
+            raf.setLength(0);
+            FileUtils.preallocate(raf,partFile,length);
+        }
+        catch(IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+        this.channel = raf.getChannel();
+        this.file = file;
+    }
+
+    /**
+     * writes all of the contents of the passed file into its partial file at
+     *   once, and moves it into its place.
+     *
+     * @method  writeSmallFile
+     *
+     * @date    2015-10-07T09:45:12-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file the file to write.
+     * @param   data the contents of the file.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void writeSmallFile(File file,byte[] data) throws IOException
+    {
+        createDirectory(file.getParentFile());
+        File partFile = FileUtils.partFile(file);
+        Files.write(partFile.toPath(),data);
+        FileUtils.commitPartFile(partFile,file);
+    }
+
+    /**
+     * writes the passed data into the file that is open, at the passed
+     *   position.
+     *
+     * @method  writeFile
+     *
+     * @date    2015-10-06T14:01:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   data the data to write.
+     * @param   position position in the file to write the data at.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void writeFile(ByteBuffer data,long position) throws IOException
+    {
+        while(data.hasRemaining())
+        {
+            position += channel.write(data,position);
+        }
+    }
+
+    /**
+     * closes the file that is open, after making it as long as the file that
+     *   was received, in case it ended in a hole, or was shorter than it was
+     *   preallocated to be, and moves it into its place.
+     *
+     * @method  closeFile
+     *
+     * @date    2015-10-06T14:02:18-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   length length of the file that was received.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void closeFile(long length) throws IOException
+    {
+        if(channel.size() > length)
+        {
+            channel.truncate(length);
+        }
+        else if(length > 0 && channel.size() < length)
+        {
+            channel.write(ByteBuffer.allocate(1),length-1);
+        }
+        channel.close();
+        channel = null;
+        FileUtils.commitPartFile(FileUtils.partFile(file),file);
+    }
+
+    // private interface: helpers
+
+    /**
+     * returns the local file at the passed path relative to the root of the
+     *   tree.
+     *
+     * @method  resolve
+     *
+     * @date    2015-10-06T14:04:41-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   relativePath path relative to the root of the tree, with its
+     *   names separated by '/'.
+     *
+     * @return  the local file at the path.
+     *
+     * @throws  IOException thrown when the path is malformed, or leads out of
+     *   the root of the tree.
+     */
+    private File resolve(String relativePath) throws IOException
+    {
+        File file = root;
+        for(String name : relativePath.split("/",-1))
+        {
+            if(!isValidName(name))
+            {
+                throw new IOException("invalid path in tree: "+relativePath);
+            }
+            file = new File(file,name);
+        }
+
+        // make sure that no symbolic links lead out of the root either
+        if(!file.getCanonicalPath().startsWith(canonicalRoot))
+        {
+            throw new IOException("path in tree leads out of "+root+": "+relativePath);
+        }
+        return file;
+    }
+
+    /**
+     * returns true if the passed string can be used as the name of a file
+     *   within a directory, without leading anywhere else.
+     *
+     * @method  isValidName
+     *
+     * @date    2015-10-06T14:06:07-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   name the name to check.
+     *
+     * @return  true if the name can be used as the name of a file.
+     */
+    static boolean isValidName(String name)
+    {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..")
+            && name.indexOf('/') < 0 && name.indexOf(File.separatorChar) < 0
+            && (File.separatorChar != '\\' || name.indexOf(':') < 0);
+    }
+
+    /**
+     * throws the first exception that was thrown on the writer thread, if
+     *   any.
+     *
+     * @method  rethrowFailure
+     *
+     * @date    2015-10-06T14:07:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException the first exception thrown on the writer thread.
+     */
+    private void rethrowFailure() throws IOException
+    {
+        IOException e = failure.get();
+        if(e != null)
+        {
+            throw new IOException(e.getMessage(),e);
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package comp7005.filetransfer.logic;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * sends a directory, and everything in it, through an output stream as one
+ *   continuous sequence of entries, so a whole tree can be sent without a
+ *   handshake per file.
+ *
+ * each entry begins with a 4 byte entry type. a directory entry is followed
+ *   by the directory's path relative to the root of the tree. a file entry is
+ *   followed by the file's relative path, its length, then its contents as
+ *   segments sent by a {@code FileSegmentSender}. the end of the tree is
+ *   indicated by the entry type {@code ENTRY_END}. relative paths use '/' to
+ *   separate names, and every directory is sent before any file.
+ *
+ * files smaller than the batch threshold are packed together into batch
+ *   entries instead, so each small file costs little more than its name. a
+ *   batch entry is followed by the number of files in it, the relative path
+ *   and length of each file, then the contents of all of them, one after the
+ *   other, as segments sent by a {@code FileSegmentSender}.
+ *
+ * only directories and regular files are sent; symbolic links are skipped.
+ *
+ * @file    FileTreeSender.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   FileTreeSender
+ *
+ * @date    2015-10-06T13:24:05-0800
+ *
+ * @author  Eric Tsang
+ */
+public class FileTreeSender implements Closeable
+{
+    // constants: entry types
+
+    /**
+     * entry type indicating that there are no more entries.
+     */
+    public static final int ENTRY_END = -1;
+
+    /**
+     * entry type of a directory entry.
+     */
+    public static final int ENTRY_DIRECTORY = 0;
+
+    /**
+     * entry type of a file entry.
+     */
+    public static final int ENTRY_FILE = 1;
+
+    /**
+     * entry type of a batch entry, holding several small files.
+     */
+    public static final int ENTRY_BATCH = 2;
+
+    // constants: limits
+
+    /**
+     * the most bytes of file contents that are packed into a batch.
+     */
+    public static final int MAX_BATCH_BYTES = 1024*1024;
+
+    /**
+     * the most files that are packed into a batch.
+     */
+    public static final int MAX_BATCH_FILES = 4096;
+
+    // instance data: general
+
+    /**
+     * the stream that entries are written to.
+     */
+    private final DataOutputStream os;
+
+    /**
+     * root of the tree that is being sent.
+     */
+    private final Path root;
+
+    /**
+     * the directories and files in the tree, in the order they are sent.
+     */
+    private final List<Path> entries;
+
+    /**
+     * index in {@code entries} of the next entry to send.
+     */
+    private int nextEntry;
+
+    /**
+     * files smaller than this many bytes are sent in batches.
+     */
+    private final int batchThreshold;
+
+    /**
+     * holds the contents of the files of the batch that is being sent;
+     *   allocated when the first batch is sent.
+     */
+    private byte[] batchData;
+
+    /**
+     * total number of bytes in the files of the tree.
+     */
+    private long totalBytes;
+
+    /**
+     * sends the contents of each file, reusing its buffers from one file to the
+     *   next.
+     */
+    private final FileSegmentSender segmentSender;
+
+    /**
+     * channel to the file whose contents are being sent; null between files.
+     */
+    private FileChannel channel;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a sender that sends the tree rooted at {@code root}. the
+     *   tree is walked right away, so its size is known before it is sent.
+     *
+     * @method  FileTreeSender
+     *
+     * @date    2015-10-06T13:27:31-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os the stream to write entries to.
+     * @param   root the directory to send.
+     * @param   segmentSize maximum number of file bytes to send per segment.
+     * @param   compressed true to deflate segments that compress well.
+     * @param   sparse true to send runs of zeros in files as holes.
+     * @param   batchThreshold files smaller than this many bytes are sent in
+     *   batches; 0 to send every file on its own. limited to {@code
+     *   MAX_BATCH_BYTES}.
+     *
+     * @return  a new instance of FileTreeSender.
+     *
+     * @throws  IOException thrown when an IOException occurs while walking the
+     *   tree.
+     */
+    public FileTreeSender(OutputStream os,File root,int segmentSize,boolean compressed,boolean sparse,int batchThreshold) throws IOException
+    {
+        this.os = new DataOutputStream(os);
+        this.root = root.toPath();
+        this.segmentSender = new FileSegmentSender(os,null,0,0,segmentSize,false,compressed,sparse);
+        this.batchThreshold = Math.max(0,Math.min(MAX_BATCH_BYTES,batchThreshold));
+
+        // walk the tree, remembering each directory & regular file in it; the
+        // directories go first, so batches aren't cut short by them
+        List<Path> directories = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(this.root,new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,BasicFileAttributes attrs)
+            {
+                if(!dir.equals(FileTreeSender.this.root))
+                {
+                    directories.add(dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file,BasicFileAttributes attrs)
+            {
+                if(attrs.isRegularFile())
+                {
+                    files.add(file);
+                    totalBytes += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        this.entries = directories;
+        this.entries.addAll(files);
+    }
+
+    // public interface: static methods
+
+    /**
+     * returns the total number of bytes in the regular files of the tree rooted
+     *   at {@code root}, without making a sender for it; used to tell how
+     *   large a tree is before it is negotiated how it will be sent.
+     *
+     * @method  getTotalBytes
+     *
+     * @date    2015-10-08T17:46:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   root the directory to measure.
+     *
+     * @return  the total number of bytes in the files of the tree.
+     *
+     * @throws  IOException thrown when an IOException occurs while walking the
+     *   tree.
+     */
+    public static long getTotalBytes(File root) throws IOException
+    {
+        long[] totalBytes = {0};
+        Files.walkFileTree(root.toPath(),new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file,BasicFileAttributes attrs)
+            {
+                if(attrs.isRegularFile())
+                {
+                    totalBytes[0] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return totalBytes[0];
+    }
+
+    // public interface: server methods
+
+    /**
+     * sends the next part of the tree; either the header of the next entry, the
+     *   next segment of the file that is being sent, or a whole batch of small
+     *   files. once every entry has been sent, the end of the tree is sent
+     *   instead.
+     *
+     * @method  sendNext
+     *
+     * @date    2015-10-06T13:31:12-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of file bytes that were sent, or {@code ENTRY_END}
+     *   if the end of the tree was sent.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public int sendNext() throws IOException
+    {
+        // send the next segment of the current file, and close it once its end
+        // has been sent
+        if(channel != null)
+        {
+            int segmentSize = segmentSender.sendSegment();
+            if(segmentSize != FileSegmentSender.SEGMENT_END)
+            {
+                return segmentSize;
+            }
+            channel.close();
+            channel = null;
+            return 0;
+        }
+
+        // every entry has been sent
+        if(nextEntry == entries.size())
+        {
+            sendEnd();
+            return ENTRY_END;
+        }
+
+        // send the header of the next entry, and get ready to send the file's
+        // contents if it is a file; pack it with the files after it if it is
+        // small
+        Path entry = entries.get(nextEntry);
+        String relativePath = toRelativePath(entry);
+        if(Files.isDirectory(entry))
+        {
+            os.writeInt(ENTRY_DIRECTORY);
+            os.writeUTF(relativePath);
+            nextEntry++;
+        }
+        else if(Files.size(entry) < batchThreshold)
+        {
+            return sendBatch();
+        }
+        else
+        {
+            nextEntry++;
+            channel = FileChannel.open(entry,StandardOpenOption.READ);
+            long length = channel.size();
+            os.writeInt(ENTRY_FILE);
+            os.writeUTF(relativePath);
+            os.writeLong(length);
+            segmentSender.reset(channel,0,length);
+        }
+        return 0;
+    }
+
+    /**
+     * sends the end of the tree, indicating that no more entries will be sent.
+     *   if a file was being sent, the end of its contents is sent first.
+     *
+     * @method  sendEnd
+     *
+     * @date    2015-10-06T13:33:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public void sendEnd() throws IOException
+    {
+        if(channel != null)
+        {
+            segmentSender.sendEnd();
+            channel.close();
+            channel = null;
+        }
+        os.writeInt(ENTRY_END);
+        os.flush();
+    }
+
+    /**
+     * returns the total number of bytes in the files of the tree.
+     *
+     * @method  getTotalBytes
+     *
+     * @date    2015-10-06T13:34:22-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the total number of bytes in the files of the tree.
+     */
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    /**
+     * closes the file that is being sent, if any, and releases the sender's
+     *   buffers.
+     *
+     * @method  close
+     *
+     * @date    2015-10-06T13:35:03-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        segmentSender.close();
+        if(channel != null)
+        {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // private interface: batches
+
+    /**
+     * reads the next run of small files into memory, as many as fit into a
+     *   batch, and sends them as a batch entry.
+     *
+     * @method  sendBatch
+     *
+     * @date    2015-10-07T09:22:05-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of file bytes that were sent.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private int sendBatch() throws IOException
+    {
+        if(batchData == null)
+        {
+            batchData = new byte[MAX_BATCH_BYTES];
+        }
+
+        // read small files into the batch until one doesn't fit, or isn't
+        // small
+        List<String> relativePaths = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        int batchLength = 0;
+        while(nextEntry < entries.size() && relativePaths.size() < MAX_BATCH_FILES)
+        {
+            Path entry = entries.get(nextEntry);
+            long size = Files.size(entry);
+            if(size >= batchThreshold || batchLength+size > MAX_BATCH_BYTES)
+            {
+                break;
+            }
+            int length = readFully(entry,batchLength,(int) size);
+            relativePaths.add(toRelativePath(entry));
+            lengths.add(length);
+            batchLength += length;
+            nextEntry++;
+        }
+
+        // send the names & lengths of the files, then their contents
+        os.writeInt(ENTRY_BATCH);
+        os.writeInt(relativePaths.size());
+        for(int i = 0; i < relativePaths.size(); i++)
+        {
+            os.writeUTF(relativePaths.get(i));
+            os.writeInt(lengths.get(i));
+        }
+        segmentSender.sendData(batchData,0,batchLength);
+        return batchLength;
+    }
+
+    /**
+     * reads up to {@code length} bytes from the beginning of the passed file
+     *   into the batch buffer; fewer if the file has become shorter.
+     *
+     * @method  readFully
+     *
+     * @date    2015-10-07T09:25:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file the file to read.
+     * @param   offset index in the batch buffer to read the file into.
+     * @param   length the most bytes to read.
+     *
+     * @return  the number of bytes that were read.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private int readFully(Path file,int offset,int length) throws IOException
+    {
+        try(FileChannel fileChannel = FileChannel.open(file,StandardOpenOption.READ))
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(batchData,offset,length);
+            while(buffer.hasRemaining())
+            {
+                if(fileChannel.read(buffer) == -1)
+                {
+                    break;
+                }
+            }
+            return buffer.position()-offset;
+        }
+    }
+
+    // private interface: helpers
+
+    /**
+     * returns the path of the passed entry relative to the root of the tree,
+     *   with its names separated by '/'.
+     *
+     * @method  toRelativePath
+     *
+     * @date    2015-10-06T13:36:18-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   entry path to a directory or file in the tree.
+     *
+     * @return  the path of the entry relative to the root of the tree.
+     */
+    private String toRelativePath(Path entry)
+    {
+        StringBuilder relativePath = new StringBuilder();
+        for(Path name : root.relativize(entry))
+        {
+            if(relativePath.length() > 0)
+            {
+                relativePath.append('/');
+            }
+            relativePath.append(name.toString());
+        }
+        return relativePath.toString();
+    }
+}
@@ -0,0 +1,411 @@
+package comp7005.filetransfer.logic;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * provides static access to miscellaneous helper functions related to files,
+ *   and the buffers used to read and write them.
+ *
+ * @file    FileUtils.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   FileUtils
+ *
+ * @date    2015-10-03T15:40:12-0800
+ *
+ * @author  Eric Tsang
+ */
+public class FileUtils
+{
+    // constants: checksums
+
+    /**
+     * number of bytes read from a file at a time when computing its checksum.
+     */
+    private static final int CHECKSUM_BUFFER_SIZE = 1024*1024;
+
+    /**
+     * number of bytes in the hash returned by {@code contentHash}.
+     */
+    static final int CONTENT_HASH_SIZE = 32;
+
+    /**
+     * zeros fed to checksums by {@code updateWithZeros}.
+     */
+    private static final byte[] ZEROS = new byte[64*1024];
+
+    // constants: partial files
+
+    /**
+     * appended to the name of a file, after a leading '.', to get the name of
+     *   the file that it is received into.
+     */
+    public static final String PART_FILE_SUFFIX = ".part";
+
+    // constants: direct buffer cleaners
+
+    /**
+     * {@code sun.misc.Unsafe.invokeCleaner}, which is how direct buffers are
+     *   released on java 9 and later; null if it is unavailable.
+     */
+    private static final Method INVOKE_CLEANER;
+
+    /**
+     * the {@code sun.misc.Unsafe} instance to invoke {@code INVOKE_CLEANER}
+     *   on; null if it is unavailable.
+     */
+    private static final Object UNSAFE;
+
+    static
+    {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner",ByteBuffer.class);
+            unsafe = theUnsafe.get(null);
+        }
+
+        // we are running on java 8; buffers are cleaned through their own
+        // cleaner instead
+        catch(ReflectiveOperationException e)
+        {
+            invokeCleaner = null;
+            unsafe = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * returns the CRC32 checksum of the first {@code length} bytes of the
+     *   passed file. the checksum of zero bytes is returned if {@code length}
+     *   is zero, even if the file doesn't exist.
+     *
+     * @method  checksum
+     *
+     * @date    2015-10-04T13:31:15-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file the file to compute the checksum of.
+     * @param   length number of bytes at the beginning of the file to include
+     *   in the checksum.
+     *
+     * @return  the CRC32 checksum of the first {@code length} bytes of the
+     *   file.
+     *
+     * @throws  IOException thrown when an IOException occurs, or the file is
+     *   shorter than {@code length} bytes.
+     */
+    public static long checksum(File file,long length) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        if(length == 0)
+        {
+            return crc.getValue();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(CHECKSUM_BUFFER_SIZE,length));
+        try(FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.READ))
+        {
+            long position = 0;
+            while(position < length)
+            {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(),length-position));
+                int bytesRead = channel.read(buffer,position);
+                if(bytesRead == -1)
+                {
+                    throw new EOFException("file is shorter than "+length+" bytes");
+                }
+                buffer.flip();
+                crc.update(buffer);
+                position += bytesRead;
+            }
+        }
+        finally
+        {
+            release(buffer);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * updates the passed checksum with the passed number of zero bytes, as if
+     *   they had been read from a file; used to checksum holes without reading
+     *   them.
+     *
+     * @method  updateWithZeros
+     *
+     * @date    2015-10-08T09:06:31-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   checksum the checksum to update.
+     * @param   length number of zero bytes to update it with.
+     */
+    public static void updateWithZeros(Checksum checksum,long length)
+    {
+        while(length > 0)
+        {
+            int chunkLength = (int) Math.min(ZEROS.length,length);
+            checksum.update(ZEROS,0,chunkLength);
+            length -= chunkLength;
+        }
+    }
+
+    /**
+     * returns the SHA-256 hash of the contents of the passed file.
+     *
+     * @method  contentHash
+     *
+     * @date    2015-10-06T09:12:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file the file to hash.
+     *
+     * @return  the SHA-256 hash of the file's contents.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public static byte[] contentHash(File file) throws IOException
+    {
+        MessageDigest sha256;
+        try
+        {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        }
+
+        // every java platform is required to support SHA-256
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+        try(FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.READ))
+        {
+            while(channel.read(buffer) != -1)
+            {
+                buffer.flip();
+                sha256.update(buffer);
+                buffer.clear();
+            }
+        }
+        finally
+        {
+            release(buffer);
+        }
+        return sha256.digest();
+    }
+
+    /**
+     * replaces {@code target} with a file that has the same contents as
+     *   {@code source}. the new file is a hard link to {@code source} on unix
+     *   file systems that support them, and a copy otherwise.
+     *
+     * the new file is put together beside {@code target}, and moved over it
+     *   once it is complete.
+     *
+     * @method  linkOrCopy
+     *
+     * @date    2015-10-06T09:15:26-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   source the file whose contents to use.
+     * @param   target the file to replace.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public static void linkOrCopy(File source,File target) throws IOException
+    {
+        File temp = File.createTempFile("."+target.getName()+".",".link",target.getAbsoluteFile().getParentFile());
+        try
+        {
+            boolean linked = false;
+            if(FileSystems.getDefault().supportedFileAttributeViews().contains("unix"))
+            {
+                try
+                {
+                    Files.delete(temp.toPath());
+                    Files.createLink(temp.toPath(),source.toPath());
+                    linked = true;
+                }
+
+                // the files are on different file systems, or the file system
+                // doesn't support hard links; copy it instead
+                catch(IOException|UnsupportedOperationException e)
+                {
+                    linked = false;
+                }
+            }
+            if(!linked)
+            {
+                Files.copy(source.toPath(),temp.toPath(),StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temp.toPath(),target.toPath(),StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    /**
+     * sets the length of the passed open file up front, to the length it will
+     *   have once it has been received, so its size doesn't have to be updated
+     *   with every write, and writes may land anywhere in it.
+     *
+     * java has no portable way to reserve the space itself, so the usable
+     *   space left on the file's file system is checked instead, and an
+     *   exception is thrown right away if the rest of the file can't fit.
+     *
+     * @method  preallocate
+     *
+     * @date    2015-10-07T15:02:36-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   raf the open file.
+     * @param   file path of the open file.
+     * @param   length length of the file once it has been received.
+     *
+     * @throws  IOException thrown when an IOException occurs, or there isn't
+     *   enough space left for the rest of the file.
+     */
+    public static void preallocate(RandomAccessFile raf,File file,long length) throws IOException
+    {
+        long bytesNeeded = length-raf.length();
+        long usableSpace = file.getAbsoluteFile().getParentFile().getUsableSpace();
+        if(bytesNeeded > usableSpace)
+        {
+            throw new IOException("not enough space for "+file+": "+bytesNeeded+" bytes needed, "+usableSpace+" bytes available");
+        }
+        raf.setLength(length);
+    }
+
+    /**
+     * returns the file that the passed file is received into, beside it in the
+     *   same directory. a file is only put in its place by {@code
+     *   commitPartFile} once all of it has been received, so nothing ever sees
+     *   it half written, and the partial file is what a transfer resumes from.
+     *
+     * @method  partFile
+     *
+     * @date    2015-10-08T09:12:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   file the file that is being received.
+     *
+     * @return  the file that {@code file} is received into.
+     */
+    public static File partFile(File file)
+    {
+        return new File(file.getAbsoluteFile().getParentFile(),"."+file.getName()+PART_FILE_SUFFIX);
+    }
+
+    /**
+     * moves a file that was received in full into its place, replacing the
+     *   file that was there, if any, in one atomic rename where the file system
+     *   supports it.
+     *
+     * @method  commitPartFile
+     *
+     * @date    2015-10-08T09:15:03-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   partFile the file that was received, as returned by {@code
+     *   partFile}.
+     * @param   file the file to put it in place of.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public static void commitPartFile(File partFile,File file) throws IOException
+    {
+        try
+        {
+            Files.move(partFile.toPath(),file.toPath(),StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(AtomicMoveNotSupportedException e)
+        {
+            Files.move(partFile.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * releases the memory or the file mapping behind the passed direct buffer
+     *   right away, instead of whenever the garbage collector gets to it. the
+     *   buffer must not be used after this method is called.
+     *
+     * if the buffer cannot be released on this JVM, it is left to the garbage
+     *   collector.
+     *
+     * @method  release
+     *
+     * @date    2015-10-03T15:42:55-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   buffer the direct or mapped buffer to release.
+     */
+    public static void release(ByteBuffer buffer)
+    {
+        if(buffer == null || !buffer.isDirect())
+        {
+            return;
+        }
+
+        try
+        {
+            // java 9 and later
+            if(INVOKE_CLEANER != null)
+            {
+                INVOKE_CLEANER.invoke(UNSAFE,buffer);
+            }
+
+            // java 8: ((sun.nio.ch.DirectBuffer) buffer).cleaner().clean()
+            else
+            {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if(cleaner != null)
+                {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        }
+
+        // leave it to the garbage collector
+        catch(ReflectiveOperationException|RuntimeException e)
+        {
+            // do nothing
+        }
+    }
+}
@@ -41,6 +41,11 @@ public class JsonableFile implements Jsonable
      */
     private static final String KEY_NAME = "2";
 
+    /**
+     * JSON key that is associated with the length of this file in bytes.
+     */
+    private static final String KEY_LENGTH = "3";
+
     // instance data: properties
 
     /**
@@ -58,6 +63,11 @@ public class JsonableFile implements Jsonable
      */
     private final String name;
 
+    /**
+     * length of this file in bytes; -1 if it is unknown.
+     */
+    private final long length;
+
     // public interface: constructors
 
     /**
@@ -76,10 +86,32 @@ public class JsonableFile implements Jsonable
      * @return  a new jsonableFile instance.
      */
     public JsonableFile(boolean isDirectory,String absolutePath,String name)
+    {
+        this(isDirectory,absolutePath,name,-1);
+    }
+
+    /**
+     * instantiates a JsonableFile instance with the passed properties.
+     *
+     * @method  JsonableFile
+     *
+     * @date    2015-10-04T09:12:03-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   isDirectory true if the file is a directory; false otherwise.
+     * @param   absolutePath absolute path to the file.
+     * @param   name name of the file.
+     * @param   length length of the file in bytes; -1 if it is unknown.
+     *
+     * @return  a new jsonableFile instance.
+     */
+    public JsonableFile(boolean isDirectory,String absolutePath,String name,long length)
     {
         this.isDirectory = isDirectory;
         this.absolutePath = absolutePath;
         this.name = name;
+        this.length = length;
     }
 
     /**
@@ -98,7 +130,7 @@ public class JsonableFile implements Jsonable
      */
     public JsonableFile(File file)
     {
-        this(file.isDirectory(),file.getAbsolutePath(),file.getName());
+        this(file.isDirectory(),file.getAbsolutePath(),file.getName(),file.length());
     }
 
     // public interface: server methods
@@ -151,6 +183,22 @@ public class JsonableFile implements Jsonable
         return name;
     }
 
+    /**
+     * returns the length of the file in bytes.
+     *
+     * @method  getLength
+     *
+     * @date    2015-10-04T09:13:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the length of the file in bytes; -1 if it is unknown.
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
     // public interface: Jsonable
 
     /**
@@ -171,6 +219,7 @@ public class JsonableFile implements Jsonable
         json.put(KEY_IS_DIR,isDirectory);
         json.put(KEY_ABS_PATH,getAbsolutePath());
         json.put(KEY_NAME,getName());
+        json.put(KEY_LENGTH,getLength());
         return json;
     }
 
@@ -191,6 +240,7 @@ public class JsonableFile implements Jsonable
         return new JsonableFile(
                 json.getBoolean(KEY_IS_DIR),
                 json.getString(KEY_ABS_PATH),
-                json.getString(KEY_NAME));
+                json.getString(KEY_NAME),
+                json.optLong(KEY_LENGTH,-1));
     }
 }
@@ -9,6 +9,9 @@ import comp7005.filetransfer.gui.FileListItem;
 import comp7005.filetransfer.gui.FolderListItem;
 import comp7005.filetransfer.gui.ListItem;
 
+import javax.swing.JMenuItem;
+import javax.swing.JPopupMenu;
+
 /**
  * the local list adapter manages what list items are displayed on the scroll
  *   pane that displays the local files. it also defines the behavior when the
@@ -98,20 +101,25 @@ public class LocalListAdapter extends LabeledScrollPane.Adapter
                         new Thread(() ->
                                 clientLogic.setLocalDirectory(file.getAbsolutePath()))
                                 .start());
+
+                // the parent directory can only be navigated to; any other
+                // directory can be transferred with everything in it
+                if(!file.getName().equals(".."))
+                {
+                    JPopupMenu popupMenu = new JPopupMenu();
+                    JMenuItem transferMenuItem = new JMenuItem("Upload Folder");
+                    transferMenuItem.addActionListener(e ->
+                        clientLogic.queuePushDirectory(getParentComponent(),new File(file.getAbsolutePath())));
+                    popupMenu.add(transferMenuItem);
+                    item.setComponentPopupMenu(popupMenu);
+                }
             }
             else
             {
                 ListItem<?> item = new FileListItem(file);
                 fileLis.add(item);
                 item.addActionListener(e ->
-                        new Thread()
-                        {
-                            @Override
-                            public void run()
-                            {
-                                clientLogic.pushFile(getParentComponent(),new File(file.getAbsolutePath()));
-                            }
-                        }.start());
+                        clientLogic.queuePushFile(getParentComponent(),new File(file.getAbsolutePath())));
             }
         }
 
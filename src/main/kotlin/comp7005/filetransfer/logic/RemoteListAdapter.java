@@ -8,6 +8,9 @@ import comp7005.filetransfer.gui.FileListItem;
 import comp7005.filetransfer.gui.FolderListItem;
 import comp7005.filetransfer.gui.ListItem;
 
+import javax.swing.JMenuItem;
+import javax.swing.JPopupMenu;
+
 /**
  * manages the list items that are displayed on the scroll pane used to show
  *   files on the remote server.
@@ -91,23 +94,26 @@ public class RemoteListAdapter extends LabeledScrollPane.Adapter
                 ListItem<?> item = new FolderListItem(file);
                 folderLis.add(item);
                 item.addActionListener(e ->
-                        new Thread(() ->
-                            clientLogic.setRemoteDirectory(getParentComponent(),file.getAbsolutePath()))
-                            .start());
+                        clientLogic.queueSetRemoteDirectory(getParentComponent(),file.getAbsolutePath()));
+
+                // the parent directory can only be navigated to; any other
+                // directory can be transferred with everything in it
+                if(!file.getName().equals(".."))
+                {
+                    JPopupMenu popupMenu = new JPopupMenu();
+                    JMenuItem transferMenuItem = new JMenuItem("Download Folder");
+                    transferMenuItem.addActionListener(e ->
+                        clientLogic.queuePullDirectory(getParentComponent(),file));
+                    popupMenu.add(transferMenuItem);
+                    item.setComponentPopupMenu(popupMenu);
+                }
             }
             else
             {
                 ListItem<?> item = new FileListItem(file);
                 fileLis.add(item);
                 item.addActionListener(e ->
-                    new Thread()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            clientLogic.pullFile(getParentComponent(),file.getAbsolutePath());
-                        }
-                    }.start());
+                    clientLogic.queuePullFile(getParentComponent(),file));
             }
         }
 
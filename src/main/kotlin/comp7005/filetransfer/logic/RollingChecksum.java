@@ -0,0 +1,126 @@
+package comp7005.filetransfer.logic;
+
+/**
+ * the weak checksum used by rsync, computed over a window of bytes that can be
+ *   rolled forward one byte at a time in constant time.
+ *
+ * the checksum is made of two 16 bit sums; {@code a} is the sum of the bytes
+ *   in the window, and {@code b} is the sum of the bytes weighted by their
+ *   distance from the end of the window.
+ *
+ * @file    RollingChecksum.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   RollingChecksum
+ *
+ * @date    2015-10-05T09:40:21-0800
+ *
+ * @author  Eric Tsang
+ */
+public class RollingChecksum
+{
+    // instance data: general
+
+    /**
+     * sum of the bytes in the window.
+     */
+    private int a;
+
+    /**
+     * sum of the bytes in the window, weighted by their distance from the end
+     *   of the window.
+     */
+    private int b;
+
+    /**
+     * number of bytes in the window.
+     */
+    private int length;
+
+    // public interface: factories
+
+    /**
+     * returns the checksum of the passed bytes.
+     *
+     * @method  of
+     *
+     * @date    2015-10-05T09:41:37-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   data array that holds the bytes.
+     * @param   offset position of the first byte in {@code data}.
+     * @param   length number of bytes.
+     *
+     * @return  the checksum of the passed bytes.
+     */
+    public static int of(byte[] data,int offset,int length)
+    {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data,offset,length);
+        return checksum.getValue();
+    }
+
+    // public interface: server methods
+
+    /**
+     * sets the window to the passed bytes.
+     *
+     * @method  reset
+     *
+     * @date    2015-10-05T09:42:50-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   data array that holds the bytes.
+     * @param   offset position of the first byte in {@code data}.
+     * @param   length number of bytes.
+     */
+    public void reset(byte[] data,int offset,int length)
+    {
+        a = 0;
+        b = 0;
+        this.length = length;
+        for(int i = 0; i < length; i++)
+        {
+            int x = data[offset+i]&0xff;
+            a += x;
+            b += (length-i)*x;
+        }
+    }
+
+    /**
+     * moves the window forward by one byte.
+     *
+     * @method  roll
+     *
+     * @date    2015-10-05T09:44:09-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   out the byte leaving the beginning of the window.
+     * @param   in the byte entering the end of the window.
+     */
+    public void roll(byte out,byte in)
+    {
+        a += (in&0xff)-(out&0xff);
+        b += a-length*(out&0xff);
+    }
+
+    /**
+     * returns the checksum of the bytes in the window.
+     *
+     * @method  getValue
+     *
+     * @date    2015-10-05T09:44:51-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the checksum of the bytes in the window.
+     */
+    public int getValue()
+    {
+        return (a&0xffff)|(b<<16);
+    }
+}
@@ -0,0 +1,361 @@
+package comp7005.filetransfer.logic;
+
+/**
+ * contains the parameters that the client proposes to the server when it
+ *   issues a file transfer request.
+ *
+ * the server has the final say on each parameter; it replies with the values
+ *   that it has agreed to use for the transfer during the request handshake.
+ *
+ * @file    TransferOptions.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   TransferOptions
+ *
+ * @date    2015-10-03T10:12:40-0800
+ *
+ * @author  Eric Tsang
+ */
+public class TransferOptions
+{
+    // instance data: properties
+
+    /**
+     * the number of bytes the client would like to send per segment when
+     *   transferring a file.
+     */
+    private int segmentSize = AppServer.DEFAULT_FILE_SEGMENT_SIZE;
+
+    /**
+     * the maximum number of streams to pull a file over in parallel.
+     */
+    private int streamCount = AppServer.DEFAULT_STREAM_COUNT;
+
+    /**
+     * true if files that the server already has a copy of should be pushed as
+     *   a delta against that copy.
+     */
+    private boolean deltaPush = true;
+
+    /**
+     * true if file transfers should be compressed, if the server agrees.
+     */
+    private boolean compression = true;
+
+    /**
+     * true if runs of zeros in files should be sent as holes instead of data.
+     */
+    private boolean sparse = true;
+
+    /**
+     * true if the content hash of files should be sent before they are
+     *   pushed, so the server can skip the transfer if it already has them.
+     */
+    private boolean deduplication = true;
+
+    /**
+     * files smaller than this many bytes are packed into batches when a tree
+     *   is sent; 0 to send every file on its own.
+     */
+    private int batchThreshold = AppServer.DEFAULT_BATCH_THRESHOLD;
+
+    /**
+     * the most bytes per second that the client may send when pushing; 0 for
+     *   no limit. read by transfers while they run.
+     */
+    private volatile long rateLimit = 0;
+
+    // public interface: server methods
+
+    /**
+     * returns the number of bytes the client would like to send per segment
+     *   when transferring a file.
+     *
+     * @method  getSegmentSize
+     *
+     * @date    2015-10-03T10:14:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the number of bytes the client would like to send per segment
+     *   when transferring a file.
+     */
+    public int getSegmentSize()
+    {
+        return segmentSize;
+    }
+
+    /**
+     * sets the number of bytes the client would like to send per segment when
+     *   transferring a file. the server clamps the value to the range it
+     *   supports.
+     *
+     * @method  setSegmentSize
+     *
+     * @date    2015-10-03T10:14:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   segmentSize the number of bytes the client would like to send
+     *   per segment when transferring a file.
+     */
+    public void setSegmentSize(int segmentSize)
+    {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * returns the maximum number of streams to pull a file over in parallel.
+     *
+     * @method  getStreamCount
+     *
+     * @date    2015-10-04T09:20:31-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the maximum number of streams to pull a file over in parallel.
+     */
+    public int getStreamCount()
+    {
+        return streamCount;
+    }
+
+    /**
+     * sets the maximum number of streams to pull a file over in parallel.
+     *   files are only split across streams in ranges of at least
+     *   {@code AppServer.MIN_FILE_RANGE_SIZE} bytes, so small files use fewer
+     *   streams.
+     *
+     * @method  setStreamCount
+     *
+     * @date    2015-10-04T09:21:05-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   streamCount the maximum number of streams to pull a file over
+     *   in parallel.
+     */
+    public void setStreamCount(int streamCount)
+    {
+        this.streamCount = streamCount;
+    }
+
+    /**
+     * returns true if files that the server already has a copy of should be
+     *   pushed as a delta against that copy.
+     *
+     * @method  isDeltaPush
+     *
+     * @date    2015-10-05T11:15:42-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  true if files that the server already has a copy of should be
+     *   pushed as a delta against that copy.
+     */
+    public boolean isDeltaPush()
+    {
+        return deltaPush;
+    }
+
+    /**
+     * sets whether files that the server already has a copy of should be
+     *   pushed as a delta against that copy, so only the parts of the file that
+     *   changed are sent.
+     *
+     * @method  setDeltaPush
+     *
+     * @date    2015-10-05T11:16:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   deltaPush true if files that the server already has a copy of
+     *   should be pushed as a delta against that copy.
+     */
+    public void setDeltaPush(boolean deltaPush)
+    {
+        this.deltaPush = deltaPush;
+    }
+
+    /**
+     * returns true if file transfers should be compressed, if the server
+     *   agrees.
+     *
+     * @method  isCompression
+     *
+     * @date    2015-10-05T14:45:03-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  true if file transfers should be compressed, if the server
+     *   agrees.
+     */
+    public boolean isCompression()
+    {
+        return compression;
+    }
+
+    /**
+     * sets whether file transfers should be compressed, if the server agrees.
+     *   segments that don't compress well are sent as they are either way.
+     *
+     * @method  setCompression
+     *
+     * @date    2015-10-05T14:45:38-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   compression true if file transfers should be compressed, if the
+     *   server agrees.
+     */
+    public void setCompression(boolean compression)
+    {
+        this.compression = compression;
+    }
+
+    /**
+     * returns true if runs of zeros in files should be sent as holes instead of
+     *   data.
+     *
+     * @method  isSparse
+     *
+     * @date    2015-10-07T13:25:08-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  true if runs of zeros in files should be sent as holes.
+     */
+    public boolean isSparse()
+    {
+        return sparse;
+    }
+
+    /**
+     * sets whether runs of zeros in files should be sent as holes instead of
+     *   data, and recreated by skipping over them instead of writing them. the
+     *   zeros are still read to find them.
+     *
+     * @method  setSparse
+     *
+     * @date    2015-10-07T13:25:41-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   sparse true if runs of zeros in files should be sent as holes.
+     */
+    public void setSparse(boolean sparse)
+    {
+        this.sparse = sparse;
+    }
+
+    /**
+     * returns true if the content hash of files should be sent before they are
+     *   pushed, so the server can skip the transfer if it already has them.
+     *
+     * @method  isDeduplication
+     *
+     * @date    2015-10-06T09:52:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  true if the content hash of files should be sent before they
+     *   are pushed.
+     */
+    public boolean isDeduplication()
+    {
+        return deduplication;
+    }
+
+    /**
+     * sets whether the content hash of files should be sent before they are
+     *   pushed, so the server can skip the transfer if it already has them.
+     *   the whole file is read to hash it before the push begins.
+     *
+     * @method  setDeduplication
+     *
+     * @date    2015-10-06T09:52:44-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   deduplication true if the content hash of files should be sent
+     *   before they are pushed.
+     */
+    public void setDeduplication(boolean deduplication)
+    {
+        this.deduplication = deduplication;
+    }
+
+    /**
+     * returns the size in bytes below which files are packed into batches
+     *   when a tree is sent.
+     *
+     * @method  getBatchThreshold
+     *
+     * @date    2015-10-07T09:51:03-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the size in bytes below which files are packed into batches.
+     */
+    public int getBatchThreshold()
+    {
+        return batchThreshold;
+    }
+
+    /**
+     * sets the size in bytes below which files are packed into batches when a
+     *   tree is sent. batches are limited to {@code
+     *   FileTreeSender.MAX_BATCH_BYTES}, and so is the threshold.
+     *
+     * @method  setBatchThreshold
+     *
+     * @date    2015-10-07T09:51:37-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   batchThreshold the size in bytes below which files are packed
+     *   into batches; 0 to send every file on its own.
+     */
+    public void setBatchThreshold(int batchThreshold)
+    {
+        this.batchThreshold = batchThreshold;
+    }
+
+    /**
+     * returns the most bytes per second that the client may send when it
+     *   pushes files.
+     *
+     * @method  getRateLimit
+     *
+     * @date    2015-10-08T10:17:26-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the most bytes per second that the client may send; 0 if there
+     *   is no limit.
+     */
+    public long getRateLimit()
+    {
+        return rateLimit;
+    }
+
+    /**
+     * sets the most bytes per second that the client may send when it pushes
+     *   files; pushes that are running with these options are slowed down or
+     *   sped up right away. pulls are limited by the server instead.
+     *
+     * @method  setRateLimit
+     *
+     * @date    2015-10-08T10:17:58-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   rateLimit the most bytes per second that the client may send;
+     *   0 for no limit.
+     */
+    public void setRateLimit(long rateLimit)
+    {
+        this.rateLimit = rateLimit;
+    }
+}
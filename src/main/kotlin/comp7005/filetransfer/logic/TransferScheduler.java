@@ -0,0 +1,500 @@
+package comp7005.filetransfer.logic;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * runs the client's network operations on background threads, in order of
+ *   priority, with a limit on how many transfers run at once.
+ *
+ * directory listings run in a lane of their own, one at a time, that
+ *   transfers never take up, so a listing never waits behind a transfer, no
+ *   matter how large. transfers are started in order of their priority class;
+ *   small files before bulk transfers, and in the order they were submitted
+ *   within a class, with at most {@code maxConcurrentTransfers} of them
+ *   running at a time.
+ *
+ * operations that haven't been started yet can be moved within their class,
+ *   moved to another class, paused, resumed or cancelled. operations that
+ *   have been started run until they are done.
+ *
+ * @file    TransferScheduler.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   TransferScheduler
+ *
+ * @date    2015-10-08T13:02:17-0800
+ *
+ * @author  Eric Tsang
+ */
+public class TransferScheduler
+{
+    // constants: limits
+
+    /**
+     * the number of transfers that may run at once on schedulers that have not
+     *   been configured otherwise.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 2;
+
+    // constants: priority classes
+
+    /**
+     * the classes that operations are scheduled in, from the most to the least
+     *   urgent.
+     */
+    public enum Priority
+    {
+        /**
+         * directory listings; they run in their own lane.
+         */
+        LISTING,
+
+        /**
+         * transfers of small files, which are done quickly.
+         */
+        SMALL,
+
+        /**
+         * transfers of large files & directories.
+         */
+        BULK
+    }
+
+    // constants: ordering
+
+    /**
+     * orders operations by class, then by their position in their class.
+     */
+    private static final Comparator<Task> TASK_ORDER = Comparator
+        .comparing((Task task) -> task.priority)
+        .thenComparingLong(task -> task.order);
+
+    // instance data: general
+
+    /**
+     * the threads that operations are run on.
+     */
+    private final ExecutorService threads;
+
+    /**
+     * operations that haven't been started yet, in no particular order.
+     */
+    private final List<Task> queue;
+
+    /**
+     * the most transfers that may run at once.
+     */
+    private int maxConcurrentTransfers;
+
+    /**
+     * number of transfers that are running.
+     */
+    private int runningTransfers;
+
+    /**
+     * true while a listing is running.
+     */
+    private boolean listingRunning;
+
+    /**
+     * position given to the next operation that is added to the back of its
+     *   class.
+     */
+    private long nextBackOrder;
+
+    /**
+     * position given to the next operation that is moved to the front of its
+     *   class.
+     */
+    private long nextFrontOrder;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a scheduler that runs at most {@code
+     *   maxConcurrentTransfers} transfers at once.
+     *
+     * @method  TransferScheduler
+     *
+     * @date    2015-10-08T13:05:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   maxConcurrentTransfers the most transfers that may run at once.
+     *
+     * @return  a new instance of TransferScheduler.
+     */
+    public TransferScheduler(int maxConcurrentTransfers)
+    {
+        this.threads = Executors.newCachedThreadPool();
+        this.queue = new ArrayList<>();
+        this.maxConcurrentTransfers = Math.max(1,maxConcurrentTransfers);
+        this.runningTransfers = 0;
+        this.listingRunning = false;
+        this.nextBackOrder = 0;
+        this.nextFrontOrder = -1;
+    }
+
+    // public interface: server methods
+
+    /**
+     * adds an operation to the back of its class, and starts it right away if
+     *   it may run.
+     *
+     * @method  submit
+     *
+     * @date    2015-10-08T13:07:12-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   priority the class of the operation.
+     * @param   description describes the operation to the user.
+     * @param   operation the operation to run.
+     *
+     * @return  the scheduled operation.
+     */
+    public synchronized Task submit(Priority priority,String description,Runnable operation)
+    {
+        Task task = new Task(priority,description,operation,nextBackOrder++);
+        queue.add(task);
+        dispatch();
+        return task;
+    }
+
+    /**
+     * returns the operations that haven't been started yet, in the order they
+     *   will be started in.
+     *
+     * @method  getQueuedTasks
+     *
+     * @date    2015-10-08T13:08:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the operations that haven't been started yet.
+     */
+    public synchronized List<Task> getQueuedTasks()
+    {
+        List<Task> tasks = new ArrayList<>(queue);
+        tasks.sort(TASK_ORDER);
+        return tasks;
+    }
+
+    /**
+     * returns the most transfers that may run at once.
+     *
+     * @method  getMaxConcurrentTransfers
+     *
+     * @date    2015-10-08T13:09:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the most transfers that may run at once.
+     */
+    public synchronized int getMaxConcurrentTransfers()
+    {
+        return maxConcurrentTransfers;
+    }
+
+    /**
+     * sets the most transfers that may run at once; more are started right
+     *   away if it was raised. transfers that are running are not stopped if
+     *   it was lowered.
+     *
+     * @method  setMaxConcurrentTransfers
+     *
+     * @date    2015-10-08T13:09:35-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   maxConcurrentTransfers the most transfers that may run at once;
+     *   at least 1.
+     */
+    public synchronized void setMaxConcurrentTransfers(int maxConcurrentTransfers)
+    {
+        this.maxConcurrentTransfers = Math.max(1,maxConcurrentTransfers);
+        dispatch();
+    }
+
+    /**
+     * keeps an operation from being started until it is resumed.
+     *
+     * @method  pause
+     *
+     * @date    2015-10-08T13:10:48-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   task the operation to pause.
+     *
+     * @return  true if the operation was paused; false if it had already
+     *   been started.
+     */
+    public synchronized boolean pause(Task task)
+    {
+        if(!queue.contains(task))
+        {
+            return false;
+        }
+        task.paused = true;
+        return true;
+    }
+
+    /**
+     * lets a paused operation be started again, in its place in the queue.
+     *
+     * @method  resume
+     *
+     * @date    2015-10-08T13:11:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   task the operation to resume.
+     */
+    public synchronized void resume(Task task)
+    {
+        task.paused = false;
+        dispatch();
+    }
+
+    /**
+     * removes an operation from the queue, so it is never started.
+     *
+     * @method  cancel
+     *
+     * @date    2015-10-08T13:11:57-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   task the operation to cancel.
+     *
+     * @return  true if the operation was cancelled; false if it had already
+     *   been started.
+     */
+    public synchronized boolean cancel(Task task)
+    {
+        return queue.remove(task);
+    }
+
+    /**
+     * moves an operation to the front of its class, so it is the next one in
+     *   its class to be started.
+     *
+     * @method  moveToFront
+     *
+     * @date    2015-10-08T13:12:33-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   task the operation to move.
+     */
+    public synchronized void moveToFront(Task task)
+    {
+        task.order = nextFrontOrder--;
+    }
+
+    /**
+     * moves an operation to the back of its class, so it is the last one in
+     *   its class to be started.
+     *
+     * @method  moveToBack
+     *
+     * @date    2015-10-08T13:13:06-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   task the operation to move.
+     */
+    public synchronized void moveToBack(Task task)
+    {
+        task.order = nextBackOrder++;
+    }
+
+    /**
+     * moves an operation to the back of another class; does nothing if the
+     *   operation has been started already.
+     *
+     * @method  setPriority
+     *
+     * @date    2015-10-08T13:13:41-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   task the operation to move.
+     * @param   priority the class to move it to.
+     */
+    public synchronized void setPriority(Task task,Priority priority)
+    {
+        if(!queue.contains(task))
+        {
+            return;
+        }
+        task.priority = priority;
+        task.order = nextBackOrder++;
+        dispatch();
+    }
+
+    // private interface: scheduling
+
+    /**
+     * starts the next listing if no listing is running, and the next
+     *   transfers until as many are running as may run at once. paused
+     *   operations are skipped.
+     *
+     * @method  dispatch
+     *
+     * @date    2015-10-08T13:15:20-0800
+     *
+     * @author  Eric Tsang
+     */
+    private synchronized void dispatch()
+    {
+        for(Task task : getQueuedTasks())
+        {
+            if(task.paused)
+            {
+                continue;
+            }
+            if(task.priority == Priority.LISTING)
+            {
+                if(!listingRunning)
+                {
+                    listingRunning = true;
+                    start(task);
+                }
+            }
+            else if(runningTransfers < maxConcurrentTransfers)
+            {
+                runningTransfers++;
+                start(task);
+            }
+        }
+    }
+
+    /**
+     * takes an operation out of the queue, and runs it on a thread of its
+     *   own; the lane it was started in is freed up once it is done.
+     *
+     * @method  start
+     *
+     * @date    2015-10-08T13:16:44-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   task the operation to start.
+     */
+    private void start(Task task)
+    {
+        queue.remove(task);
+        boolean listing = task.priority == Priority.LISTING;
+        threads.execute(() ->
+        {
+            try
+            {
+                task.operation.run();
+            }
+            finally
+            {
+                synchronized(TransferScheduler.this)
+                {
+                    if(listing)
+                    {
+                        listingRunning = false;
+                    }
+                    else
+                    {
+                        runningTransfers--;
+                    }
+                    dispatch();
+                }
+            }
+        });
+    }
+
+    // public interface: tasks
+
+    /**
+     * an operation that was submitted to the scheduler.
+     *
+     * @class   Task
+     *
+     * @date    2015-10-08T13:04:02-0800
+     *
+     * @author  Eric Tsang
+     */
+    public static class Task
+    {
+        /**
+         * the class of the operation; only changed while it is queued.
+         */
+        private Priority priority;
+
+        /**
+         * describes the operation to the user.
+         */
+        private final String description;
+
+        /**
+         * the operation to run.
+         */
+        private final Runnable operation;
+
+        /**
+         * position of the operation in its class; lower goes first.
+         */
+        private long order;
+
+        /**
+         * true if the operation may not be started until it is resumed.
+         */
+        private volatile boolean paused;
+
+        /**
+         * instantiates a queued operation.
+         *
+         * @method  Task
+         *
+         * @date    2015-10-08T13:04:40-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   priority the class of the operation.
+         * @param   description describes the operation to the user.
+         * @param   operation the operation to run.
+         * @param   order position of the operation in its class.
+         *
+         * @return  a new instance of Task.
+         */
+        private Task(Priority priority,String description,Runnable operation,long order)
+        {
+            this.priority = priority;
+            this.description = description;
+            this.operation = operation;
+            this.order = order;
+            this.paused = false;
+        }
+
+        /**
+         * returns the description of the operation, and whether it is paused,
+         *   for display to the user.
+         *
+         * @method  toString
+         *
+         * @date    2015-10-08T13:05:02-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @return  the description of the operation.
+         */
+        @Override
+        public String toString()
+        {
+            return (paused ? "[paused] " : "")+description;
+        }
+    }
+}
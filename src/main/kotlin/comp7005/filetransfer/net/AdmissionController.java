@@ -0,0 +1,451 @@
+package comp7005.filetransfer.net;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * limits how many transfers a server runs at once, and how many bytes they
+ *   move between them, so that a server under load keeps up its throughput
+ *   instead of thrashing its disks.
+ *
+ * a transfer is admitted right away if it fits within the limits. otherwise,
+ *   it waits in a queue, in the order it arrived, until the transfers ahead of
+ *   it have been admitted and there is room for it. if the queue is full as
+ *   well, the transfer is rejected right away, and the client should try again
+ *   after {@code retryAfterMillis} milliseconds.
+ *
+ * a transfer that is larger than {@code maxBytesInFlight} on its own is
+ *   admitted once no other transfer is running, so that it isn't held up
+ *   forever.
+ *
+ * @file    AdmissionController.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   AdmissionController
+ *
+ * @date    2015-10-08T16:02:15-0800
+ *
+ * @author  Eric Tsang
+ */
+public class AdmissionController
+{
+    // constants: defaults
+
+    /**
+     * the most transfers that run at once by default.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 16;
+
+    /**
+     * the most bytes that the transfers that run at once move between them by
+     *   default.
+     */
+    public static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 1L<<30;
+
+    /**
+     * the most transfers that wait to be admitted by default.
+     */
+    public static final int DEFAULT_MAX_QUEUED_TRANSFERS = 64;
+
+    /**
+     * milliseconds that rejected clients are asked to wait before trying
+     *   again by default.
+     */
+    public static final long DEFAULT_RETRY_AFTER_MILLIS = 2000;
+
+    // instance data: limits
+
+    /**
+     * the most transfers that run at once.
+     */
+    private int maxConcurrentTransfers;
+
+    /**
+     * the most bytes that the transfers that run at once move between them.
+     */
+    private long maxBytesInFlight;
+
+    /**
+     * the most transfers that wait to be admitted.
+     */
+    private int maxQueuedTransfers;
+
+    /**
+     * milliseconds that rejected clients are asked to wait before trying
+     *   again.
+     */
+    private long retryAfterMillis;
+
+    // instance data: state
+
+    /**
+     * number of transfers that have been admitted, and are still running.
+     */
+    private int runningTransfers;
+
+    /**
+     * number of bytes that the running transfers move between them.
+     */
+    private long bytesInFlight;
+
+    /**
+     * transfers that are waiting to be admitted, in the order they arrived.
+     */
+    private final Deque<Permit> queue;
+
+    // public interface: constructors
+
+    /**
+     * instantiates an admission controller with the default limits.
+     *
+     * @method  AdmissionController
+     *
+     * @date    2015-10-08T16:03:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  a new instance of AdmissionController.
+     */
+    public AdmissionController()
+    {
+        this.maxConcurrentTransfers = DEFAULT_MAX_CONCURRENT_TRANSFERS;
+        this.maxBytesInFlight = DEFAULT_MAX_BYTES_IN_FLIGHT;
+        this.maxQueuedTransfers = DEFAULT_MAX_QUEUED_TRANSFERS;
+        this.retryAfterMillis = DEFAULT_RETRY_AFTER_MILLIS;
+        this.runningTransfers = 0;
+        this.bytesInFlight = 0;
+        this.queue = new ArrayDeque<>();
+    }
+
+    // public interface: server methods
+
+    /**
+     * admits a transfer of {@code bytes} bytes, waiting in the queue until
+     *   there is room for it if there isn't any now.
+     *
+     * @method  acquire
+     *
+     * @date    2015-10-08T16:04:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   bytes number of bytes that the transfer is expected to move.
+     *
+     * @return  the permit to run the transfer, which must be closed once it is
+     *   done; null if the queue is full, and the transfer is rejected.
+     *
+     * @throws  InterruptedIOException thrown when interrupted while waiting.
+     */
+    public synchronized Permit acquire(long bytes) throws InterruptedIOException
+    {
+        Permit permit = new Permit(bytes);
+
+        // admit the transfer right away if nobody is waiting ahead of it, and
+        // there is room for it
+        if(queue.isEmpty() && fits(bytes))
+        {
+            admit(permit);
+            return permit;
+        }
+
+        // reject the transfer if too many are waiting already
+        if(queue.size() >= maxQueuedTransfers)
+        {
+            return null;
+        }
+
+        // wait until the transfer is at the front of the queue, and there is
+        // room for it
+        queue.addLast(permit);
+        try
+        {
+            while(queue.peekFirst() != permit || !fits(bytes))
+            {
+                wait();
+            }
+        }
+        catch(InterruptedException e)
+        {
+            queue.remove(permit);
+            notifyAll();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        queue.removeFirst();
+        admit(permit);
+
+        // let the next transfer in the queue see if it fits as well
+        notifyAll();
+        return permit;
+    }
+
+    // public interface: getters & setters
+
+    /**
+     * returns the most transfers that run at once.
+     *
+     * @method  getMaxConcurrentTransfers
+     *
+     * @date    2015-10-08T16:05:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the most transfers that run at once.
+     */
+    public synchronized int getMaxConcurrentTransfers()
+    {
+        return maxConcurrentTransfers;
+    }
+
+    /**
+     * sets the most transfers that run at once; waiting transfers are
+     *   admitted right away if it was raised.
+     *
+     * @method  setMaxConcurrentTransfers
+     *
+     * @date    2015-10-08T16:05:42-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   maxConcurrentTransfers the most transfers that run at once; at
+     *   least 1.
+     */
+    public synchronized void setMaxConcurrentTransfers(int maxConcurrentTransfers)
+    {
+        this.maxConcurrentTransfers = Math.max(1,maxConcurrentTransfers);
+        notifyAll();
+    }
+
+    /**
+     * returns the most bytes that the transfers that run at once move between
+     *   them.
+     *
+     * @method  getMaxBytesInFlight
+     *
+     * @date    2015-10-08T16:06:01-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the most bytes that the transfers that run at once move between
+     *   them.
+     */
+    public synchronized long getMaxBytesInFlight()
+    {
+        return maxBytesInFlight;
+    }
+
+    /**
+     * sets the most bytes that the transfers that run at once move between
+     *   them; waiting transfers are admitted right away if it was raised.
+     *
+     * @method  setMaxBytesInFlight
+     *
+     * @date    2015-10-08T16:06:14-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   maxBytesInFlight the most bytes that the transfers that run at
+     *   once move between them.
+     */
+    public synchronized void setMaxBytesInFlight(long maxBytesInFlight)
+    {
+        this.maxBytesInFlight = Math.max(0,maxBytesInFlight);
+        notifyAll();
+    }
+
+    /**
+     * returns the most transfers that wait to be admitted.
+     *
+     * @method  getMaxQueuedTransfers
+     *
+     * @date    2015-10-08T16:06:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the most transfers that wait to be admitted.
+     */
+    public synchronized int getMaxQueuedTransfers()
+    {
+        return maxQueuedTransfers;
+    }
+
+    /**
+     * sets the most transfers that wait to be admitted; transfers that are
+     *   waiting already keep waiting if it was lowered.
+     *
+     * @method  setMaxQueuedTransfers
+     *
+     * @date    2015-10-08T16:06:52-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   maxQueuedTransfers the most transfers that wait to be admitted;
+     *   0 if transfers that don't fit right away are rejected.
+     */
+    public synchronized void setMaxQueuedTransfers(int maxQueuedTransfers)
+    {
+        this.maxQueuedTransfers = Math.max(0,maxQueuedTransfers);
+    }
+
+    /**
+     * returns the milliseconds that rejected clients are asked to wait before
+     *   trying again.
+     *
+     * @method  getRetryAfterMillis
+     *
+     * @date    2015-10-08T16:07:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the milliseconds that rejected clients are asked to wait.
+     */
+    public synchronized long getRetryAfterMillis()
+    {
+        return retryAfterMillis;
+    }
+
+    /**
+     * sets the milliseconds that rejected clients are asked to wait before
+     *   trying again.
+     *
+     * @method  setRetryAfterMillis
+     *
+     * @date    2015-10-08T16:07:33-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   retryAfterMillis the milliseconds that rejected clients are
+     *   asked to wait; at least 1.
+     */
+    public synchronized void setRetryAfterMillis(long retryAfterMillis)
+    {
+        this.retryAfterMillis = Math.max(1,retryAfterMillis);
+    }
+
+    // private interface: helpers
+
+    /**
+     * returns true if a transfer of {@code bytes} bytes can run alongside the
+     *   transfers that are running now.
+     *
+     * @method  fits
+     *
+     * @date    2015-10-08T16:08:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   bytes number of bytes that the transfer is expected to move.
+     *
+     * @return  true if the transfer can run now.
+     */
+    private boolean fits(long bytes)
+    {
+        return runningTransfers == 0
+            || runningTransfers < maxConcurrentTransfers
+            && bytesInFlight+bytes <= maxBytesInFlight;
+    }
+
+    /**
+     * counts the passed transfer among the running transfers.
+     *
+     * @method  admit
+     *
+     * @date    2015-10-08T16:08:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   permit the permit of the admitted transfer.
+     */
+    private void admit(Permit permit)
+    {
+        runningTransfers++;
+        bytesInFlight += permit.bytes;
+    }
+
+    /**
+     * takes the passed transfer out of the running transfers, and lets the
+     *   waiting transfers see if they fit now.
+     *
+     * @method  release
+     *
+     * @date    2015-10-08T16:08:41-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   permit the permit of the finished transfer.
+     */
+    private synchronized void release(Permit permit)
+    {
+        if(!permit.released)
+        {
+            permit.released = true;
+            runningTransfers--;
+            bytesInFlight -= permit.bytes;
+            notifyAll();
+        }
+    }
+
+    // public interface: permits
+
+    /**
+     * permission to run a transfer; the transfer's room is given back once it
+     *   is closed.
+     *
+     * @class   Permit
+     *
+     * @date    2015-10-08T16:03:40-0800
+     *
+     * @author  Eric Tsang
+     */
+    public class Permit implements Closeable
+    {
+        /**
+         * number of bytes that the transfer is expected to move.
+         */
+        private final long bytes;
+
+        /**
+         * true once the permit has been closed.
+         */
+        private boolean released;
+
+        /**
+         * instantiates a permit for a transfer of {@code bytes} bytes.
+         *
+         * @method  Permit
+         *
+         * @date    2015-10-08T16:03:58-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   bytes number of bytes that the transfer is expected to
+         *   move.
+         *
+         * @return  a new instance of Permit.
+         */
+        private Permit(long bytes)
+        {
+            this.bytes = Math.max(0,bytes);
+            this.released = false;
+        }
+
+        /**
+         * gives back the transfer's room, so waiting transfers may be
+         *   admitted; does nothing if it was given back already.
+         *
+         * @method  close
+         *
+         * @date    2015-10-08T16:04:12-0800
+         *
+         * @author  Eric Tsang
+         */
+        @Override
+        public void close()
+        {
+            release(this);
+        }
+    }
+}
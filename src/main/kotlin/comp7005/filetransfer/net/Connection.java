@@ -0,0 +1,457 @@
+package comp7005.filetransfer.net;
+
+import com.teamhoe.reliableudp.ServerSocket;
+import com.teamhoe.reliableudp.SocketInputStream;
+import com.teamhoe.reliableudp.SocketOutputStream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a connection between two hosts that carries data in both directions.
+ *
+ * streams of the underlying socket only carry data one way, so a connection
+ *   is made of two of them; one connected from the client to the server, and
+ *   one connected back from the server to the client. connection requests
+ *   that arrive before the other host is waiting for them are dropped, so the
+ *   two hosts set up both streams in one exchange:
+ *
+ * 1. the client starts waiting for the server's stream, then connects its
+ *   own stream to the server.
+ * 2. the client sends {@code READY} over its stream, which tells the server
+ *   that the client is waiting for the server's stream.
+ * 3. the server connects its stream back to the client as soon as it reads
+ *   {@code READY}, trying again a few times if the request is lost.
+ *
+ * @file    Connection.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   Connection
+ *
+ * @date    2015-10-08T15:48:10-0800
+ *
+ * @author  Eric Tsang
+ */
+public class Connection implements Closeable
+{
+    // constants: handshake
+
+    /**
+     * sent by the client once it is waiting for the server's stream.
+     */
+    private static final int READY = 1;
+
+    /**
+     * milliseconds that the server waits for the client to answer a request to
+     *   connect back to it before sending the request again.
+     */
+    private static final long CONNECT_BACK_TIMEOUT = 1000;
+
+    /**
+     * number of times the server asks to connect back to the client before
+     *   giving up.
+     */
+    private static final int CONNECT_BACK_ATTEMPTS = 5;
+
+    /**
+     * milliseconds that the server waits for the client to send {@code READY}
+     *   before dropping its stream, so clients that never do can't hold up the
+     *   accept threads.
+     */
+    private static final long READY_TIMEOUT = 5000;
+
+    // constants: deadlines
+
+    /**
+     * interrupts threads that are still waiting on the client when their
+     *   deadlines expire; the streams of the socket library can only be woken
+     *   up by interrupting the thread that is waiting on them.
+     */
+    private static final ScheduledThreadPoolExecutor DEADLINE_TIMER = makeDeadlineTimer();
+
+    // instance data: general
+
+    /**
+     * stream that data from the other host is read from.
+     */
+    private final SocketInputStream sis;
+
+    /**
+     * stream that data to the other host is written to.
+     */
+    private final SocketOutputStream sos;
+
+    // private interface: constructors
+
+    /**
+     * instantiates a connection made of the passed streams.
+     *
+     * @method  Connection
+     *
+     * @date    2015-10-08T15:48:42-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   sis stream that data from the other host is read from.
+     * @param   sos stream that data to the other host is written to.
+     *
+     * @return  a new instance of Connection.
+     */
+    private Connection(SocketInputStream sis,SocketOutputStream sos)
+    {
+        this.sis = sis;
+        this.sos = sos;
+    }
+
+    // public interface: static methods
+
+    /**
+     * connects to the server at {@code remoteAddress}, and returns once the
+     *   streams in both directions are connected.
+     *
+     * @method  connect
+     *
+     * @date    2015-10-08T15:49:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   serverSocket socket to connect from.
+     * @param   remoteAddress address of the server to connect to.
+     *
+     * @return  the new connection.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    public static Connection connect(ServerSocket serverSocket,InetSocketAddress remoteAddress) throws IOException
+    {
+        // wait for the server's stream on a thread of its own, before our
+        // stream is connected; the server can't connect back before our
+        // stream is connected, so it never finds us not waiting
+        CountDownLatch waiting = new CountDownLatch(1);
+        FutureTask<SocketInputStream> accept = new FutureTask<>(() ->
+        {
+            waiting.countDown();
+            return serverSocket.accept(remoteAddress,null);
+        });
+        Thread acceptThread = new Thread(accept);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        // connect our stream, and tell the server that we are ready for its
+        // stream
+        SocketOutputStream sos;
+        try
+        {
+            waiting.await();
+            sos = serverSocket.connect(remoteAddress,null);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        sos.write(READY);
+        sos.flush();
+
+        // wait for the server's stream
+        try
+        {
+            return new Connection(accept.get(),sos);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * accepts the next client that connects to {@code serverSocket}, and
+     *   returns once the streams in both directions are connected.
+     *
+     * @method  accept
+     *
+     * @date    2015-10-08T15:50:05-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   serverSocket socket to accept the client from.
+     *
+     * @return  the new connection.
+     *
+     * @throws  IOException thrown when an IOException occurs, or the client
+     *   never becomes ready.
+     */
+    public static Connection accept(ServerSocket serverSocket) throws IOException
+    {
+        // accept the client's stream, and wait until it is ready for ours;
+        // drop the stream if it doesn't become ready in time
+        SocketInputStream sis = serverSocket.accept(null,null);
+        int ready;
+        Deadline deadline = new Deadline(READY_TIMEOUT);
+        try
+        {
+            ready = sis.read();
+        }
+        catch(Exception e)
+        {
+            ready = -1;
+        }
+        finally
+        {
+            deadline.close();
+        }
+        if(ready != READY)
+        {
+            drop(sis);
+            throw new ConnectException("client never became ready");
+        }
+
+        // connect back to the client; try again if the request got lost
+        for(int attempt = 1;; attempt++)
+        {
+            try
+            {
+                return new Connection(sis,serverSocket.connect(sis.getRemoteAddress(),CONNECT_BACK_TIMEOUT));
+            }
+            catch(ConnectException e)
+            {
+                if(attempt >= CONNECT_BACK_ATTEMPTS)
+                {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // public interface: getters
+
+    /**
+     * returns the stream that data from the other host is read from.
+     *
+     * @method  getInputStream
+     *
+     * @date    2015-10-08T15:50:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the stream that data from the other host is read from.
+     */
+    public SocketInputStream getInputStream()
+    {
+        return sis;
+    }
+
+    /**
+     * returns the stream that data to the other host is written to.
+     *
+     * @method  getOutputStream
+     *
+     * @date    2015-10-08T15:50:52-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the stream that data to the other host is written to.
+     */
+    public SocketOutputStream getOutputStream()
+    {
+        return sos;
+    }
+
+    // public interface: Closeable
+
+    /**
+     * closes the streams in both directions.
+     *
+     * @method  close
+     *
+     * @date    2015-10-08T15:54:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            sos.close();
+        }
+        finally
+        {
+            sis.close();
+        }
+    }
+
+    // private interface: helpers
+
+    /**
+     * closes the passed stream of a client that never became ready; the
+     *   stream stops receiving right away, but closing it waits for the client
+     *   to close its end, so the wait is cut short after {@code READY_TIMEOUT}
+     *   milliseconds.
+     *
+     * @method  drop
+     *
+     * @date    2015-10-08T17:36:20-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   sis the stream to close.
+     */
+    private static void drop(SocketInputStream sis)
+    {
+        Deadline deadline = new Deadline(READY_TIMEOUT);
+        try
+        {
+            sis.close();
+        }
+        catch(Exception e)
+        {
+            // do nothing; the stream is dropped either way
+        }
+        finally
+        {
+            deadline.close();
+        }
+    }
+
+    /**
+     * makes the timer that interrupts threads whose deadlines have expired.
+     *
+     * @method  makeDeadlineTimer
+     *
+     * @date    2015-10-08T17:36:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the timer.
+     */
+    private static ScheduledThreadPoolExecutor makeDeadlineTimer()
+    {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,task ->
+        {
+            Thread thread = new Thread(task,"connection deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    // private interface: deadlines
+
+    /**
+     * interrupts the thread that made it if it isn't closed within a number of
+     *   milliseconds; closing it clears the interrupt if the deadline expired,
+     *   so the thread can go on using its other streams.
+     *
+     * @class   Deadline
+     *
+     * @date    2015-10-08T17:34:40-0800
+     *
+     * @author  Eric Tsang
+     */
+    private static class Deadline implements Closeable
+    {
+        /**
+         * the thread that is interrupted when the deadline expires.
+         */
+        private final Thread thread;
+
+        /**
+         * interrupts {@code thread} when the deadline expires.
+         */
+        private final ScheduledFuture<?> expiry;
+
+        /**
+         * true once the deadline has expired, and the thread was interrupted.
+         */
+        private boolean expired;
+
+        /**
+         * true once the deadline has been closed.
+         */
+        private boolean closed;
+
+        /**
+         * instantiates a deadline that interrupts the calling thread after
+         *   {@code millis} milliseconds, unless it is closed first.
+         *
+         * @method  Deadline
+         *
+         * @date    2015-10-08T17:35:02-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   millis milliseconds until the deadline expires.
+         *
+         * @return  a new instance of Deadline.
+         */
+        private Deadline(long millis)
+        {
+            this.thread = Thread.currentThread();
+            this.expired = false;
+            this.closed = false;
+            this.expiry = DEADLINE_TIMER.schedule(this::expire,millis,TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * interrupts the thread, unless the deadline was closed already.
+         *
+         * @method  expire
+         *
+         * @date    2015-10-08T17:35:20-0800
+         *
+         * @author  Eric Tsang
+         */
+        private synchronized void expire()
+        {
+            if(!closed)
+            {
+                expired = true;
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * stops the deadline from expiring, and clears the interrupt of the
+         *   thread if it already has.
+         *
+         * @method  close
+         *
+         * @date    2015-10-08T17:35:36-0800
+         *
+         * @author  Eric Tsang
+         */
+        @Override
+        public synchronized void close()
+        {
+            closed = true;
+            expiry.cancel(false);
+            if(expired)
+            {
+                Thread.interrupted();
+            }
+        }
+    }
+}
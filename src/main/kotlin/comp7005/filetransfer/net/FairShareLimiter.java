@@ -0,0 +1,298 @@
+package comp7005.filetransfer.net;
+
+import java.io.InterruptedIOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.LongSupplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * limits the rate at which bytes are sent by many senders together, and
+ *   shares the rate out fairly between the clients they send to, so that a
+ *   client with many transfers running doesn't get more than a client with
+ *   one.
+ *
+ * senders take their bytes out of a {@code RateLimiter} one at a time, in the
+ *   order picked by start-time fair queueing: every request for bytes is
+ *   tagged with the virtual time at which its client's previous request
+ *   finishes, or the current virtual time if that is later, and requests are
+ *   let through in order of their tags. a request moves its client's finish
+ *   time ahead by its number of bytes divided by the client's weight, so each
+ *   client gets a share of the rate proportional to its weight, however many
+ *   senders it has; a client whose senders use less than their share leaves
+ *   the rest to the others.
+ *
+ * a sender only has one request waiting at a time, and a client is only
+ *   counted while it has a request waiting; so a client needs at least as
+ *   many senders as its weight to use all of its share.
+ *
+ * @file    FairShareLimiter.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   FairShareLimiter
+ *
+ * @date    2015-10-08T16:31:20-0800
+ *
+ * @author  Eric Tsang
+ */
+public class FairShareLimiter<K>
+{
+    // constants: weights
+
+    /**
+     * weights are raised to at least this much, so that every client gets
+     *   some share of the rate.
+     */
+    private static final double MIN_WEIGHT = 0.01;
+
+    // instance data: general
+
+    /**
+     * returns the rate in bytes per second; 0 or less if there is no limit.
+     */
+    private final LongSupplier rate;
+
+    /**
+     * limits the rate that the bytes let through are sent at.
+     */
+    private final RateLimiter limiter;
+
+    /**
+     * returns the weight of each client; 1 is an ordinary share.
+     */
+    private final ToDoubleFunction<K> weights;
+
+    /**
+     * requests that are waiting to be let through, in the order they will be
+     *   let through.
+     */
+    private final PriorityQueue<Request> queue;
+
+    /**
+     * virtual time at which the last request of each client finishes, for
+     *   clients whose last request finishes after the current virtual time.
+     */
+    private final Map<K,Double> finishTimes;
+
+    /**
+     * start tag of the request that was let through last.
+     */
+    private double virtualTime;
+
+    /**
+     * true while a request that was let through is taking its bytes out of
+     *   {@code limiter}.
+     */
+    private boolean busy;
+
+    /**
+     * number given to the next request, to keep requests with the same tag in
+     *   the order they arrived in.
+     */
+    private long nextSequence;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a limiter whose rate is returned by {@code rate}, and whose
+     *   clients get the weights returned by {@code weights}.
+     *
+     * @method  FairShareLimiter
+     *
+     * @date    2015-10-08T16:32:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   rate returns the rate in bytes per second; 0 or less if there
+     *   is no limit.
+     * @param   weights returns the weight of each client; 1 is an ordinary
+     *   share.
+     *
+     * @return  a new instance of FairShareLimiter.
+     */
+    public FairShareLimiter(LongSupplier rate,ToDoubleFunction<K> weights)
+    {
+        this.rate = rate;
+        this.limiter = new RateLimiter(rate);
+        this.weights = weights;
+        this.queue = new PriorityQueue<>(Comparator
+            .comparingDouble((Request request) -> request.startTag)
+            .thenComparingLong(request -> request.sequence));
+        this.finishTimes = new HashMap<>();
+        this.virtualTime = 0;
+        this.busy = false;
+        this.nextSequence = 0;
+    }
+
+    // public interface: server methods
+
+    /**
+     * returns a limiter that takes the bytes of {@code client}'s senders out
+     *   of this limiter.
+     *
+     * @method  limiterFor
+     *
+     * @date    2015-10-08T16:32:50-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   client the client that the bytes are sent to.
+     *
+     * @return  a limiter for the senders of {@code client}.
+     */
+    public Limiter limiterFor(K client)
+    {
+        return bytes -> acquire(client,bytes);
+    }
+
+    /**
+     * waits for the turn of a request for {@code bytes} bytes to be sent to
+     *   {@code client}, then takes them out of the rate limiter, sleeping until
+     *   they may be sent; returns right away if there is no limit.
+     *
+     * @method  acquire
+     *
+     * @date    2015-10-08T16:33:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   client the client that the bytes are sent to.
+     * @param   bytes number of bytes that are about to be sent.
+     *
+     * @throws  InterruptedIOException thrown when interrupted while waiting.
+     */
+    public void acquire(K client,int bytes) throws InterruptedIOException
+    {
+        if(rate.getAsLong() <= 0)
+        {
+            return;
+        }
+
+        // tag the request, and wait for its turn
+        synchronized(this)
+        {
+            double weight = Math.max(MIN_WEIGHT,weights.applyAsDouble(client));
+            double startTag = Math.max(virtualTime,finishTimes.getOrDefault(client,virtualTime));
+            finishTimes.put(client,startTag+bytes/weight);
+            Request request = new Request(startTag,nextSequence++);
+            queue.add(request);
+            dispatch();
+            try
+            {
+                while(!request.granted)
+                {
+                    wait();
+                }
+            }
+            catch(InterruptedException e)
+            {
+                if(request.granted)
+                {
+                    busy = false;
+                }
+                else
+                {
+                    queue.remove(request);
+                }
+                dispatch();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        // take the bytes out of the rate limiter, then let the next request
+        // through
+        try
+        {
+            limiter.acquire(bytes);
+        }
+        finally
+        {
+            synchronized(this)
+            {
+                busy = false;
+                dispatch();
+            }
+        }
+    }
+
+    // private interface: helpers
+
+    /**
+     * lets the request with the lowest tag through, if no request is taking
+     *   its bytes out of the rate limiter; forgets the finish times of clients
+     *   that are behind the virtual time now.
+     *
+     * @method  dispatch
+     *
+     * @date    2015-10-08T16:34:40-0800
+     *
+     * @author  Eric Tsang
+     */
+    private void dispatch()
+    {
+        if(busy || queue.isEmpty())
+        {
+            return;
+        }
+        Request request = queue.poll();
+        virtualTime = request.startTag;
+        finishTimes.values().removeIf(finishTime -> finishTime <= virtualTime);
+        request.granted = true;
+        busy = true;
+        notifyAll();
+    }
+
+    // private interface: requests
+
+    /**
+     * a request for bytes that is waiting to be let through.
+     *
+     * @class   Request
+     *
+     * @date    2015-10-08T16:31:50-0800
+     *
+     * @author  Eric Tsang
+     */
+    private static class Request
+    {
+        /**
+         * virtual time at which the request starts.
+         */
+        private final double startTag;
+
+        /**
+         * order in which the request arrived.
+         */
+        private final long sequence;
+
+        /**
+         * true once the request has been let through.
+         */
+        private boolean granted;
+
+        /**
+         * instantiates a request that starts at {@code startTag}.
+         *
+         * @method  Request
+         *
+         * @date    2015-10-08T16:32:02-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   startTag virtual time at which the request starts.
+         * @param   sequence order in which the request arrived.
+         *
+         * @return  a new instance of Request.
+         */
+        private Request(double startTag,long sequence)
+        {
+            this.startTag = startTag;
+            this.sequence = sequence;
+            this.granted = false;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package comp7005.filetransfer.net;
+
+import java.io.InterruptedIOException;
+
+/**
+ * something that bytes are taken out of before they are sent, and that makes
+ *   the sender wait if they may not be sent yet.
+ *
+ * @file    Limiter.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   Limiter
+ *
+ * @date    2015-10-08T16:30:12-0800
+ *
+ * @author  Eric Tsang
+ */
+public interface Limiter
+{
+    /**
+     * takes {@code bytes} bytes out of the limiter, and returns once they may
+     *   be sent.
+     *
+     * @method  acquire
+     *
+     * @date    2015-10-08T16:30:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   bytes number of bytes that are about to be sent.
+     *
+     * @throws  InterruptedIOException thrown when interrupted while waiting.
+     */
+    void acquire(int bytes) throws InterruptedIOException;
+}
@@ -0,0 +1,971 @@
+package comp7005.filetransfer.net;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * carries many independent channels over one connection, so a client can send
+ *   many requests to a server over a connection that is only set up once, and
+ *   a listing can run alongside a transfer.
+ *
+ * everything sent over the connection is sent in frames. each frame begins
+ *   with the id of the channel it belongs to, then a 4 byte frame type. a
+ *   non-negative frame type is the number of bytes of channel data that
+ *   follow it; the other frame types are {@code FRAME_END}, {@code
+ *   FRAME_CREDIT} and {@code FRAME_RESET}.
+ *
+ * channels are opened by the side that has no acceptor, with ids that only
+ *   ever go up; the side with the acceptor opens its end of a channel when the
+ *   first frame of a new id arrives, and hands it to the acceptor.
+ *
+ * each end of a channel may only send as many bytes as the other end has
+ *   room to buffer; it starts out with {@code WINDOW_SIZE} bytes of credit,
+ *   and gets more back as the other end reads them. so a channel whose reader
+ *   falls behind never holds up the other channels.
+ *
+ * @file    Multiplexer.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   Multiplexer
+ *
+ * @date    2015-10-08T15:10:22-0800
+ *
+ * @author  Eric Tsang
+ */
+public class Multiplexer implements Closeable
+{
+    // constants: frame types
+
+    /**
+     * frame type indicating that the sender won't send any more data on the
+     *   channel.
+     */
+    private static final int FRAME_END = -1;
+
+    /**
+     * frame type indicating that the receiver has read some of the data sent
+     *   on the channel, and has room for that many more bytes; followed by
+     *   the 4 byte number of bytes.
+     */
+    private static final int FRAME_CREDIT = -2;
+
+    /**
+     * frame type indicating that the sender has abandoned the channel; it
+     *   won't read anything else sent on it, and won't send anything else
+     *   either unless it had already ended its data.
+     */
+    private static final int FRAME_RESET = -3;
+
+    // constants: frame sizes
+
+    /**
+     * number of bytes in the header of a frame.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * the most bytes of channel data that are sent in one frame, so that the
+     *   frames of a large write are interleaved with the frames of other
+     *   channels.
+     */
+    public static final int MAX_FRAME_SIZE = 64*1024;
+
+    /**
+     * the most bytes of data that may be sent on a channel that the other end
+     *   hasn't read yet.
+     */
+    public static final int WINDOW_SIZE = 4*1024*1024;
+
+    // instance data: general
+
+    /**
+     * the connection that frames are read from.
+     */
+    private final DataInputStream is;
+
+    /**
+     * the connection that frames are written to; only written to while
+     *   holding its lock, so frames aren't interleaved with each other.
+     */
+    private final OutputStream os;
+
+    /**
+     * invoked with each channel opened by the other side; null if the other
+     *   side may not open channels.
+     */
+    private final Consumer<Channel> acceptor;
+
+    /**
+     * the channels that are open, by id.
+     */
+    private final Map<Integer,Channel> channels;
+
+    /**
+     * the highest id of a channel that has been opened by either side.
+     */
+    private int lastChannelId;
+
+    /**
+     * true once the connection has been closed, or has failed.
+     */
+    private boolean closed;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a multiplexer that carries channels over the passed
+     *   connection. {@code run} must be called to start reading frames from
+     *   the connection.
+     *
+     * @method  Multiplexer
+     *
+     * @date    2015-10-08T15:14:31-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   is the connection to read frames from.
+     * @param   os the connection to write frames to.
+     * @param   acceptor invoked on the thread that runs {@code run}, with each
+     *   channel that is opened by the other side; it must not block. null if
+     *   the other side may not open channels, and this side opens them
+     *   instead.
+     *
+     * @return  a new instance of Multiplexer.
+     */
+    public Multiplexer(InputStream is,OutputStream os,Consumer<Channel> acceptor)
+    {
+        this.is = new DataInputStream(is);
+        this.os = os;
+        this.acceptor = acceptor;
+        this.channels = new HashMap<>();
+        this.lastChannelId = 0;
+        this.closed = false;
+    }
+
+    // public interface: server methods
+
+    /**
+     * opens a new channel to the other side.
+     *
+     * @method  openChannel
+     *
+     * @date    2015-10-08T15:16:03-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the new channel.
+     *
+     * @throws  IOException thrown when the connection is closed.
+     */
+    public synchronized Channel openChannel() throws IOException
+    {
+        if(closed)
+        {
+            throw new IOException("session closed");
+        }
+        Channel channel = new Channel(++lastChannelId);
+        channels.put(channel.id,channel);
+        return channel;
+    }
+
+    /**
+     * returns true until the connection has been closed, or has failed.
+     *
+     * @method  isOpen
+     *
+     * @date    2015-10-08T15:16:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  true if new channels can still be opened.
+     */
+    public synchronized boolean isOpen()
+    {
+        return !closed;
+    }
+
+    /**
+     * reads frames from the connection, and hands their contents to their
+     *   channels, until the connection is closed or fails. every channel that
+     *   is still open fails once this returns.
+     *
+     * @method  run
+     *
+     * @date    2015-10-08T15:18:12-0800
+     *
+     * @author  Eric Tsang
+     */
+    public void run()
+    {
+        IOException failure;
+        try
+        {
+            //noinspection InfiniteLoopStatement
+            while(true)
+            {
+                int channelId = is.readInt();
+                int frameType = is.readInt();
+                Channel channel = findOrAccept(channelId);
+
+                // frames that arrive for channels that were closed already
+                // are read, and dropped
+                if(frameType > MAX_FRAME_SIZE)
+                {
+                    throw new IOException("frame too large: "+frameType);
+                }
+                else if(frameType >= 0)
+                {
+                    byte[] data = new byte[frameType];
+                    is.readFully(data);
+                    if(channel != null)
+                    {
+                        channel.receiveData(data);
+                    }
+                }
+                else if(frameType == FRAME_CREDIT)
+                {
+                    int credit = is.readInt();
+                    if(channel != null)
+                    {
+                        channel.receiveCredit(credit);
+                    }
+                }
+                else if(frameType == FRAME_END)
+                {
+                    if(channel != null)
+                    {
+                        channel.receiveEnd();
+                    }
+                }
+                else if(frameType == FRAME_RESET)
+                {
+                    if(channel != null)
+                    {
+                        channel.receiveReset();
+                    }
+                }
+                else
+                {
+                    throw new IOException("invalid frame type: "+frameType);
+                }
+            }
+        }
+        catch(EOFException e)
+        {
+            failure = new IOException("session closed",e);
+        }
+        catch(IOException e)
+        {
+            failure = new IOException("session failed",e);
+        }
+
+        // fail the channels that were still open
+        List<Channel> openChannels;
+        synchronized(this)
+        {
+            closed = true;
+            openChannels = new ArrayList<>(channels.values());
+            channels.clear();
+        }
+        for(Channel channel : openChannels)
+        {
+            channel.fail(failure);
+        }
+    }
+
+    /**
+     * closes the connection; {@code run} returns, and every channel that is
+     *   still open fails.
+     *
+     * @method  close
+     *
+     * @date    2015-10-08T15:19:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized(this)
+        {
+            closed = true;
+        }
+        try
+        {
+            os.close();
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    // private interface: frames
+
+    /**
+     * returns the open channel with the passed id. if there is none, and the
+     *   id is new, the channel was just opened by the other side; its end is
+     *   opened & handed to the acceptor.
+     *
+     * @method  findOrAccept
+     *
+     * @date    2015-10-08T15:21:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   channelId id of the channel that a frame arrived for.
+     *
+     * @return  the channel with the passed id; null if it was closed already.
+     *
+     * @throws  IOException thrown when the other side opens a channel that it
+     *   may not open.
+     */
+    private Channel findOrAccept(int channelId) throws IOException
+    {
+        Channel channel;
+        synchronized(this)
+        {
+            channel = channels.get(channelId);
+            if(channel != null || channelId <= lastChannelId)
+            {
+                return channel;
+            }
+            if(acceptor == null)
+            {
+                throw new IOException("channel opened by the wrong side: "+channelId);
+            }
+            lastChannelId = channelId;
+            channel = new Channel(channelId);
+            channels.put(channelId,channel);
+        }
+        acceptor.accept(channel);
+        return channel;
+    }
+
+    /**
+     * writes a frame to the connection.
+     *
+     * @method  sendFrame
+     *
+     * @date    2015-10-08T15:22:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   channelId id of the channel that the frame belongs to.
+     * @param   frameType the type of the frame, or the number of bytes of data
+     *   in it.
+     * @param   data array holding the data to send after the header; may be
+     *   null if there is none.
+     * @param   offset index of the first byte of data to send.
+     * @param   length number of bytes of data to send.
+     *
+     * @throws  IOException thrown when an IOException occurs.
+     */
+    private void sendFrame(int channelId,int frameType,byte[] data,int offset,int length) throws IOException
+    {
+        // put the whole frame together, so it is written all at once
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE+length);
+        frame.putInt(channelId);
+        frame.putInt(frameType);
+        if(length > 0)
+        {
+            frame.put(data,offset,length);
+        }
+        synchronized(os)
+        {
+            os.write(frame.array());
+        }
+    }
+
+    /**
+     * forgets a channel once both of its ends have been closed.
+     *
+     * @method  remove
+     *
+     * @date    2015-10-08T15:23:31-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   channel the channel to forget.
+     */
+    private synchronized void remove(Channel channel)
+    {
+        channels.remove(channel.id);
+    }
+
+    // public interface: channels
+
+    /**
+     * one of the channels carried by the multiplexer; a pair of streams to
+     *   the other side.
+     *
+     * @class   Channel
+     *
+     * @date    2015-10-08T15:11:48-0800
+     *
+     * @author  Eric Tsang
+     */
+    public class Channel implements Closeable
+    {
+        /**
+         * the id of the channel, which is sent with each of its frames.
+         */
+        private final int id;
+
+        /**
+         * the stream that data sent by the other side is read from.
+         */
+        private final InputStream inputStream;
+
+        /**
+         * the stream that data is sent to the other side through.
+         */
+        private final OutputStream outputStream;
+
+        /**
+         * data that has been received, and not read yet.
+         */
+        private final ArrayDeque<byte[]> received;
+
+        /**
+         * number of bytes of the first array in {@code received} that have
+         *   been read.
+         */
+        private int receivedOffset;
+
+        /**
+         * number of bytes that have been read, but not credited to the other
+         *   side yet.
+         */
+        private int uncredited;
+
+        /**
+         * true once the other side has ended its data.
+         */
+        private boolean inputEnded;
+
+        /**
+         * true once the input stream has been closed.
+         */
+        private boolean inputClosed;
+
+        /**
+         * thrown when reading past what was received; null unless the other
+         *   side has abandoned the channel, or the connection has failed.
+         */
+        private IOException inputFailure;
+
+        /**
+         * number of bytes that may be sent before the other side credits
+         *   more.
+         */
+        private int credit;
+
+        /**
+         * true once the output stream has been closed.
+         */
+        private boolean outputClosed;
+
+        /**
+         * thrown when sending; null unless the other side has abandoned the
+         *   channel, or the connection has failed.
+         */
+        private IOException outputFailure;
+
+        /**
+         * instantiates the end of the channel with the passed id.
+         *
+         * @method  Channel
+         *
+         * @date    2015-10-08T15:25:12-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   id id of the channel.
+         *
+         * @return  a new instance of Channel.
+         */
+        private Channel(int id)
+        {
+            this.id = id;
+            this.inputStream = new ChannelInputStream();
+            this.outputStream = new ChannelOutputStream();
+            this.received = new ArrayDeque<>();
+            this.credit = WINDOW_SIZE;
+        }
+
+        /**
+         * returns the stream that data sent by the other side is read from.
+         *   closing it before all of the data was read abandons the channel.
+         *
+         * @method  getInputStream
+         *
+         * @date    2015-10-08T15:25:50-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @return  the stream that data sent by the other side is read from.
+         */
+        public InputStream getInputStream()
+        {
+            return inputStream;
+        }
+
+        /**
+         * returns the stream that data is sent to the other side through.
+         *   closing it ends the data sent to the other side.
+         *
+         * @method  getOutputStream
+         *
+         * @date    2015-10-08T15:26:21-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @return  the stream that data is sent to the other side through.
+         */
+        public OutputStream getOutputStream()
+        {
+            return outputStream;
+        }
+
+        /**
+         * closes both streams of the channel.
+         *
+         * @method  close
+         *
+         * @date    2015-10-08T15:26:55-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @throws  IOException thrown when an IOException occurs.
+         */
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                outputStream.close();
+            }
+            finally
+            {
+                inputStream.close();
+            }
+        }
+
+        /**
+         * queues data that arrived for the channel, to be read from the input
+         *   stream; dropped if the input stream was closed already.
+         *
+         * @method  receiveData
+         *
+         * @date    2015-10-08T15:27:10-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   data the data that arrived.
+         */
+        private synchronized void receiveData(byte[] data)
+        {
+            if(!inputClosed && inputFailure == null)
+            {
+                received.add(data);
+                notifyAll();
+            }
+        }
+
+        /**
+         * lets the output stream send more bytes, now that the other side has
+         *   read some of what was sent.
+         *
+         * @method  receiveCredit
+         *
+         * @date    2015-10-08T15:27:31-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   bytes number of bytes that the other side has room for again.
+         */
+        private synchronized void receiveCredit(int bytes)
+        {
+            credit += bytes;
+            notifyAll();
+        }
+
+        /**
+         * marks the end of the data sent by the other side.
+         *
+         * @method  receiveEnd
+         *
+         * @date    2015-10-08T15:27:50-0800
+         *
+         * @author  Eric Tsang
+         */
+        private synchronized void receiveEnd()
+        {
+            inputEnded = true;
+            notifyAll();
+        }
+
+        /**
+         * fails both streams of the channel, since the other side has
+         *   abandoned it.
+         *
+         * @method  receiveReset
+         *
+         * @date    2015-10-08T15:28:02-0800
+         *
+         * @author  Eric Tsang
+         */
+        private synchronized void receiveReset()
+        {
+            fail(new IOException("channel reset by peer"));
+        }
+
+        /**
+         * fails both streams of the channel; reads fail once the data that
+         *   was received is used up, unless the other side had ended its data
+         *   already, and writes fail right away.
+         *
+         * @method  fail
+         *
+         * @date    2015-10-08T15:28:19-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   failure thrown by the streams from now on.
+         */
+        private synchronized void fail(IOException failure)
+        {
+            if(!inputEnded && inputFailure == null)
+            {
+                inputFailure = failure;
+                received.clear();
+            }
+            if(outputFailure == null)
+            {
+                outputFailure = failure;
+            }
+            notifyAll();
+        }
+
+        /**
+         * waits for the channel to change; wakes up when a frame arrives for
+         *   it, or a stream is closed.
+         *
+         * @method  await
+         *
+         * @date    2015-10-08T15:28:40-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @throws  InterruptedIOException thrown when interrupted while
+         *   waiting.
+         */
+        private void await() throws InterruptedIOException
+        {
+            try
+            {
+                wait();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * the stream that data sent by the other side is read from.
+         *
+         * @class   ChannelInputStream
+         *
+         * @date    2015-10-08T15:30:02-0800
+         *
+         * @author  Eric Tsang
+         */
+        private class ChannelInputStream extends InputStream
+        {
+            /**
+             * reads one byte, waiting for one to arrive if needed.
+             *
+             * @method  read
+             *
+             * @date    2015-10-08T15:30:20-0800
+             *
+             * @author  Eric Tsang
+             *
+             * @return  the byte, or -1 if the other side has ended its data.
+             *
+             * @throws  IOException thrown when the channel has failed.
+             */
+            @Override
+            public int read() throws IOException
+            {
+                byte[] b = new byte[1];
+                return read(b,0,1) == -1 ? -1 : b[0]&0xff;
+            }
+
+            /**
+             * reads up to {@code len} bytes, waiting for some to arrive if
+             *   needed, and credits the other side once half a window's
+             *   worth has been read.
+             *
+             * @method  read
+             *
+             * @date    2015-10-08T15:30:34-0800
+             *
+             * @author  Eric Tsang
+             *
+             * @param   b array to read into.
+             * @param   off index in {@code b} to read the first byte into.
+             * @param   len the most bytes to read.
+             *
+             * @return  number of bytes read, or -1 if the other side has
+             *   ended its data.
+             *
+             * @throws  IOException thrown when the channel has failed.
+             */
+            @Override
+            public int read(byte[] b,int off,int len) throws IOException
+            {
+                if(len == 0)
+                {
+                    return 0;
+                }
+
+                // copy as much as we can out of the first array of data, and
+                // credit the other side once enough of it has been read
+                int bytesRead;
+                int creditToSend = 0;
+                synchronized(Channel.this)
+                {
+                    while(received.isEmpty() && !inputEnded && inputFailure == null && !inputClosed)
+                    {
+                        await();
+                    }
+                    if(inputClosed)
+                    {
+                        throw new IOException("stream closed");
+                    }
+                    if(received.isEmpty())
+                    {
+                        if(inputFailure != null)
+                        {
+                            throw new IOException(inputFailure.getMessage(),inputFailure);
+                        }
+                        return -1;
+                    }
+                    byte[] data = received.peek();
+                    bytesRead = Math.min(len,data.length-receivedOffset);
+                    System.arraycopy(data,receivedOffset,b,off,bytesRead);
+                    receivedOffset += bytesRead;
+                    if(receivedOffset == data.length)
+                    {
+                        received.remove();
+                        receivedOffset = 0;
+                    }
+                    uncredited += bytesRead;
+                    if(uncredited >= WINDOW_SIZE/2 && !inputEnded)
+                    {
+                        creditToSend = uncredited;
+                        uncredited = 0;
+                    }
+                }
+                if(creditToSend > 0)
+                {
+                    ByteBuffer frame = ByteBuffer.allocate(4).putInt(creditToSend);
+                    sendFrame(id,FRAME_CREDIT,frame.array(),0,4);
+                }
+                return bytesRead;
+            }
+
+            /**
+             * returns the number of bytes that can be read without waiting.
+             *
+             * @method  available
+             *
+             * @date    2015-10-08T15:30:51-0800
+             *
+             * @author  Eric Tsang
+             *
+             * @return  the number of bytes that can be read without waiting.
+             */
+            @Override
+            public int available()
+            {
+                synchronized(Channel.this)
+                {
+                    return received.isEmpty() ? 0 : received.peek().length-receivedOffset;
+                }
+            }
+
+            /**
+             * closes the stream, and abandons the channel if the other side
+             *   may still be sending.
+             *
+             * @method  close
+             *
+             * @date    2015-10-08T15:31:02-0800
+             *
+             * @author  Eric Tsang
+             *
+             * @throws  IOException thrown when an IOException occurs.
+             */
+            @Override
+            public void close() throws IOException
+            {
+                // abandon the channel if the other side may still be sending
+                boolean reset;
+                synchronized(Channel.this)
+                {
+                    if(inputClosed)
+                    {
+                        return;
+                    }
+                    inputClosed = true;
+                    reset = !inputEnded && inputFailure == null;
+                    received.clear();
+                    Channel.this.notifyAll();
+                    if(outputClosed)
+                    {
+                        remove(Channel.this);
+                    }
+                }
+                if(reset)
+                {
+                    sendFrame(id,FRAME_RESET,null,0,0);
+                }
+            }
+        }
+
+        /**
+         * the stream that data is sent to the other side through.
+         *
+         * @class   ChannelOutputStream
+         *
+         * @date    2015-10-08T15:31:14-0800
+         *
+         * @author  Eric Tsang
+         */
+        private class ChannelOutputStream extends OutputStream
+        {
+            /**
+             * sends one byte.
+             *
+             * @method  write
+             *
+             * @date    2015-10-08T15:31:30-0800
+             *
+             * @author  Eric Tsang
+             *
+             * @param   b the byte to send.
+             *
+             * @throws  IOException thrown when the channel has failed.
+             */
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] {(byte) b},0,1);
+            }
+
+            /**
+             * sends {@code len} bytes, waiting for the other side to credit
+             *   room for them as needed.
+             *
+             * @method  write
+             *
+             * @date    2015-10-08T15:31:44-0800
+             *
+             * @author  Eric Tsang
+             *
+             * @param   b the bytes to send.
+             * @param   off index of the first byte to send.
+             * @param   len number of bytes to send.
+             *
+             * @throws  IOException thrown when the channel has failed.
+             */
+            @Override
+            public void write(byte[] b,int off,int len) throws IOException
+            {
+                // send the data in frames, as the other side credits us with
+                // room for them
+                while(len > 0)
+                {
+                    int frameSize;
+                    synchronized(Channel.this)
+                    {
+                        while(credit == 0 && outputFailure == null && !outputClosed)
+                        {
+                            await();
+                        }
+                        if(outputClosed)
+                        {
+                            throw new IOException("stream closed");
+                        }
+                        if(outputFailure != null)
+                        {
+                            throw new IOException(outputFailure.getMessage(),outputFailure);
+                        }
+                        frameSize = Math.min(len,Math.min(credit,MAX_FRAME_SIZE));
+                        credit -= frameSize;
+                    }
+                    sendFrame(id,frameSize,b,off,frameSize);
+                    off += frameSize;
+                    len -= frameSize;
+                }
+            }
+
+            /**
+             * closes the stream, and ends the data sent to the other side.
+             *
+             * @method  close
+             *
+             * @date    2015-10-08T15:32:00-0800
+             *
+             * @author  Eric Tsang
+             *
+             * @throws  IOException thrown when an IOException occurs.
+             */
+            @Override
+            public void close() throws IOException
+            {
+                // end the data sent to the other side, unless it can't be
+                // sent anymore
+                boolean end;
+                synchronized(Channel.this)
+                {
+                    if(outputClosed)
+                    {
+                        return;
+                    }
+                    outputClosed = true;
+                    end = outputFailure == null;
+                    Channel.this.notifyAll();
+                    if(inputClosed)
+                    {
+                        remove(Channel.this);
+                    }
+                }
+                if(end)
+                {
+                    sendFrame(id,FRAME_END,null,0,0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package comp7005.filetransfer.net;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * an output stream that takes the bytes written to it out of one or more
+ *   {@code Limiter}s before passing them on to the underlying stream, so
+ *   that they are written no faster than the slowest limiter allows.
+ *
+ * @file    RateLimitedOutputStream.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   RateLimitedOutputStream
+ *
+ * @date    2015-10-08T10:12:51-0800
+ *
+ * @author  Eric Tsang
+ */
+public class RateLimitedOutputStream extends FilterOutputStream
+{
+    // instance data: general
+
+    /**
+     * the limiters that written bytes are taken out of.
+     */
+    private final Limiter[] limiters;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a stream that writes to {@code os}, no faster than each of
+     *   the passed limiters allows.
+     *
+     * @method  RateLimitedOutputStream
+     *
+     * @date    2015-10-08T10:13:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   os the stream to write to.
+     * @param   limiters the limiters to take written bytes out of.
+     *
+     * @return  a new instance of RateLimitedOutputStream.
+     */
+    public RateLimitedOutputStream(OutputStream os,Limiter... limiters)
+    {
+        super(os);
+        this.limiters = limiters;
+    }
+
+    // public interface: OutputStream
+
+    /**
+     * writes the passed byte, once the limiters allow it.
+     *
+     * @method  write
+     *
+     * @date    2015-10-08T10:13:58-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   b the byte to write.
+     *
+     * @throws  IOException thrown when an IOException occurs, or interrupted
+     *   while waiting.
+     */
+    @Override
+    public void write(int b) throws IOException
+    {
+        acquire(1);
+        out.write(b);
+    }
+
+    /**
+     * writes {@code len} bytes of the passed array, starting from {@code off},
+     *   all at once, once the limiters allow it.
+     *
+     * @method  write
+     *
+     * @date    2015-10-08T10:14:05-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   b the bytes to write.
+     * @param   off index of the first byte to write.
+     * @param   len number of bytes to write.
+     *
+     * @throws  IOException thrown when an IOException occurs, or interrupted
+     *   while waiting.
+     */
+    @Override
+    public void write(byte[] b,int off,int len) throws IOException
+    {
+        acquire(len);
+        out.write(b,off,len);
+    }
+
+    // private interface: helpers
+
+    /**
+     * takes the passed number of bytes out of each limiter, waiting as long as
+     *   they say.
+     *
+     * @method  acquire
+     *
+     * @date    2015-10-08T10:14:22-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   bytes number of bytes that are about to be written.
+     *
+     * @throws  IOException thrown when interrupted while waiting.
+     */
+    private void acquire(int bytes) throws IOException
+    {
+        for(Limiter limiter : limiters)
+        {
+            limiter.acquire(bytes);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package comp7005.filetransfer.net;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * limits the rate at which bytes are sent with a token bucket, so that one
+ *   transfer, or all the transfers of a server together, can't take up all of
+ *   the bandwidth of a link.
+ *
+ * the bucket fills up at the current rate, and holds at most {@code
+ *   MAX_BURST_NANOS} worth of bytes. bytes are taken out of the bucket before
+ *   they are sent; when there aren't enough in it, the bucket goes into debt,
+ *   and the sender sleeps until the debt would be paid off. so any number of
+ *   bytes can be taken at once, and senders that share a bucket wait their
+ *   turn.
+ *
+ * the rate is read from a supplier every time bytes are taken, so it can be
+ *   changed while transfers are running.
+ *
+ * @file    RateLimiter.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   RateLimiter
+ *
+ * @date    2015-10-08T10:04:12-0800
+ *
+ * @author  Eric Tsang
+ */
+public class RateLimiter implements Limiter
+{
+    // constants: bucket parameters
+
+    /**
+     * the bucket holds at most this many nanoseconds worth of bytes at the
+     *   current rate, which is how far ahead of the rate a sender may get
+     *   after being idle.
+     */
+    private static final long MAX_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // instance data: general
+
+    /**
+     * returns the rate in bytes per second; 0 or less if there is no limit.
+     */
+    private final LongSupplier rate;
+
+    /**
+     * number of bytes in the bucket; negative while the bucket is in debt.
+     */
+    private double tokens;
+
+    /**
+     * value of {@code System.nanoTime} when the bucket was last filled up.
+     */
+    private long lastRefillTime;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a limiter whose rate is returned by {@code rate}, and whose
+     *   bucket starts out empty.
+     *
+     * @method  RateLimiter
+     *
+     * @date    2015-10-08T10:06:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   rate returns the rate in bytes per second; 0 or less if there
+     *   is no limit.
+     *
+     * @return  a new instance of RateLimiter.
+     */
+    public RateLimiter(LongSupplier rate)
+    {
+        this.rate = rate;
+        this.tokens = 0;
+        this.lastRefillTime = System.nanoTime();
+    }
+
+    // public interface: server methods
+
+    /**
+     * takes {@code bytes} bytes out of the bucket, and sleeps until the bucket
+     *   is out of debt, if it is; returns right away if there is no limit.
+     *
+     * @method  acquire
+     *
+     * @date    2015-10-08T10:08:15-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   bytes number of bytes that are about to be sent.
+     *
+     * @throws  InterruptedIOException thrown when interrupted while sleeping.
+     */
+    @Override
+    public void acquire(int bytes) throws InterruptedIOException
+    {
+        long currentRate = rate.getAsLong();
+        if(currentRate <= 0)
+        {
+            return;
+        }
+
+        // fill up the bucket with the bytes earned since it was last filled,
+        // take the bytes out of it, and work out how long it will take to pay
+        // off the debt, if any
+        long sleepNanos;
+        synchronized(this)
+        {
+            long now = System.nanoTime();
+            double maxTokens = (double) currentRate*MAX_BURST_NANOS/1e9;
+            tokens = Math.min(maxTokens,tokens+(double) currentRate*(now-lastRefillTime)/1e9);
+            tokens -= bytes;
+            lastRefillTime = now;
+            sleepNanos = tokens < 0 ? (long) (-tokens*1e9/currentRate) : 0;
+        }
+
+        // sleep outside of the lock, so other senders can take their bytes out
+        // of the bucket meanwhile, and line up behind us
+        if(sleepNanos > 0)
+        {
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
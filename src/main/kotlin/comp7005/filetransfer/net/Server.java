@@ -5,13 +5,28 @@ import com.teamhoe.reliableudp.SocketInputStream;
 import com.teamhoe.reliableudp.SocketOutputStream;
 
 import java.io.IOException;
-import java.net.ConnectException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * a server that is bound to a port, and will accept connection requests sent to
  *   the port until the server is stopped.
  *
+ * connections are accepted by a few accept threads, and handled by a pool of
+ *   worker threads that can be passed to the server. by default, each
+ *   connection is handled on a virtual thread of its own when the JVM supports
+ *   them, and by a bounded pool of threads with a bounded queue of waiting
+ *   connections otherwise; connections that arrive while the queue is full are
+ *   closed, so the number of worker threads stays bounded however many
+ *   clients connect at once. this only bounds the threads that handle
+ *   connections; connections that a subclass keeps open after
+ *   {@code onAccept} returns, and the threads it reads them on, are up to
+ *   the subclass to limit.
+ *
  * @file    Server.java
  *
  * @program comp7005.filetransfer.jar
@@ -24,16 +39,38 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public abstract class Server
 {
+    // constants: threads
+
+    /**
+     * number of threads that wait for connection requests, and set up the
+     *   connections that are requested.
+     */
+    private static final int ACCEPT_THREAD_COUNT = 5;
+
     /**
-     * number of threads that are waiting for connection requests allowed
+     * the most threads in the default worker pool, when virtual threads aren't
+     *   supported.
      */
-    private static final int MAX_WAITING_ACCEPT_THREADS = 5;
+    private static final int MAX_WORKER_THREADS = 64;
 
     /**
-     * keeps count of the number of threads that are waiting to accept a new
-     *   connection.
+     * the most accepted connections that wait in the default worker pool's
+     *   queue for a thread, when virtual threads aren't supported.
      */
-    private final AtomicInteger waitingThreadCount = new AtomicInteger(0);
+    private static final int MAX_QUEUED_CONNECTIONS = 1024;
+
+    /**
+     * seconds that an idle thread of the default worker pool is kept around
+     *   before it is ended.
+     */
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    // instance data: general
+
+    /**
+     * threads that accepted connections are handled on.
+     */
+    private final ExecutorService workers;
 
     /**
      * the server's single server socket used to accept new connections from.
@@ -43,7 +80,8 @@ public abstract class Server
     // public interface: constructors
 
     /**
-     * instantiates a server that is bound to port {@code listenPort}.
+     * instantiates a server that handles connections on the default worker
+     *   pool.
      *
      * @method  Server
      *
@@ -54,8 +92,27 @@ public abstract class Server
      * @return  new instance of Server
      */
     public Server()
+    {
+        this(makeDefaultWorkers());
+    }
+
+    /**
+     * instantiates a server that handles connections on {@code workers}.
+     *
+     * @method  Server
+     *
+     * @date    2015-10-08T15:52:14-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   workers threads that accepted connections are handled on.
+     *
+     * @return  new instance of Server
+     */
+    public Server(ExecutorService workers)
     {
         // initialize instance data
+        this.workers = workers;
         try
         {
             this.serverSocket = ServerSocket.Companion.make(null);
@@ -99,8 +156,11 @@ public abstract class Server
             // todo: bind the socket
             // serverSocket.bind(new InetSocketAddress(listenPort));
 
-            // start the accept thread
-            new AcceptThread().start();
+            // start the accept threads
+            for(int i = 0; i < ACCEPT_THREAD_COUNT; i++)
+            {
+                new AcceptThread(serverSocket).start();
+            }
         }
         catch(IOException e)
         {
@@ -154,6 +214,28 @@ public abstract class Server
         return serverSocket;
     }
 
+    // protected interface: workers
+
+    /**
+     * runs {@code task} on the server's worker threads, the same ones that
+     *   accepted connections are handled on.
+     *
+     * @method  execute
+     *
+     * @date    2015-10-08T15:53:02-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   task the task to run.
+     *
+     * @throws  RejectedExecutionException thrown when there are too many tasks
+     *   waiting for a thread already.
+     */
+    protected void execute(Runnable task)
+    {
+        workers.execute(task);
+    }
+
     // protected interface: callbacks
 
     /**
@@ -169,11 +251,73 @@ public abstract class Server
      */
     protected abstract void onAccept(SocketInputStream sis,SocketOutputStream sos);
 
+    // protected interface: helpers
+
+    /**
+     * makes an executor that runs each task on a virtual thread of its own, if
+     *   the JVM supports them.
+     *
+     * @method  makeVirtualThreadExecutor
+     *
+     * @date    2015-10-08T17:20:10-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  an executor that runs each task on a new virtual thread; null if
+     *   the JVM doesn't support them.
+     */
+    protected static ExecutorService makeVirtualThreadExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+        }
+        catch(ReflectiveOperationException e)
+        {
+            return null;
+        }
+    }
+
+    // private interface: helpers
+
+    /**
+     * makes the default worker pool; a virtual thread per connection if the
+     *   JVM supports them, or a bounded pool of threads with a bounded queue
+     *   otherwise.
+     *
+     * @method  makeDefaultWorkers
+     *
+     * @date    2015-10-08T15:52:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the default worker pool.
+     */
+    private static ExecutorService makeDefaultWorkers()
+    {
+        // use virtual threads if this JVM has them; fall back to a bounded
+        // pool otherwise
+        ExecutorService virtualThreads = makeVirtualThreadExecutor();
+        if(virtualThreads != null)
+        {
+            return virtualThreads;
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            MAX_WORKER_THREADS,MAX_WORKER_THREADS,
+            WORKER_KEEP_ALIVE_SECONDS,TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED_CONNECTIONS));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     // private instances: threads
 
     /**
-     * accepts connection requests from the server's server socket until the
-     *   server socket is closed.
+     * accepts connections from the passed server socket until it is closed,
+     *   and hands each of them to the worker threads.
      *
      * @class   AcceptThread
      *
@@ -183,54 +327,74 @@ public abstract class Server
      */
     private class AcceptThread extends Thread
     {
+        /**
+         * the socket to accept connections from.
+         */
+        private final ServerSocket serverSocket;
+
+        /**
+         * instantiates a thread that accepts connections from {@code
+         *   serverSocket}.
+         *
+         * @method  AcceptThread
+         *
+         * @date    2015-10-08T15:53:30-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   serverSocket the socket to accept connections from.
+         *
+         * @return  a new instance of AcceptThread.
+         */
+        public AcceptThread(ServerSocket serverSocket)
+        {
+            this.serverSocket = serverSocket;
+        }
+
+        /**
+         * accepts connections until the server socket is closed by another
+         *   thread.
+         *
+         * @method  run
+         *
+         * @date    2015-10-08T15:53:48-0800
+         *
+         * @author  Eric Tsang
+         */
+        @Override
         public void run()
         {
-            // accept any new connections until the socket is closed by another
-            // thread
             while(!serverSocket.isClosed())
             {
-                synchronized(waitingThreadCount)
+                // accept the next connection
+                Connection connection;
+                try
+                {
+                    connection = Connection.accept(serverSocket);
+                }
+                catch(IOException|RuntimeException e)
+                {
+                    // the socket was closed, or a client failed to connect;
+                    // either way, there is nothing to hand to the workers
+                    continue;
+                }
+
+                // hand it to the worker threads; drop it if too many
+                // connections are waiting for one already
+                try
+                {
+                    execute(() -> onAccept(connection.getInputStream(),connection.getOutputStream()));
+                }
+                catch(RejectedExecutionException e)
                 {
-                    // wait until there is less than maximum number of threads
-                    // waiting before continuing to create another thread
                     try
                     {
-                        while(waitingThreadCount.get() >= MAX_WAITING_ACCEPT_THREADS)
-                        {
-                            waitingThreadCount.wait();
-                        }
+                        connection.close();
                     }
-
-                    // interrupted because IOException occurred. perhaps server
-                    // socket is closed now.
-                    catch(InterruptedException e)
+                    catch(IOException closeException)
                     {
-                        // do nothing
+                        // do nothing; the connection is dropped either way
                     }
-
-                    // create the thread to accept the connection and such
-                    waitingThreadCount.incrementAndGet();
-                    new Thread(() ->
-                    {
-                        try
-                        {
-                            System.out.println("new thread waiting for connection");
-                            SocketInputStream sis = serverSocket.accept(null,null);
-                            Thread.sleep(500);
-                            SocketOutputStream sos = serverSocket.connect(sis.getRemoteAddress(),null);
-                            System.out.println("new connection accepted");
-                            synchronized(waitingThreadCount)
-                            {
-                                waitingThreadCount.decrementAndGet();
-                                waitingThreadCount.notify();
-                            }
-                            onAccept(sis,sos);
-                        }
-                        catch(Exception e)
-                        {
-                            throw new RuntimeException(e);
-                        }
-                    }).start();
                 }
             }
         }
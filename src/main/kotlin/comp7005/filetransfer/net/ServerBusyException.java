@@ -0,0 +1,64 @@
+package comp7005.filetransfer.net;
+
+import java.io.IOException;
+
+/**
+ * thrown when a server rejects a request because it is too busy to run it,
+ *   and has asked for it to be sent again later.
+ *
+ * @file    ServerBusyException.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   ServerBusyException
+ *
+ * @date    2015-10-08T16:10:05-0800
+ *
+ * @author  Eric Tsang
+ */
+public class ServerBusyException extends IOException
+{
+    /**
+     * milliseconds that the server asked the client to wait before trying
+     *   again.
+     */
+    private final long retryAfterMillis;
+
+    /**
+     * instantiates an exception for a server that asked the client to wait
+     *   {@code retryAfterMillis} milliseconds before trying again.
+     *
+     * @method  ServerBusyException
+     *
+     * @date    2015-10-08T16:10:30-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   retryAfterMillis milliseconds that the server asked the client
+     *   to wait.
+     *
+     * @return  a new instance of ServerBusyException.
+     */
+    public ServerBusyException(long retryAfterMillis)
+    {
+        super("server busy; retry after "+retryAfterMillis+"ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * returns the milliseconds that the server asked the client to wait before
+     *   trying again.
+     *
+     * @method  getRetryAfterMillis
+     *
+     * @date    2015-10-08T16:10:48-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @return  the milliseconds that the server asked the client to wait.
+     */
+    public long getRetryAfterMillis()
+    {
+        return retryAfterMillis;
+    }
+}
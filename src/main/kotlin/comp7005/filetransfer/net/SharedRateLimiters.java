@@ -0,0 +1,238 @@
+package comp7005.filetransfer.net;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * hands out rate limiters by key, so that the streams that make up one
+ *   logical transfer, such as the ranges of a file pulled over several
+ *   streams in parallel, share one rate limit instead of each of them getting
+ *   a whole one.
+ *
+ * streams with the same key share a limiter while any of them is using it; it
+ *   is forgotten once the last of them is done with it.
+ *
+ * @file    SharedRateLimiters.java
+ *
+ * @program comp7005.filetransfer.jar
+ *
+ * @class   SharedRateLimiters
+ *
+ * @date    2015-10-08T17:40:10-0800
+ *
+ * @author  Eric Tsang
+ */
+public class SharedRateLimiters<K>
+{
+    // instance data: general
+
+    /**
+     * returns the rate in bytes per second of each limiter; 0 or less if there
+     *   is no limit.
+     */
+    private final LongSupplier rate;
+
+    /**
+     * the limiters that are in use, by their keys.
+     */
+    private final Map<K,Shared> limiters;
+
+    // public interface: constructors
+
+    /**
+     * instantiates a set of limiters whose rate is returned by {@code rate}.
+     *
+     * @method  SharedRateLimiters
+     *
+     * @date    2015-10-08T17:40:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   rate returns the rate in bytes per second of each limiter; 0 or
+     *   less if there is no limit.
+     *
+     * @return  a new instance of SharedRateLimiters.
+     */
+    public SharedRateLimiters(LongSupplier rate)
+    {
+        this.rate = rate;
+        this.limiters = new HashMap<>();
+    }
+
+    // public interface: server methods
+
+    /**
+     * returns a lease on the limiter of {@code key}, making a new one if
+     *   nobody is using it; the lease must be closed once the stream is done.
+     *
+     * @method  acquire
+     *
+     * @date    2015-10-08T17:41:12-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   key key of the transfer that the stream belongs to.
+     *
+     * @return  a lease on the limiter shared by the streams of the transfer.
+     */
+    public synchronized Lease acquire(K key)
+    {
+        Shared shared = limiters.computeIfAbsent(key,k -> new Shared(new RateLimiter(rate)));
+        shared.leases++;
+        return new Lease(key,shared);
+    }
+
+    // private interface: helpers
+
+    /**
+     * gives back a lease on the limiter of {@code key}, forgetting the limiter
+     *   if it was the last one.
+     *
+     * @method  release
+     *
+     * @date    2015-10-08T17:41:40-0800
+     *
+     * @author  Eric Tsang
+     *
+     * @param   key key of the limiter.
+     * @param   shared the limiter.
+     */
+    private synchronized void release(K key,Shared shared)
+    {
+        if(--shared.leases == 0)
+        {
+            limiters.remove(key,shared);
+        }
+    }
+
+    // private interface: limiters
+
+    /**
+     * a limiter, and the number of leases on it that haven't been closed.
+     *
+     * @class   Shared
+     *
+     * @date    2015-10-08T17:40:22-0800
+     *
+     * @author  Eric Tsang
+     */
+    private static class Shared
+    {
+        /**
+         * the limiter shared by the streams.
+         */
+        private final RateLimiter limiter;
+
+        /**
+         * number of leases on the limiter that haven't been closed.
+         */
+        private int leases;
+
+        /**
+         * instantiates an entry for the passed limiter.
+         *
+         * @method  Shared
+         *
+         * @date    2015-10-08T17:40:30-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   limiter the limiter shared by the streams.
+         *
+         * @return  a new instance of Shared.
+         */
+        private Shared(RateLimiter limiter)
+        {
+            this.limiter = limiter;
+            this.leases = 0;
+        }
+    }
+
+    // public interface: leases
+
+    /**
+     * a stream's use of a shared limiter; bytes are taken out of the shared
+     *   limiter until it is closed.
+     *
+     * @class   Lease
+     *
+     * @date    2015-10-08T17:42:02-0800
+     *
+     * @author  Eric Tsang
+     */
+    public class Lease implements Limiter,Closeable
+    {
+        /**
+         * key of the limiter.
+         */
+        private final K key;
+
+        /**
+         * the limiter; null once the lease is closed.
+         */
+        private Shared shared;
+
+        /**
+         * instantiates a lease on the passed limiter.
+         *
+         * @method  Lease
+         *
+         * @date    2015-10-08T17:42:14-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   key key of the limiter.
+         * @param   shared the limiter.
+         *
+         * @return  a new instance of Lease.
+         */
+        private Lease(K key,Shared shared)
+        {
+            this.key = key;
+            this.shared = shared;
+        }
+
+        /**
+         * takes {@code bytes} bytes out of the shared limiter, and returns once
+         *   they may be sent.
+         *
+         * @method  acquire
+         *
+         * @date    2015-10-08T17:42:30-0800
+         *
+         * @author  Eric Tsang
+         *
+         * @param   bytes number of bytes that are about to be sent.
+         *
+         * @throws  InterruptedIOException thrown when interrupted while
+         *   waiting.
+         */
+        @Override
+        public void acquire(int bytes) throws InterruptedIOException
+        {
+            shared.limiter.acquire(bytes);
+        }
+
+        /**
+         * gives back the lease; does nothing if it was given back already.
+         *
+         * @method  close
+         *
+         * @date    2015-10-08T17:42:44-0800
+         *
+         * @author  Eric Tsang
+         */
+        @Override
+        public void close()
+        {
+            if(shared != null)
+            {
+                release(key,shared);
+                shared = null;
+            }
+        }
+    }
+}